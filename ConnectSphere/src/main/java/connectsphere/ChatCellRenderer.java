@@ -0,0 +1,96 @@
+package connectsphere;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.MouseEvent;
+
+import connectsphere.ConnectSphereClient.ChatMessage;
+
+// Paints chat list rows. Every row is one line high and as wide as the list, so the JList is
+// given a fixed cell width and height and never measures its cells: appending to or scrolling a
+// 50k-message list only touches the visible rows. Reactions follow the message on the same
+// line. A line too long for the row is cut with an ellipsis, the cut being cached on the
+// message until its text or the row width changes, and the whole line shows as a tooltip.
+// One instance paints every row of its list.
+final class ChatCellRenderer extends JComponent implements ListCellRenderer<ChatMessage> {
+    private static final long serialVersionUID = 1L;
+    private static final int PADDING = 4; // Left and right of the text, in pixels
+    private static final int LEADING = 2; // Above and below the text
+
+    private ChatMessage message;
+    private boolean selected;
+    private Color selectionBackground;
+
+    private ChatCellRenderer() {
+        setOpaque(false); // The list's own background, or the chat backdrop behind it, shows through
+    }
+
+    // Sets list up to paint with a new renderer in fixed-size rows
+    static void install(JList<ChatMessage> list) {
+        list.setCellRenderer(new ChatCellRenderer());
+        list.setFixedCellHeight(list.getFontMetrics(list.getFont()).getHeight() + 2 * LEADING);
+        // Any width below the viewport's makes the list track it (see JList.getScrollableTracksViewportWidth)
+        list.setFixedCellWidth(1);
+    }
+
+    @Override
+    public Component getListCellRendererComponent(JList<? extends ChatMessage> list, ChatMessage value, int index,
+                                                  boolean isSelected, boolean cellHasFocus) {
+        message = value;
+        selected = isSelected;
+        selectionBackground = list.getSelectionBackground();
+        setFont(list.getFont());
+        setForeground(isSelected ? list.getSelectionForeground() : list.getForeground());
+        return this;
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        if (selected) {
+            g.setColor(selectionBackground);
+            g.fillRect(0, 0, getWidth(), getHeight());
+        }
+        if (message == null) {
+            return;
+        }
+        FontMetrics metrics = g.getFontMetrics(getFont());
+        g.setColor(getForeground());
+        g.setFont(getFont());
+        int baseline = (getHeight() - metrics.getHeight()) / 2 + metrics.getAscent();
+        g.drawString(message.fitted(metrics, getWidth() - 2 * PADDING), PADDING, baseline);
+    }
+
+    // JList asks the renderer of the row under the mouse; only cut lines need a tooltip
+    @Override
+    public String getToolTipText(MouseEvent event) {
+        if (message == null) {
+            return null;
+        }
+        return message.isCut(getFontMetrics(getFont()), getWidth() - 2 * PADDING) ? message.toString() : null;
+    }
+
+    // JList repaints rows itself; the renderer is never part of a visible hierarchy, so skip the bookkeeping
+    @Override
+    public void invalidate() {
+    }
+
+    @Override
+    public void validate() {
+    }
+
+    @Override
+    public void revalidate() {
+    }
+
+    @Override
+    public void repaint(long tm, int x, int y, int width, int height) {
+    }
+
+    @Override
+    public void repaint(Rectangle r) {
+    }
+
+    @Override
+    protected void firePropertyChange(String propertyName, Object oldValue, Object newValue) {
+    }
+}
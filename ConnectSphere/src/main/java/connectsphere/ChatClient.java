@@ -0,0 +1,743 @@
+package connectsphere;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Client side of the chat protocol without any UI, shared by the Swing client and the load
+// generator. It switches to binary framing when the server offers it, answers name prompts,
+// follows presence epochs and turns both wire formats into the same Listener calls, so callers
+// never parse display text.
+//
+// Whoever owns the socket pushes input in: connect() reads on a blocking reader task, and an
+// event loop can call receive() and disconnected() itself. Listener calls run on that reading
+// thread. The send methods may be called from any thread.
+final class ChatClient {
+    // Everything the server can tell a client. Only the calls a caller needs have to be implemented.
+    interface Listener {
+        // The server asked for a name again, so the last one was taken; returns the next one to try
+        default String onNameTaken(String name) {
+            return name;
+        }
+
+        default void onNameAccepted(String name) {
+        }
+
+        // kind is one of WireProtocol.KIND_*; for private kinds sender is the other party, for
+        // system messages it is null. id is -1 for notices, which have none. Text-protocol messages
+        // are stamped on arrival.
+        default void onMessage(int kind, long id, long timestamp, String sender, String body) {
+        }
+
+        // A full user list, on connect or after a lost delta
+        default void onUserList(String[] users) {
+        }
+
+        default void onUserJoined(String user) {
+        }
+
+        default void onUserLeft(String user) {
+        }
+
+        // Public typing changes, coalesced by the server
+        default void onTyping(String[] started, String[] stopped) {
+        }
+
+        default void onPrivateTyping(String user, boolean start) {
+        }
+
+        // New public totals: messageIds[i] has totals[i] of emojis[i]
+        default void onPublicReactions(long[] messageIds, String[] emojis, int[] totals) {
+        }
+
+        // One private reaction, by or to user
+        default void onReaction(String user, long messageId, String emoji) {
+        }
+
+        // Called once when the connection ends; cause is null if it was closed rather than lost
+        default void onDisconnected(IOException cause) {
+        }
+    }
+
+    // Where encoded output goes; write is called under the client's send lock
+    interface Output {
+        void write(byte[] bytes) throws IOException;
+
+        void close();
+    }
+
+    private static final String[] NONE = new String[0];
+    private static final int TIME_PREFIX = "[HH:mm:ss] ".length(); // Text-protocol messages start with one
+    private static final byte[] BINARY_V1 = ascii(WireProtocol.BINARY_V1);
+    private static final byte[] IDS_V1 = ascii(WireProtocol.IDS_V1);
+    private static final byte[] START = ascii(" start");
+    private static final byte[] STOP = ascii(" stop");
+    private static final byte[] PRIVATE_FROM = ascii("(Private from ");
+    private static final byte[] PRIVATE_TO = ascii("(Private to ");
+    private static final byte[] PUBLIC_SEPARATOR = ascii(": ");
+    private static final byte[] PRIVATE_SEPARATOR = ascii("): ");
+
+    private final Listener listener;
+    private final boolean preferBinary;
+    private volatile String name;
+    private Output output;
+    // Negotiated wire format: output switches once /proto is sent, input once PROTO is read
+    private volatile boolean binaryOutput = false;
+    private volatile boolean binaryInput = false;
+    private volatile boolean textIds = false; // Asked for ids on text MESSAGE lines
+    private final ReentrantLock sendLock = new ReentrantLock();
+    private final WireProtocol.Encoder encoder = new WireProtocol.Encoder(); // Used under sendLock
+    private long bytesSent = 0;
+    private boolean namePrompted = false;
+    private long presenceEpoch = -1; // Of the last snapshot or delta applied; -1 while waiting for a snapshot
+    private final WireProtocol.Decoder decoder = new WireProtocol.Decoder();
+    private final Sink sink = new Sink();
+    private final AtomicBoolean closed = new AtomicBoolean(); // close() was called
+    private final AtomicBoolean ended = new AtomicBoolean();  // The listener has been told
+    private final List<TextCommand> textCommands = new ArrayList<>();
+    private final FrameHandler[] frameHandlers = new FrameHandler[256];
+
+    // output may be null and attached later, before any input is received
+    ChatClient(String name, boolean preferBinary, Listener listener, Output output) {
+        this.name = name;
+        this.preferBinary = preferBinary;
+        this.listener = listener;
+        this.output = output;
+        registerHandlers();
+    }
+
+    // Opens a blocking socket and reads it on a task given to readers until the connection ends
+    static ChatClient connect(String host, int port, String name, boolean preferBinary, Listener listener,
+                              Executor readers) throws IOException {
+        Socket socket = new Socket(host, port);
+        socket.setTcpNoDelay(true); // Every send is one small, complete message
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+        InputStream in = socket.getInputStream();
+        ChatClient client = new ChatClient(name, preferBinary, listener, new Output() {
+            @Override
+            public void write(byte[] bytes) throws IOException {
+                out.write(bytes);
+                out.flush();
+            }
+
+            @Override
+            public void close() {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    ChatLog.NETWORK.warn("Client {}: Error closing socket: {}", name, e.getMessage());
+                }
+            }
+        });
+        readers.execute(() -> client.readUntilClosed(in));
+        return client;
+    }
+
+    private void readUntilClosed(InputStream in) {
+        IOException failure = null;
+        try {
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) >= 0) {
+                if (!receive(buffer, 0, count)) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+        disconnected(failure);
+    }
+
+    void attach(Output output) {
+        this.output = output;
+    }
+
+    String name() {
+        return name;
+    }
+
+    boolean binaryOutput() {
+        return binaryOutput;
+    }
+
+    boolean isClosed() {
+        return closed.get() || ended.get();
+    }
+
+    // Feeds input from the server; false if it was malformed and the connection should be closed
+    boolean receive(byte[] bytes, int offset, int length) {
+        if (!decoder.decode(bytes, offset, length, sink)) {
+            ChatLog.NETWORK.warn("Client {}: Closing connection: oversized or malformed data from server", name);
+            return false;
+        }
+        return true;
+    }
+
+    boolean receive(ByteBuffer buffer) {
+        if (!decoder.decode(buffer, sink)) {
+            ChatLog.NETWORK.warn("Client {}: Closing connection: oversized or malformed data from server", name);
+            return false;
+        }
+        return true;
+    }
+
+    // The connection is gone, by close() or otherwise; tells the listener once
+    void disconnected(IOException cause) {
+        if (!ended.compareAndSet(false, true)) {
+            return;
+        }
+        if (output != null) {
+            output.close();
+        }
+        if (closed.get()) {
+            cause = null; // Reads fail once close() has shut the socket
+        } else if (cause != null) {
+            ChatLog.NETWORK.info("Client {}: Connection error: {}", name, cause.getMessage());
+        }
+        ChatLog.NETWORK.info("Client {}: Received {} messages in {} bytes", name, decoder.messagesDecoded(), decoder.bytesDecoded());
+        ChatLog.NETWORK.info("Client {}: Sent {} bytes ({} protocol)", name, bytesSent, binaryOutput ? WireProtocol.BINARY_V1 : "text");
+        listener.onDisconnected(cause);
+    }
+
+    // Closes the connection; whoever reads it then calls disconnected
+    void close() {
+        if (closed.compareAndSet(false, true) && output != null) {
+            output.close();
+        }
+    }
+
+    // Feeds decoded server input to the handlers; the format switches when PROTO arrives
+    private final class Sink implements WireProtocol.Sink {
+        @Override
+        public void onLine(String line) {
+            byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            onLine(bytes, 0, bytes.length);
+        }
+
+        @Override
+        public void onLine(byte[] line, int offset, int length) {
+            dispatchLine(line, offset, offset + length);
+        }
+
+        @Override
+        public void onFrame(int type, WireProtocol.Payload payload) {
+            FrameHandler handler = frameHandlers[type];
+            if (handler != null) {
+                handler.handle(payload);
+            } else {
+                ChatLog.NETWORK.debug("Client {}: Unhandled frame type: {}", name, type);
+            }
+        }
+
+        @Override
+        public boolean binaryInput() {
+            return binaryInput;
+        }
+    }
+
+    // Handles the arguments of one text line: the UTF-8 bytes in line[start, end) after the
+    // command token and its space. The array is the decoder's buffer, so it is only valid during the call.
+    private interface LineHandler {
+        void handle(byte[] line, int start, int end);
+    }
+
+    private interface FrameHandler {
+        void handle(WireProtocol.Payload payload);
+    }
+
+    private static final class TextCommand {
+        final byte[] token;
+        final LineHandler handler;
+
+        TextCommand(String token, LineHandler handler) {
+            this.token = ascii(token);
+            this.handler = handler;
+        }
+    }
+
+    // Text lines are matched on their whole first token, so REACTION can never catch a
+    // REACTION_PUBLIC line, and the busiest commands are registered, and so tried, first
+    private void registerHandlers() {
+        onText("MESSAGE", this::handleTextMessage);
+        onText("TYPING", (line, start, end) -> handleTextTyping(line, start, end, false));
+        onText("USERLIST", this::handleTextUserList);
+        onText("REACTION_PUBLIC", this::handleTextPublicReaction);
+        onText("PMTYPING", (line, start, end) -> handleTextTyping(line, start, end, true));
+        onText("REACTION", this::handleTextReaction);
+        onText("SUBMITNAME", this::handleTextNamePrompt);
+        onText("NAMEACCEPTED", (line, start, end) -> listener.onNameAccepted(name));
+        onText("PROTO", this::handleProtoAck);
+
+        onFrame(WireProtocol.MESSAGE, this::handleMessageFrame);
+        onFrame(WireProtocol.TYPINGSET, this::handleTypingSetFrame);
+        onFrame(WireProtocol.PMTYPING, payload -> listener.onPrivateTyping(payload.readString(), payload.readBoolean()));
+        onFrame(WireProtocol.REACTION_PUBLIC, this::handlePublicReactionsFrame);
+        onFrame(WireProtocol.REACTION, this::handleReactionFrame);
+        onFrame(WireProtocol.USERJOIN, payload -> handlePresenceFrame(payload, true));
+        onFrame(WireProtocol.USERLEAVE, payload -> handlePresenceFrame(payload, false));
+        onFrame(WireProtocol.USERLIST, this::handleUserListFrame);
+        onFrame(WireProtocol.SUBMITNAME, payload -> onNamePrompt());
+        onFrame(WireProtocol.NAMEACCEPTED, payload -> listener.onNameAccepted(name));
+    }
+
+    private void onText(String token, LineHandler handler) {
+        textCommands.add(new TextCommand(token, handler));
+    }
+
+    private void onFrame(int type, FrameHandler handler) {
+        frameHandlers[type] = handler;
+    }
+
+    private void dispatchLine(byte[] line, int start, int end) {
+        int tokenEnd = indexOf(line, start, end, (byte) ' ');
+        if (tokenEnd < 0) {
+            tokenEnd = end;
+        }
+        int tokenLength = tokenEnd - start;
+        for (int i = 0; i < textCommands.size(); i++) {
+            TextCommand command = textCommands.get(i);
+            if (command.token.length == tokenLength
+                    && Arrays.equals(command.token, 0, tokenLength, line, start, tokenEnd)) {
+                command.handler.handle(line, Math.min(tokenEnd + 1, end), end);
+                return;
+            }
+        }
+        if (ChatLog.NETWORK.isEnabled(ChatLog.Level.DEBUG)) {
+            ChatLog.NETWORK.debug("Client {}: Unhandled message type: {}", name, string(line, start, end));
+        }
+    }
+
+    // SUBMITNAME [capability...]: the server lists the framings and options it supports after the command
+    private void handleTextNamePrompt(byte[] line, int start, int end) {
+        if (preferBinary && !binaryOutput && containsWord(line, start, end, BINARY_V1)) {
+            sendLine(WireProtocol.PROTO_REQUEST);
+            binaryOutput = true;
+        } else if (!binaryOutput && !textIds && containsWord(line, start, end, IDS_V1)) {
+            sendLine(WireProtocol.IDS_REQUEST);
+            textIds = true;
+        }
+        onNamePrompt();
+    }
+
+    // PROTO binary1: everything after this line is binary frames
+    private void handleProtoAck(byte[] line, int start, int end) {
+        if (Arrays.equals(BINARY_V1, 0, BINARY_V1.length, line, start, end)) {
+            binaryInput = true;
+            ChatLog.NETWORK.debug("Client {}: Switched to {} framing", name, WireProtocol.BINARY_V1);
+        }
+    }
+
+    // USERLIST a,b,c
+    private void handleTextUserList(byte[] line, int start, int end) {
+        if (start == end) {
+            listener.onUserList(NONE);
+            return;
+        }
+        int count = 1;
+        for (int i = start; i < end; i++) {
+            if (line[i] == ',') {
+                count++;
+            }
+        }
+        String[] users = new String[count];
+        for (int i = 0; i < count; i++) {
+            int comma = indexOf(line, start, end, (byte) ',');
+            int userEnd = comma < 0 ? end : comma;
+            users[i] = string(line, start, userEnd);
+            start = userEnd + 1;
+        }
+        listener.onUserList(users);
+    }
+
+    // TYPING|PMTYPING <user> start|stop; the user may contain spaces
+    private void handleTextTyping(byte[] line, int start, int end, boolean privateTyping) {
+        boolean typing = endsWith(line, start, end, START);
+        int userEnd = typing ? end - START.length : endsWith(line, start, end, STOP) ? end - STOP.length : -1;
+        if (userEnd < start) {
+            ChatLog.TYPING.warn("Client {}: Invalid {} message format: {}", name, privateTyping ? "PMTYPING" : "TYPING",
+                    string(line, start, end));
+            return;
+        }
+        while (start < userEnd && line[start] == ' ') {
+            start++;
+        }
+        while (userEnd > start && line[userEnd - 1] == ' ') {
+            userEnd--;
+        }
+        String user = string(line, start, userEnd);
+        if (privateTyping) {
+            listener.onPrivateTyping(user, typing);
+        } else {
+            String[] changed = {user};
+            listener.onTyping(typing ? changed : NONE, typing ? NONE : changed);
+        }
+    }
+
+    // REACTION_PUBLIC <messageId> <emoji> <total>
+    private void handleTextPublicReaction(byte[] line, int start, int end) {
+        int idEnd = indexOf(line, start, end, (byte) ' ');
+        int totalStart = lastIndexOf(line, start, end, (byte) ' ') + 1;
+        try {
+            if (idEnd < 0 || totalStart - 1 <= idEnd) {
+                throw new NumberFormatException();
+            }
+            long messageId = parseLong(line, start, idEnd);
+            int total = (int) parseLong(line, totalStart, end);
+            listener.onPublicReactions(new long[] {messageId}, new String[] {string(line, idEnd + 1, totalStart - 1)},
+                    new int[] {total});
+        } catch (NumberFormatException e) {
+            ChatLog.NETWORK.warn("Client {}: Invalid REACTION_PUBLIC message format: {}", name, string(line, start, end));
+        }
+    }
+
+    // REACTION <user> <messageId> <emoji>; the user may contain spaces
+    private void handleTextReaction(byte[] line, int start, int end) {
+        int emojiStart = lastIndexOf(line, start, end, (byte) ' ') + 1;
+        int idStart = emojiStart > start ? lastIndexOf(line, start, emojiStart - 1, (byte) ' ') + 1 : start;
+        try {
+            if (idStart <= start) {
+                throw new NumberFormatException();
+            }
+            long messageId = parseLong(line, idStart, emojiStart - 1);
+            listener.onReaction(string(line, start, idStart - 1), messageId, string(line, emojiStart, end));
+        } catch (NumberFormatException e) {
+            ChatLog.NETWORK.warn("Client {}: Invalid REACTION message format: {}", name, string(line, start, end));
+        }
+    }
+
+    // The text protocol sends messages formatted for display: "[HH:mm:ss] sender: body",
+    // "[HH:mm:ss] (Private from|to user): body", or a bare system line, then a tab and the
+    // message id if ids were asked for (ids1) and it has one. Only the sender and the body are turned into strings.
+    private void handleTextMessage(byte[] line, int start, int end) {
+        long now = System.currentTimeMillis();
+        long id = -1;
+        int tab = textIds ? lastIndexOf(line, start, end, (byte) '\t') : start - 1;
+        if (tab >= start) {
+            try {
+                id = parseLong(line, tab + 1, end);
+                end = tab;
+            } catch (NumberFormatException e) {
+                ChatLog.NETWORK.debug("Client {}: MESSAGE without a valid id: {}", name, string(line, start, end));
+            }
+        }
+        boolean stamped = end - start > TIME_PREFIX && line[start] == '['
+                && line[start + TIME_PREFIX - 2] == ']' && line[start + TIME_PREFIX - 1] == ' ';
+        if (!stamped) {
+            listener.onMessage(WireProtocol.KIND_SYSTEM, id, now, null, string(line, start, end));
+            return;
+        }
+        int rest = start + TIME_PREFIX;
+        int kind;
+        int senderStart;
+        if (startsWith(line, rest, end, PRIVATE_FROM)) {
+            kind = WireProtocol.KIND_PRIVATE_FROM;
+            senderStart = rest + PRIVATE_FROM.length;
+        } else if (startsWith(line, rest, end, PRIVATE_TO)) {
+            kind = WireProtocol.KIND_PRIVATE_TO;
+            senderStart = rest + PRIVATE_TO.length;
+        } else {
+            kind = WireProtocol.KIND_PUBLIC;
+            senderStart = rest;
+        }
+        byte[] separator = kind == WireProtocol.KIND_PUBLIC ? PUBLIC_SEPARATOR : PRIVATE_SEPARATOR;
+        int senderEnd = indexOf(line, senderStart, end, separator);
+        if (senderEnd < 0) {
+            listener.onMessage(WireProtocol.KIND_SYSTEM, id, now, null, string(line, rest, end));
+            return;
+        }
+        listener.onMessage(kind, id, now, string(line, senderStart, senderEnd), string(line, senderEnd + separator.length, end));
+    }
+
+    // Binary frames carry the same events with fixed fields, so nothing has to be parsed back out of display text
+    private void handleMessageFrame(WireProtocol.Payload payload) {
+        int kind = payload.readByte();
+        long id = payload.readLong();
+        long timestamp = payload.readLong();
+        String sender = payload.readString();
+        String body = payload.readString();
+        ChatLog.MESSAGES.debug("Client {}: Processing MESSAGE from {}: {}", name, sender, body);
+        listener.onMessage(kind, id, timestamp, kind == WireProtocol.KIND_SYSTEM ? null : sender, body);
+    }
+
+    private void handleTypingSetFrame(WireProtocol.Payload payload) {
+        String[] started = readNames(payload);
+        String[] stopped = readNames(payload);
+        ChatLog.TYPING.debug("Client {}: Processing TYPINGSET, {} started, {} stopped", name, started.length, stopped.length);
+        listener.onTyping(started, stopped);
+    }
+
+    private void handlePublicReactionsFrame(WireProtocol.Payload payload) {
+        int count = payload.readVarint();
+        long[] messageIds = new long[count];
+        String[] emojis = new String[count];
+        int[] totals = new int[count];
+        for (int i = 0; i < count; i++) {
+            messageIds[i] = payload.readLong();
+            emojis[i] = payload.readString();
+            totals[i] = payload.readVarint();
+        }
+        listener.onPublicReactions(messageIds, emojis, totals);
+    }
+
+    private void handleReactionFrame(WireProtocol.Payload payload) {
+        String user = payload.readString();
+        long messageId = payload.readLong();
+        listener.onReaction(user, messageId, payload.readString());
+    }
+
+    private void handleUserListFrame(WireProtocol.Payload payload) {
+        presenceEpoch = payload.readLong();
+        listener.onUserList(readNames(payload));
+    }
+
+    private void handlePresenceFrame(WireProtocol.Payload payload, boolean joined) {
+        long epoch = payload.readLong();
+        String user = payload.readString();
+        if (presenceEpoch < 0) {
+            return; // A snapshot is on its way and already includes this change
+        }
+        if (epoch != presenceEpoch + 1) {
+            // A delta was lost, e.g. dropped by a full queue on the server; start over from a snapshot
+            ChatLog.PRESENCE.warn("Client {}: Presence epoch {} after {}, requesting the user list", name, epoch, presenceEpoch);
+            presenceEpoch = -1;
+            command("/users");
+            return;
+        }
+        presenceEpoch = epoch;
+        if (joined) {
+            listener.onUserJoined(user);
+        } else {
+            listener.onUserLeft(user);
+        }
+    }
+
+    private static String[] readNames(WireProtocol.Payload payload) {
+        String[] names = new String[payload.readVarint()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = payload.readString();
+        }
+        return names;
+    }
+
+    // Byte-level helpers for text lines. Every delimiter is ASCII, and in UTF-8 an ASCII byte
+    // never occurs inside a multi-byte character, so these can search and split without decoding.
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static String string(byte[] bytes, int start, int end) {
+        return new String(bytes, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    private static int indexOf(byte[] bytes, int start, int end, byte b) {
+        for (int i = start; i < end; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(byte[] bytes, int start, int end, byte[] needle) {
+        for (int i = start; i <= end - needle.length; i++) {
+            if (startsWith(bytes, i, end, needle)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int lastIndexOf(byte[] bytes, int start, int end, byte b) {
+        for (int i = end - 1; i >= start; i--) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return start - 1;
+    }
+
+    private static boolean startsWith(byte[] bytes, int start, int end, byte[] prefix) {
+        return end - start >= prefix.length && Arrays.equals(bytes, start, start + prefix.length, prefix, 0, prefix.length);
+    }
+
+    private static boolean endsWith(byte[] bytes, int start, int end, byte[] suffix) {
+        return end - start >= suffix.length && Arrays.equals(bytes, end - suffix.length, end, suffix, 0, suffix.length);
+    }
+
+    // Whether word is one of the space-separated words in bytes[start, end)
+    private static boolean containsWord(byte[] bytes, int start, int end, byte[] word) {
+        while (start < end) {
+            int wordEnd = indexOf(bytes, start, end, (byte) ' ');
+            if (wordEnd < 0) {
+                wordEnd = end;
+            }
+            if (Arrays.equals(bytes, start, wordEnd, word, 0, word.length)) {
+                return true;
+            }
+            start = wordEnd + 1;
+        }
+        return false;
+    }
+
+    // A decimal number, optionally negative, filling bytes[start, end)
+    private static long parseLong(byte[] bytes, int start, int end) {
+        boolean negative = start < end && bytes[start] == '-';
+        int i = negative ? start + 1 : start;
+        if (i == end || end - i > 18) {
+            throw new NumberFormatException();
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException();
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    // The first prompt asks for the name; any later one means it was taken
+    private void onNamePrompt() {
+        if (namePrompted) {
+            name = listener.onNameTaken(name);
+        }
+        namePrompted = true;
+        sendName();
+    }
+
+    // Everything sent to the server goes through these, so it is encoded in the negotiated format
+    private void sendName() {
+        sendLock.lock();
+        try {
+            if (binaryOutput) {
+                sendBytes(encoder.start().writeString(name).toFrame(WireProtocol.NAME));
+            } else {
+                sendLine(name);
+            }
+        } finally {
+            sendLock.unlock();
+        }
+        ChatLog.PRESENCE.debug("Client {}: Sent name: {}", name, name);
+    }
+
+    void say(String message) {
+        sendLock.lock();
+        try {
+            if (binaryOutput) {
+                sendBytes(encoder.start().writeString(message).toFrame(WireProtocol.SAY));
+            } else {
+                sendLine(message);
+            }
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    void typing(boolean start) {
+        sendLock.lock();
+        try {
+            if (binaryOutput) {
+                sendBytes(encoder.start().writeBoolean(start).toFrame(WireProtocol.SET_TYPING));
+            } else {
+                sendLine(start ? "/typing start" : "/typing stop");
+            }
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    void privateMessage(String recipient, String message) {
+        sendLock.lock();
+        try {
+            if (binaryOutput) {
+                sendBytes(encoder.start().writeString(recipient).writeString(message).toFrame(WireProtocol.PM));
+            } else {
+                sendLine("/pm " + recipient + " " + message);
+            }
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    void privateTyping(String recipient, boolean start) {
+        sendLock.lock();
+        try {
+            if (binaryOutput) {
+                sendBytes(encoder.start().writeString(recipient).writeBoolean(start).toFrame(WireProtocol.SET_PMTYPING));
+            } else {
+                sendLine("/pmtyping " + recipient + (start ? " start" : " stop"));
+            }
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    void publicReaction(long messageId, String emoji) {
+        sendLock.lock();
+        try {
+            if (binaryOutput) {
+                sendBytes(encoder.start().writeLong(messageId).writeString(emoji).toFrame(WireProtocol.REACT_PUBLIC));
+            } else {
+                sendLine("/reaction_public " + messageId + " " + emoji);
+            }
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    void reaction(String recipient, long messageId, String emoji) {
+        sendLock.lock();
+        try {
+            if (binaryOutput) {
+                sendBytes(encoder.start().writeString(recipient).writeLong(messageId).writeString(emoji).toFrame(WireProtocol.REACT));
+            } else {
+                sendLine("/reaction " + recipient + " " + messageId + " " + emoji);
+            }
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    // Text-protocol commands that have no frame type of their own
+    void command(String line) {
+        sendLock.lock();
+        try {
+            if (binaryOutput) {
+                sendBytes(encoder.start().writeString(line).toFrame(WireProtocol.LINE));
+            } else {
+                sendLine(line);
+            }
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    private void sendLine(String line) {
+        sendBytes((line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void sendBytes(byte[] bytes) {
+        sendLock.lock();
+        try {
+            if (output == null || isClosed()) {
+                return;
+            }
+            output.write(bytes);
+            bytesSent += bytes.length;
+        } catch (IOException e) {
+            ChatLog.NETWORK.warn("Client {}: Error sending to server: {}", name, e.getMessage());
+        } finally {
+            sendLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package connectsphere;
+
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Asynchronous, level-gated logging shared by the server and the client. Callers pass a template
+// with {} placeholders and up to three arguments: a disabled level costs one array read, and an
+// enabled one only claims a slot in a bounded ring. Formatting and the blocking System.out/err
+// writes happen on a single background thread. When the ring is full, records are dropped and
+// counted rather than stalling the caller.
+//
+// Levels are set per category with --log.<category>=<level> or -Dconnectsphere.log.<category>,
+// and --log=<level> sets every category at once. Message bodies are off by default.
+final class ChatLog {
+    enum Level { OFF, ERROR, WARN, INFO, DEBUG }
+
+    static final ChatLog NETWORK = new ChatLog("network", Level.INFO);   // Connections, disconnects, I/O errors, server status
+    static final ChatLog PRESENCE = new ChatLog("presence", Level.INFO); // Joins, leaves and user lists
+    static final ChatLog TYPING = new ChatLog("typing", Level.WARN);     // Public and private typing indicators
+    static final ChatLog MESSAGES = new ChatLog("messages", Level.OFF);  // Message bodies, including private messages
+    static final ChatLog UI = new ChatLog("ui", Level.WARN);             // Client-side rendering, images and notifications
+    private static final ChatLog[] CATEGORIES = {NETWORK, PRESENCE, TYPING, MESSAGES, UI};
+
+    private static final int CAPACITY = 8192; // Power of two
+    private static final Slot[] ring = new Slot[CAPACITY];
+    private static final AtomicLong tail = new AtomicLong(); // Next slot to claim
+    private static long head = 0;                           // Next slot to print (logger thread only)
+    private static final AtomicLong dropped = new AtomicLong(); // Since startup
+    private static long reportedDropped = 0;                   // Already reported by drain()
+
+    private final String category;
+    private int threshold; // Level ordinal; set by configure() before other threads start
+
+    // A slot is free for position p when sequence == p and holds a record for p when sequence == p + 1
+    private static final class Slot {
+        volatile long sequence;
+        Level level;
+        String template;
+        Object arg0;
+        Object arg1;
+        Object arg2;
+        int argCount;
+    }
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            ring[i] = new Slot();
+            ring[i].sequence = i;
+        }
+        Thread writer = new Thread(ChatLog::drainForever, "chat-log");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(ChatLog::drain, "chat-log-flush"));
+    }
+
+    private ChatLog(String category, Level defaultLevel) {
+        this.category = category;
+        this.threshold = defaultLevel.ordinal();
+    }
+
+    // Call once at startup, before any other thread logs
+    static void configure(String[] args) {
+        String all = value(args, "log", null);
+        for (ChatLog log : CATEGORIES) {
+            String level = value(args, "log." + log.category, all);
+            if (level != null) {
+                log.threshold = Level.valueOf(level.toUpperCase(Locale.ROOT)).ordinal();
+            }
+        }
+    }
+
+    private static String value(String[] args, String key, String defaultValue) {
+        String prefix = "--" + key + "=";
+        for (String arg : args) {
+            if (arg.startsWith(prefix)) {
+                return arg.substring(prefix.length());
+            }
+        }
+        return System.getProperty("connectsphere." + key, defaultValue);
+    }
+
+    boolean isEnabled(Level level) {
+        return level.ordinal() <= threshold;
+    }
+
+    // Fixed-arity overloads keep disabled calls free of varargs arrays
+    void error(String template) {
+        if (isEnabled(Level.ERROR)) {
+            publish(Level.ERROR, template, 0, null, null, null);
+        }
+    }
+
+    void error(String template, Object a) {
+        if (isEnabled(Level.ERROR)) {
+            publish(Level.ERROR, template, 1, a, null, null);
+        }
+    }
+
+    void error(String template, Object a, Object b) {
+        if (isEnabled(Level.ERROR)) {
+            publish(Level.ERROR, template, 2, a, b, null);
+        }
+    }
+
+    void error(String template, Object a, Object b, Object c) {
+        if (isEnabled(Level.ERROR)) {
+            publish(Level.ERROR, template, 3, a, b, c);
+        }
+    }
+
+    void warn(String template) {
+        if (isEnabled(Level.WARN)) {
+            publish(Level.WARN, template, 0, null, null, null);
+        }
+    }
+
+    void warn(String template, Object a) {
+        if (isEnabled(Level.WARN)) {
+            publish(Level.WARN, template, 1, a, null, null);
+        }
+    }
+
+    void warn(String template, Object a, Object b) {
+        if (isEnabled(Level.WARN)) {
+            publish(Level.WARN, template, 2, a, b, null);
+        }
+    }
+
+    void warn(String template, Object a, Object b, Object c) {
+        if (isEnabled(Level.WARN)) {
+            publish(Level.WARN, template, 3, a, b, c);
+        }
+    }
+
+    void info(String template) {
+        if (isEnabled(Level.INFO)) {
+            publish(Level.INFO, template, 0, null, null, null);
+        }
+    }
+
+    void info(String template, Object a) {
+        if (isEnabled(Level.INFO)) {
+            publish(Level.INFO, template, 1, a, null, null);
+        }
+    }
+
+    void info(String template, Object a, Object b) {
+        if (isEnabled(Level.INFO)) {
+            publish(Level.INFO, template, 2, a, b, null);
+        }
+    }
+
+    void info(String template, Object a, Object b, Object c) {
+        if (isEnabled(Level.INFO)) {
+            publish(Level.INFO, template, 3, a, b, c);
+        }
+    }
+
+    void debug(String template) {
+        if (isEnabled(Level.DEBUG)) {
+            publish(Level.DEBUG, template, 0, null, null, null);
+        }
+    }
+
+    void debug(String template, Object a) {
+        if (isEnabled(Level.DEBUG)) {
+            publish(Level.DEBUG, template, 1, a, null, null);
+        }
+    }
+
+    void debug(String template, Object a, Object b) {
+        if (isEnabled(Level.DEBUG)) {
+            publish(Level.DEBUG, template, 2, a, b, null);
+        }
+    }
+
+    void debug(String template, Object a, Object b, Object c) {
+        if (isEnabled(Level.DEBUG)) {
+            publish(Level.DEBUG, template, 3, a, b, c);
+        }
+    }
+
+    // Records lost to a full ring since startup
+    static long droppedRecords() {
+        return dropped.get();
+    }
+
+    private static void publish(Level level, String template, int argCount, Object a, Object b, Object c) {
+        while (true) {
+            long position = tail.get();
+            Slot slot = ring[(int) (position & (CAPACITY - 1))];
+            long sequence = slot.sequence;
+            if (sequence < position) {
+                dropped.incrementAndGet(); // Ring is full; never block the caller
+                return;
+            }
+            if (sequence == position && tail.compareAndSet(position, position + 1)) {
+                slot.level = level;
+                slot.template = template;
+                slot.arg0 = a;
+                slot.arg1 = b;
+                slot.arg2 = c;
+                slot.argCount = Math.min(argCount, 3);
+                slot.sequence = position + 1; // Publishes the fields above to the logger thread
+                return;
+            }
+        }
+    }
+
+    private static void drainForever() {
+        while (true) {
+            if (!drain()) {
+                LockSupport.parkNanos(1_000_000L);
+            }
+        }
+    }
+
+    // Prints every published record; returns false if there was nothing to print
+    private static synchronized boolean drain() {
+        boolean printed = false;
+        StringBuilder line = new StringBuilder(128);
+        while (true) {
+            Slot slot = ring[(int) (head & (CAPACITY - 1))];
+            if (slot.sequence != head + 1) {
+                break;
+            }
+            line.setLength(0);
+            format(line, slot.template, slot.argCount, slot.arg0, slot.arg1, slot.arg2);
+            PrintStream stream = slot.level.ordinal() <= Level.WARN.ordinal() ? System.err : System.out;
+            slot.template = null;
+            slot.arg0 = slot.arg1 = slot.arg2 = null;
+            slot.sequence = head + CAPACITY; // Free the slot for the next lap
+            head++;
+            stream.println(line);
+            printed = true;
+        }
+        long lost = dropped.get() - reportedDropped;
+        reportedDropped += lost;
+        if (lost > 0) {
+            System.err.println("ChatLog: dropped " + lost + " log records (ring full)");
+        }
+        return printed;
+    }
+
+    private static void format(StringBuilder out, String template, int argCount, Object a, Object b, Object c) {
+        int argIndex = 0;
+        int from = 0;
+        int at;
+        while (argIndex < argCount && (at = template.indexOf("{}", from)) >= 0) {
+            out.append(template, from, at).append(argIndex == 0 ? a : argIndex == 1 ? b : c);
+            argIndex++;
+            from = at + 2;
+        }
+        out.append(template, from, template.length());
+    }
+}
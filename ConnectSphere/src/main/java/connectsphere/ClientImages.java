@@ -0,0 +1,145 @@
+package connectsphere;
+
+import javax.imageio.ImageIO;
+import javax.swing.SwingUtilities;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+// The client's logos, decoded and scaled off the EDT. Each image is read once from the classpath
+// (images/ in the jar) on a single background thread. Scaled variants are cached by use and
+// size, so resizing back to a size seen before, or reopening a window, costs nothing. Requests
+// are made on the EDT, and results are delivered there.
+final class ClientImages {
+    static final String LETTERING = "FullLogoLettering_Transparent.png"; // Connection panel
+    static final String LOGO = "FullLogo_Transparent.png";              // Public chat background
+    static final String LOGO_ON_NAVY = "FullLogo_NoBuffer.jpg";         // Taskbar icon, private chat background
+
+    private static final int MAX_SCALED = 16; // Recent sizes kept; a window drag passes through many
+
+    // Draws one use of an image, e.g. the faded chat background, at a given size. The instance
+    // is part of the cache key, so each use is a single shared constant.
+    interface Scaler {
+        BufferedImage scale(BufferedImage source, int width, int height);
+    }
+
+    private static final ExecutorService loader = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "image-loader");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.NORM_PRIORITY - 1); // Behind the EDT and the reader
+        return thread;
+    });
+    // Both maps are used on the EDT only; the futures complete on the loader thread
+    private static final Map<String, CompletableFuture<BufferedImage>> originals = new HashMap<>();
+    private static final Map<Key, CompletableFuture<BufferedImage>> scaled =
+            new LinkedHashMap<Key, CompletableFuture<BufferedImage>>(32, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, CompletableFuture<BufferedImage>> eldest) {
+                    return size() > MAX_SCALED;
+                }
+            };
+
+    private ClientImages() {
+    }
+
+    // Starts decoding an image early, e.g. while the user types their name
+    static void preload(String resource) {
+        original(resource);
+    }
+
+    // Calls onReady on the EDT with resource drawn by scaler at width x height. Nothing is called
+    // if the image cannot be loaded; that is logged once.
+    static void scaled(String resource, Scaler scaler, int width, int height, Consumer<BufferedImage> onReady) {
+        Key key = new Key(resource, scaler, width, height);
+        CompletableFuture<BufferedImage> image = scaled.get(key);
+        if (image == null) {
+            image = original(resource).thenApplyAsync(source -> scaler.scale(source, width, height), loader);
+            scaled.put(key, image);
+        }
+        image.thenAccept(result -> SwingUtilities.invokeLater(() -> onReady.accept(result)));
+    }
+
+    private static CompletableFuture<BufferedImage> original(String resource) {
+        return originals.computeIfAbsent(resource, name -> CompletableFuture.supplyAsync(() -> decode(name), loader));
+    }
+
+    private static BufferedImage decode(String resource) {
+        try (InputStream in = ClientImages.class.getResourceAsStream("/images/" + resource)) {
+            BufferedImage image = in == null ? null : ImageIO.read(in);
+            if (image == null) {
+                ChatLog.UI.warn("Client: Image '{}' is missing from the classpath or unreadable", resource);
+                throw new IllegalStateException("No image " + resource);
+            }
+            ChatLog.UI.debug("Client: Decoded image {}, {}x{}", resource, image.getWidth(), image.getHeight());
+            return image;
+        } catch (IOException e) {
+            ChatLog.UI.warn("Client: Error reading image '{}': {}", resource, e.getMessage());
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Draws source into g at the given bounds. Large reductions are done in halving steps, so
+    // bilinear filtering stays smooth; this is the quality of Image.SCALE_SMOOTH at a fraction
+    // of its cost.
+    static void drawScaled(Graphics2D g, BufferedImage source, int x, int y, int width, int height) {
+        BufferedImage step = source;
+        while (step.getWidth() / 2 >= width && step.getHeight() / 2 >= height) {
+            BufferedImage half = new BufferedImage(step.getWidth() / 2, step.getHeight() / 2, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D halfGraphics = half.createGraphics();
+            halfGraphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            halfGraphics.drawImage(step, 0, 0, half.getWidth(), half.getHeight(), null);
+            halfGraphics.dispose();
+            step = half;
+        }
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(step, x, y, width, height, null);
+    }
+
+    // source scaled to fit within maxWidth x maxHeight, keeping its aspect ratio
+    static BufferedImage fit(BufferedImage source, int maxWidth, int maxHeight) {
+        double scale = Math.min((double) maxWidth / source.getWidth(), (double) maxHeight / source.getHeight());
+        int width = Math.max(1, (int) (source.getWidth() * scale));
+        int height = Math.max(1, (int) (source.getHeight() * scale));
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        drawScaled(g, source, 0, 0, width, height);
+        g.dispose();
+        return image;
+    }
+
+    private static final class Key {
+        final String resource;
+        final Scaler scaler;
+        final int width;
+        final int height;
+
+        Key(String resource, Scaler scaler, int width, int height) {
+            this.resource = resource;
+            this.scaler = scaler;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return resource.equals(other.resource) && scaler == other.scaler && width == other.width && height == other.height;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((resource.hashCode() * 31 + System.identityHashCode(scaler)) * 31 + width) * 31 + height;
+        }
+    }
+}
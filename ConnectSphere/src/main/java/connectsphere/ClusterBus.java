@@ -0,0 +1,176 @@
+package connectsphere;
+
+import java.util.function.Consumer;
+
+// Carries every state-changing event between the nodes of a cluster: name claims and releases,
+// public and private messages, typing changes and reactions. Sessions never change shared state
+// directly; they publish an event, and each node applies every event, its own included, in one
+// global order. Every node therefore arrives at the same user list, message ids and reaction
+// totals without any other coordination. A name claim, for instance, is granted on every node
+// exactly when no earlier event in that order holds the name.
+//
+// A single server uses Standalone, which applies each event at once on the publishing thread.
+// TcpClusterBus links several servers, on one machine or across a network.
+interface ClusterBus {
+    // Sends event to every node, this one included; false if this node is cut off from the cluster
+    boolean publish(Event event);
+
+    // This server's name within the cluster; claims and releases carry it
+    String nodeId();
+
+    // A single server: events are applied as they are published
+    final class Standalone implements ClusterBus {
+        private final String nodeId;
+        private final Consumer<Event> deliver;
+
+        Standalone(String nodeId, Consumer<Event> deliver) {
+            this.nodeId = nodeId;
+            this.deliver = deliver;
+        }
+
+        @Override
+        public boolean publish(Event event) {
+            deliver.accept(event);
+            return true;
+        }
+
+        @Override
+        public String nodeId() {
+            return nodeId;
+        }
+    }
+
+    // One event. The type codes double as frame types on links between servers, above the range
+    // clients use. Every event is encoded with the same fields, and the ones a type does not use are
+    // empty; the comments list the fields each type uses.
+    final class Event {
+        static final int CLAIM = 0x80;           // node, id: claim id, value: timestamp, user: name
+        static final int RELEASE = 0x81;         // node, id: claim id, value: timestamp, user: name
+        static final int SAY = 0x82;             // value: timestamp, user: sender, text: body
+        static final int PRIVATE_MESSAGE = 0x83; // value: timestamp, user: sender, peer: recipient, text: body
+        static final int TYPING = 0x84;          // user, flag: start
+        static final int PRIVATE_TYPING = 0x85;  // user, peer: recipient, flag: start
+        static final int PUBLIC_REACTION = 0x86; // user, id: message id, text: emoji
+        static final int REACTION = 0x87;        // user, peer: recipient, id: message id, text: emoji
+        static final int NODE_DOWN = 0x88;       // node, value: timestamp; everyone connected there has left
+        // Link set-up: a joining node says hello, and the hub answers with its state
+        static final int HELLO = 0x90;           // node
+        static final int SYNC_BEGIN = 0x91;      // id: first message id that follows, value: presence epoch
+        static final int SYNC_MESSAGE = 0x92;    // frame: a stored binary MESSAGE frame
+        static final int SYNC_MEMBER = 0x93;     // node, id: claim id, user: name
+        static final int SYNC_REACTION = 0x94;   // id: message id, text: emoji, user: one who reacted with it
+        static final int SYNC_PRIVATE = 0x96;    // id: private message id, user: sender, peer: recipient
+        static final int SYNC_END = 0x95;        // value: last private message id
+        // Never sent: tells this node its link to the cluster is gone
+        static final int DETACHED = 0x9F;
+
+        final int type;
+        final String node;
+        final long id;
+        final long value;
+        final String user;
+        final String peer;
+        final String text;
+        final boolean flag;
+        final byte[] frame;
+
+        private Event(int type, String node, long id, long value, String user, String peer, String text,
+                      boolean flag, byte[] frame) {
+            this.type = type;
+            this.node = node;
+            this.id = id;
+            this.value = value;
+            this.user = user;
+            this.peer = peer;
+            this.text = text;
+            this.flag = flag;
+            this.frame = frame;
+        }
+
+        static Event claim(String node, long claimId, String name, long timestamp) {
+            return new Event(CLAIM, node, claimId, timestamp, name, "", "", false, null);
+        }
+
+        static Event release(String node, long claimId, String name, long timestamp) {
+            return new Event(RELEASE, node, claimId, timestamp, name, "", "", false, null);
+        }
+
+        static Event say(String sender, long timestamp, String body) {
+            return new Event(SAY, "", 0, timestamp, sender, "", body, false, null);
+        }
+
+        static Event privateMessage(String sender, String recipient, long timestamp, String body) {
+            return new Event(PRIVATE_MESSAGE, "", 0, timestamp, sender, recipient, body, false, null);
+        }
+
+        static Event typing(String user, boolean start) {
+            return new Event(TYPING, "", 0, 0, user, "", "", start, null);
+        }
+
+        static Event privateTyping(String user, String recipient, boolean start) {
+            return new Event(PRIVATE_TYPING, "", 0, 0, user, recipient, "", start, null);
+        }
+
+        static Event publicReaction(String user, long messageId, String emoji) {
+            return new Event(PUBLIC_REACTION, "", messageId, 0, user, "", emoji, false, null);
+        }
+
+        static Event reaction(String user, String recipient, long messageId, String emoji) {
+            return new Event(REACTION, "", messageId, 0, user, recipient, emoji, false, null);
+        }
+
+        static Event nodeDown(String node, long timestamp) {
+            return new Event(NODE_DOWN, node, 0, timestamp, "", "", "", false, null);
+        }
+
+        static Event hello(String node) {
+            return new Event(HELLO, node, 0, 0, "", "", "", false, null);
+        }
+
+        static Event syncBegin(long firstMessageId, long presenceEpoch) {
+            return new Event(SYNC_BEGIN, "", firstMessageId, presenceEpoch, "", "", "", false, null);
+        }
+
+        static Event syncMessage(byte[] binaryFrame) {
+            return new Event(SYNC_MESSAGE, "", 0, 0, "", "", "", false, binaryFrame);
+        }
+
+        static Event syncMember(String node, long claimId, String name) {
+            return new Event(SYNC_MEMBER, node, claimId, 0, name, "", "", false, null);
+        }
+
+        static Event syncReaction(long messageId, String emoji, String user) {
+            return new Event(SYNC_REACTION, "", messageId, 0, user, "", emoji, false, null);
+        }
+
+        static Event syncPrivate(long messageId, String sender, String recipient) {
+            return new Event(SYNC_PRIVATE, "", messageId, 0, sender, recipient, "", false, null);
+        }
+
+        static Event syncEnd(long lastPrivateMessageId) {
+            return new Event(SYNC_END, "", 0, lastPrivateMessageId, "", "", "", false, null);
+        }
+
+        static Event detached() {
+            return new Event(DETACHED, "", 0, 0, "", "", "", false, null);
+        }
+
+        byte[] encode() {
+            return WireProtocol.encoder().writeString(node).writeLong(id).writeLong(value).writeString(user)
+                    .writeString(peer).writeString(text).writeBoolean(flag).writeBytes(frame != null ? frame : new byte[0])
+                    .toFrame(type);
+        }
+
+        static Event decode(int type, WireProtocol.Payload payload) {
+            String node = payload.readString();
+            long id = payload.readLong();
+            long value = payload.readLong();
+            String user = payload.readString();
+            String peer = payload.readString();
+            String text = payload.readString();
+            boolean flag = payload.readBoolean();
+            byte[] frame = payload.readBytes();
+            return new Event(type, node, id, value, user, peer, text, flag, frame.length > 0 ? frame : null);
+        }
+    }
+}
@@ -0,0 +1,1393 @@
+package connectsphere;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.*;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+
+public class ConnectSphereClient extends JFrame {
+    private static final long serialVersionUID = 1L;
+
+    private JTextField messageField;
+    private JList<ChatMessage> chatList; // Use JList for public chat messages
+    private Conversation chatListModel; // The public chat, and the model of its JList
+    private JComboBox<String> emojiPicker; // Emoji picker for public chat
+    private JTextField serverField;
+    private JTextField portField;
+    private JButton connectButton;
+    private JButton sendButton;
+    private JButton privateChatButton;
+    private JLabel notificationDot; // Red dot for unread message notification
+    private static boolean preferBinary = true; // --wire=text keeps this client on the text protocol
+    private ChatClient client; // The protocol side of the current connection; null before the first one
+    private String name;
+    private boolean isConnected = false;
+    private JList<String> userList;
+    private DefaultListModel<String> userListModel;
+    private final Set<String> onlineUsers = new HashSet<>(); // Same names as userListModel, for lookups
+    private PrivateChatBox privateChatBox;
+    private final Set<String> typingUsers = new LinkedHashSet<>(); // Public typers, in the order they started
+    private JLabel typingLabel; // Footer under the public chat showing typingUsers
+    private static final int TYPING_FOOTER_HEIGHT = 20;
+    private static final String[][] REACTIONS = {{"❤️", "Heart"}, {"👍", "Thumbs Up"}, {"👎", "Thumbs Down"}, {"👏", "Clapping Hands"}, {"🎉", "Party Popper"}};
+    private static final int BACKDROP_DELAY_MS = 150; // Quiet time after a resize before the backdrop is redrawn
+
+    // The faded logo behind the public chat: as large as fits in the pane, centered, at 50% opacity
+    private static final ClientImages.Scaler CHAT_BACKDROP = (source, width, height) -> {
+        BufferedImage logo = ClientImages.fit(source, width, height);
+        BufferedImage backdrop = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = backdrop.createGraphics();
+        g.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 0.5f));
+        g.drawImage(logo, (width - logo.getWidth()) / 2, (height - logo.getHeight()) / 2, null);
+        g.dispose();
+        return backdrop;
+    };
+    // The taskbar icon, stretched to a square
+    private static final ClientImages.Scaler ICON = (source, width, height) -> {
+        BufferedImage icon = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = icon.createGraphics();
+        ClientImages.drawScaled(g, source, 0, 0, width, height);
+        g.dispose();
+        return icon;
+    };
+    // Logos that keep their aspect ratio within a box
+    private static final ClientImages.Scaler FIT = ClientImages::fit;
+    private static int chatWindow = 1000; // --chat-window: lines kept per conversation; older ones are dropped
+    private final InboundQueue inbound = new InboundQueue(this::beginInboundBatch, this::endInboundBatch);
+    private boolean publicChatGrew = false; // The public chat has lines its list has not scrolled to yet
+    private final Map<String, Boolean> privateArrivals = new LinkedHashMap<>(); // Batch's private chats -> any incoming
+    private final Map<String, Conversation> privateMessages = new HashMap<>(); // Lowercased user -> private conversation
+    private Map<String, Integer> unreadMessages = new HashMap<>(); // Track unread messages per user
+    private Timer typingTimer; // Timer to detect when typing stops
+    private boolean isTyping = false; // Track if this client is typing
+    private long lastTypingStartSent = 0; // The server expires a "start" that is not refreshed
+    private static final long TYPING_REFRESH_MS = 3000;
+    protected final String[] emojiOptions = {"❤️", "👍", "😂", "😊"}; // Made protected for access by inner class
+    private JLabel backgroundLabel; // Primary label for image
+    private Timer backdropTimer; // Rescales the chat backdrop once a resize settles
+    private JLayeredPane chatLayeredPane; // Moved to class field
+    private JScrollPane chatScrollPane; // Added as class field
+
+    // Class to represent a chat message with ID and reactions, one row of a chat list. The id is
+    // assigned by the server and is the same on every client; it is -1 for local lines and
+    // server notices, which carry none. Rows are painted on every repaint and scroll, so
+    // the display text and its cut to the row's width are built once and kept until a reaction.
+    static class ChatMessage {
+        private static final DateTimeFormatter DATE_TIME =
+                DateTimeFormatter.ofPattern("MM/dd/yyyy HH:mm:ss").withZone(ZoneId.systemDefault());
+        // Messages come in bursts, so the last formatted second is usually the one needed next
+        private static volatile FormattedSecond lastSecond = new FormattedSecond(Long.MIN_VALUE, "");
+
+        private static final class FormattedSecond {
+            final long second;
+            final String text;
+
+            FormattedSecond(long second, String text) {
+                this.second = second;
+                this.text = text;
+            }
+        }
+
+        final String message;
+        final long messageId;
+        final long timestamp; // Epoch millis: the server's clock when the message carries one, else arrival
+        Map<String, Integer> reactions; // Emoji -> count, in first-seen order; null until the first reaction
+        private String display; // toString(), built on first use; null when stale
+        private String fitted; // toString() fitted to fittedWidth by fitted(); null when stale
+        private boolean cut; // Whether fitted had to be cut
+        private int fittedWidth;
+        private FontMetrics fittedMetrics;
+
+        ChatMessage(String message, long messageId) {
+            this(message, messageId, System.currentTimeMillis());
+        }
+
+        ChatMessage(String message, long messageId, long timestamp) {
+            this.message = message;
+            this.messageId = messageId;
+            this.timestamp = timestamp;
+        }
+
+        // Public counts come from the server as totals
+        void setReactionCount(String emoji, int count) {
+            if (reactions == null) {
+                reactions = new LinkedHashMap<>();
+            }
+            reactions.put(emoji, count);
+            display = null;
+            fitted = null;
+        }
+
+        // Private reactions arrive one at a time
+        void addReaction(String emoji) {
+            if (reactions == null) {
+                reactions = new LinkedHashMap<>();
+            }
+            reactions.merge(emoji, 1, Integer::sum);
+            display = null;
+            fitted = null;
+        }
+
+        @Override
+        public String toString() {
+            String text = display;
+            if (text == null) {
+                StringBuilder sb = new StringBuilder();
+                sb.append('[').append(formatTime(timestamp)).append("] ").append(message);
+                if (reactions != null) {
+                    sb.append("   Reactions:"); // Rows are one line high
+                    for (Map.Entry<String, Integer> reaction : reactions.entrySet()) {
+                        sb.append(' ').append(reaction.getKey()).append(' ').append(reaction.getValue());
+                    }
+                }
+                text = sb.toString();
+                display = text;
+            }
+            return text;
+        }
+
+        // toString(), cut with an ellipsis if needed to fit width pixels. The result is cached
+        // until the text, the width or the font changes.
+        String fitted(FontMetrics metrics, int width) {
+            if (fitted != null && fittedWidth == width && fittedMetrics == metrics) {
+                return fitted;
+            }
+            String text = toString();
+            fittedWidth = width;
+            fittedMetrics = metrics;
+            cut = metrics.stringWidth(text) > width;
+            if (!cut) {
+                fitted = text;
+                return text;
+            }
+            // The longest prefix that fits together with the ellipsis
+            char[] chars = text.toCharArray();
+            int room = width - metrics.charWidth('…');
+            int low = 0;
+            int high = chars.length;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (metrics.charsWidth(chars, 0, mid) <= room) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            if (low > 0 && Character.isHighSurrogate(text.charAt(low - 1))) {
+                low--; // Never split a character such as an emoji
+            }
+            fitted = text.substring(0, low) + "…";
+            return fitted;
+        }
+
+        // Whether fitted(metrics, width) cuts the line, e.g. so it needs a tooltip
+        boolean isCut(FontMetrics metrics, int width) {
+            fitted(metrics, width);
+            return cut;
+        }
+
+        // [MM/dd/yyyy HH:mm:ss] for timestamp; DateTimeFormatter is thread-safe, unlike SimpleDateFormat
+        private static String formatTime(long timestamp) {
+            long second = Math.floorDiv(timestamp, 1000);
+            FormattedSecond cached = lastSecond;
+            if (cached.second != second) {
+                cached = new FormattedSecond(second, DATE_TIME.format(Instant.ofEpochSecond(second)));
+                lastSecond = cached;
+            }
+            return cached.text;
+        }
+    }
+
+    public ConnectSphereClient() {
+        setTitle("ConnectSphere Chat Client");
+        setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
+        setLayout(new BorderLayout());
+        setResizable(true); // Enable window resizing
+        setMinimumSize(new Dimension(800, 400)); // Set minimum size to ensure usability
+
+        // Define color theme
+        Color logoColor = new Color(13, 25, 64); // #0D1940
+
+        // Layered pane for chat area
+        chatLayeredPane = new JLayeredPane();
+        chatLayeredPane.setPreferredSize(new Dimension(650, 300)); // Default size for initial state
+        add(chatLayeredPane, BorderLayout.CENTER);
+
+        // Background label as primary
+        backgroundLabel = new JLabel();
+        backgroundLabel.setOpaque(false); // Let the image handle opacity
+        backgroundLabel.setHorizontalAlignment(SwingConstants.CENTER); // An old backdrop stays centered until its replacement arrives
+        backgroundLabel.setBounds(0, 0, 650, 300); // Initial bounds
+        chatLayeredPane.add(backgroundLabel, Integer.valueOf(0)); // Bottom layer
+
+        // Chat list
+        chatListModel = new Conversation(chatWindow);
+        chatList = new JList<ChatMessage>(chatListModel);
+        chatList.setBackground(new Color(0, 0, 0, 0)); // Transparent background
+        chatList.setForeground(Color.BLACK);
+        chatList.setOpaque(false); // Ensure transparency
+        ChatCellRenderer.install(chatList); // Fixed-height rows; the list never measures its cells
+
+        // Add context menu for reactions in public chat
+        JPopupMenu publicContextMenu = new JPopupMenu();
+        for (String[] reaction : REACTIONS) {
+            JMenuItem item = new JMenuItem(reaction[0] + " " + reaction[1]);
+            item.addActionListener(e -> addPublicReaction(chatList.getSelectedIndex(), reaction[0]));
+            publicContextMenu.add(item);
+        }
+        chatList.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (SwingUtilities.isRightMouseButton(e)) {
+                    int index = chatList.locationToIndex(e.getPoint());
+                    if (index >= 0) {
+                        chatList.setSelectedIndex(index);
+                        publicContextMenu.show(chatList, e.getX(), e.getY());
+                    }
+                }
+            }
+        });
+
+        // Add chat list to scroll pane
+        chatScrollPane = new JScrollPane(chatList); // Use class field
+        chatScrollPane.setBounds(0, 0, 650, 300 - TYPING_FOOTER_HEIGHT); // Initial bounds, above the typing footer
+        chatScrollPane.setBackground(new Color(0, 0, 0, 0)); // Fully transparent background
+        chatScrollPane.setOpaque(false); // Ensure transparency
+        chatScrollPane.getViewport().setOpaque(false); // Ensure viewport transparency
+        chatScrollPane.setBorder(BorderFactory.createLineBorder(logoColor, 5));
+        chatLayeredPane.add(chatScrollPane, Integer.valueOf(1)); // Above background
+
+        // Typing indicators live in their own footer, so typing churn never touches the message list
+        typingLabel = new JLabel();
+        typingLabel.setFont(typingLabel.getFont().deriveFont(Font.ITALIC));
+        typingLabel.setForeground(logoColor);
+        typingLabel.setBorder(BorderFactory.createEmptyBorder(0, 8, 0, 8));
+        typingLabel.setBounds(0, 300 - TYPING_FOOTER_HEIGHT, 650, TYPING_FOOTER_HEIGHT);
+        chatLayeredPane.add(typingLabel, Integer.valueOf(1));
+
+        // Resizing lays the chat area out at once; the backdrop is redrawn off the EDT once the size settles
+        backdropTimer = new Timer(BACKDROP_DELAY_MS, e -> requestBackdrop());
+        backdropTimer.setRepeats(false);
+        chatLayeredPane.addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(ComponentEvent e) {
+                layoutChatArea();
+            }
+        });
+
+        // Connection panel with logo in top left
+        JPanel connectPanel = new JPanel(new GridBagLayout());
+        connectPanel.setBackground(logoColor);
+
+        GridBagConstraints gbc = new GridBagConstraints();
+        gbc.insets = new Insets(5, 5, 5, 5); // Padding around components
+        gbc.fill = GridBagConstraints.NONE; // Prevent stretching
+
+        // Add logo with controlled size and left alignment
+        JLabel logoLabel = new JLabel();
+        logoLabel.setHorizontalAlignment(SwingConstants.LEFT);
+        ClientImages.scaled(ClientImages.LETTERING, FIT, 350, 87, image -> logoLabel.setIcon(new ImageIcon(image)));
+        gbc.gridx = 0; gbc.gridy = 0; gbc.anchor = GridBagConstraints.WEST;
+        gbc.weightx = 0.2;
+        connectPanel.add(logoLabel, gbc);
+
+        // Add connection controls in a horizontal FlowLayout
+        JPanel controlsPanel = new JPanel(new FlowLayout());
+        controlsPanel.setBackground(logoColor);
+
+        JLabel serverLabel = new JLabel("Server:");
+        serverLabel.setForeground(Color.WHITE);
+        controlsPanel.add(serverLabel);
+        serverField = new JTextField("localhost", 15);
+        serverField.setBackground(Color.WHITE);
+        serverField.setForeground(Color.BLACK);
+        controlsPanel.add(serverField);
+        JLabel portLabel = new JLabel("Port:");
+        portLabel.setForeground(Color.WHITE);
+        controlsPanel.add(portLabel);
+        portField = new JTextField("5555", 5);
+        portField.setBackground(Color.WHITE);
+        portField.setForeground(Color.BLACK);
+        controlsPanel.add(portField);
+        connectButton = new JButton("Connect");
+        connectButton.setBackground(Color.WHITE);
+        connectButton.setForeground(logoColor);
+        controlsPanel.add(connectButton);
+
+        gbc.gridx = 1; gbc.gridy = 0; gbc.anchor = GridBagConstraints.CENTER;
+        gbc.weightx = 0.8;
+        connectPanel.add(controlsPanel, gbc);
+
+        add(connectPanel, BorderLayout.NORTH);
+
+        // User list panel (on the right)
+        JPanel userPanel = new JPanel(new BorderLayout());
+        userPanel.setBackground(logoColor);
+        userListModel = new DefaultListModel<>();
+        userList = new JList<>(userListModel);
+        userList.setBackground(Color.WHITE);
+        userList.setForeground(Color.BLACK);
+        JScrollPane userListScrollPane = new JScrollPane(userList);
+        userListScrollPane.setBackground(logoColor);
+        userListScrollPane.setBorder(BorderFactory.createTitledBorder(
+            BorderFactory.createLineBorder(logoColor), "Online Users", 0, 0, null, Color.WHITE));
+        userPanel.add(userListScrollPane, BorderLayout.CENTER);
+
+        // Private Chat button with notification dot
+        privateChatButton = new JButton("Private Chat");
+        privateChatButton.setEnabled(false);
+        privateChatButton.setBackground(Color.WHITE);
+        privateChatButton.setForeground(logoColor);
+        privateChatButton.addActionListener(this::openPrivateChatBox);
+
+        // Use JLayeredPane to overlay the notification dot on the button
+        JLayeredPane buttonPanel = new JLayeredPane();
+        buttonPanel.setBackground(logoColor);
+        privateChatButton.setBounds(0, 0, 150, 30);
+        buttonPanel.add(privateChatButton, JLayeredPane.DEFAULT_LAYER);
+
+        // Add a red dot for notifications, on the left
+        notificationDot = new JLabel() {
+            @Override
+            protected void paintComponent(Graphics g) {
+                super.paintComponent(g);
+                g.setColor(Color.RED);
+                g.fillOval(0, 0, getWidth() - 1, getHeight() - 1);
+                g.setColor(Color.BLACK);
+                g.drawOval(0, 0, getWidth() - 1, getHeight() - 1);
+            }
+        };
+        notificationDot.setPreferredSize(new Dimension(15, 15));
+        notificationDot.setBounds(0, 0, 15, 15);
+        notificationDot.setVisible(false);
+        buttonPanel.add(notificationDot, JLayeredPane.PALETTE_LAYER);
+        buttonPanel.setPreferredSize(new Dimension(150, 30));
+
+        JPanel southPanel = new JPanel(new GridLayout(1, 1));
+        southPanel.setBackground(logoColor);
+        southPanel.add(buttonPanel);
+        userPanel.add(southPanel, BorderLayout.SOUTH);
+        userPanel.setPreferredSize(new Dimension(150, 0));
+        add(userPanel, BorderLayout.EAST);
+
+        // Message input panel (for public chat)
+        JPanel messagePanel = new JPanel(new BorderLayout());
+        messagePanel.setBackground(logoColor);
+        messageField = new JTextField();
+        messageField.setBackground(Color.WHITE);
+        messageField.setForeground(Color.BLACK);
+
+        emojiPicker = new JComboBox<>(emojiOptions);
+        emojiPicker.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                String selectedEmoji = (String) emojiPicker.getSelectedItem();
+                if (selectedEmoji != null) {
+                    messageField.setText(messageField.getText() + selectedEmoji);
+                    messageField.requestFocus();
+                }
+            }
+        });
+
+        sendButton = new JButton("Send");
+        sendButton.setEnabled(false);
+        sendButton.setBackground(Color.WHITE);
+        sendButton.setForeground(logoColor);
+
+        JPanel inputPanel = new JPanel(new BorderLayout());
+        inputPanel.setBackground(logoColor);
+        inputPanel.add(emojiPicker, BorderLayout.WEST);
+        inputPanel.add(messageField, BorderLayout.CENTER);
+        inputPanel.add(sendButton, BorderLayout.EAST);
+
+        messagePanel.add(inputPanel, BorderLayout.CENTER);
+        add(messagePanel, BorderLayout.SOUTH);
+
+        // Event listeners
+        connectButton.addActionListener(this::connectToServer);
+        sendButton.addActionListener(this::sendMessage);
+        messageField.addActionListener(this::sendMessage);
+
+        // Typing detection for public chat
+        typingTimer = new Timer(2000, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if (isTyping) {
+                    isTyping = false;
+                    if (client != null) {
+                        client.typing(false);
+                        ChatLog.TYPING.debug("Client {}: Sent /typing stop", name);
+                    }
+                }
+            }
+        });
+        typingTimer.setRepeats(false);
+
+        messageField.addKeyListener(new KeyAdapter() {
+            @Override
+            public void keyTyped(KeyEvent event) {
+                long now = System.currentTimeMillis();
+                if ((!isTyping || now - lastTypingStartSent >= TYPING_REFRESH_MS) && isConnected) {
+                    isTyping = true;
+                    if (client != null) {
+                        client.typing(true);
+                        lastTypingStartSent = now;
+                        ChatLog.TYPING.debug("Client {}: Sent /typing start", name);
+                    } else {
+                        ChatLog.NETWORK.warn("Client {}: Failed to send /typing start - not connected", name);
+                    }
+                }
+                typingTimer.restart();
+            }
+        });
+
+        // Handle window closing
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                disconnect();
+                System.exit(0);
+            }
+        });
+
+        // The taskbar icon arrives once decoded; the frame shows without waiting for it
+        ClientImages.scaled(ClientImages.LOGO_ON_NAVY, ICON, 64, 64, this::setIconImage);
+        ClientImages.preload(ClientImages.LOGO); // Decoded while the name prompt is up
+        pack(); // Use pack() to let layout manager size the frame
+        setVisible(true);
+        revalidate(); // Ensure layout is updated
+        repaint();    // Force frame repaint
+
+        // Prompt for username
+        name = JOptionPane.showInputDialog(this, "Enter your name:", "Name Entry", JOptionPane.PLAIN_MESSAGE);
+        if (name == null || name.trim().isEmpty()) {
+            System.exit(0);
+        }
+        name = name.trim();
+    }
+
+    // Fits the chat list, typing footer and backdrop to the chat area
+    private void layoutChatArea() {
+        int width = chatLayeredPane.getWidth();
+        int height = chatLayeredPane.getHeight();
+        backgroundLabel.setBounds(0, 0, width, height);
+        chatScrollPane.setBounds(0, 0, width, height - TYPING_FOOTER_HEIGHT);
+        typingLabel.setBounds(0, height - TYPING_FOOTER_HEIGHT, width, TYPING_FOOTER_HEIGHT);
+        chatLayeredPane.revalidate();
+        chatLayeredPane.repaint();
+        backdropTimer.restart();
+    }
+
+    private void requestBackdrop() {
+        int width = chatLayeredPane.getWidth();
+        int height = chatLayeredPane.getHeight();
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        ClientImages.scaled(ClientImages.LOGO, CHAT_BACKDROP, width, height, image -> {
+            // A backdrop for a size the pane has since left is dropped; the newer one is on its way
+            if (image.getWidth() == chatLayeredPane.getWidth() && image.getHeight() == chatLayeredPane.getHeight()) {
+                backgroundLabel.setIcon(new ImageIcon(image));
+                ChatLog.UI.debug("Client {}: Chat backdrop set for {}x{}", name, width, height);
+            }
+        });
+    }
+
+    private void connectToServer(ActionEvent e) {
+        try {
+            String serverAddress = serverField.getText();
+            int port = Integer.parseInt(portField.getText());
+            isConnected = true; // Before the reader starts, so a lost connection is reported
+            client = ChatClient.connect(serverAddress, port, name, preferBinary, new ServerListener(),
+                    task -> new Thread(task).start());
+            ChatLog.NETWORK.info("Client {}: Connected to server at {}:{}", name, serverAddress, port);
+        } catch (IOException ex) {
+            isConnected = false;
+            appendChatMessage(new ChatMessage("Error connecting to server: " + ex.getMessage(), -1));
+            ChatLog.NETWORK.error("Client {}: Error connecting to server: {}", name, ex.getMessage());
+        }
+    }
+
+    // Runs on the reader thread. Every event is queued for the EDT in arrival order and applied
+    // in the next batch, at most once per frame
+    private class ServerListener implements ChatClient.Listener {
+        @Override
+        public void onNameAccepted(String acceptedName) {
+            inbound.post(ConnectSphereClient.this::onNameAccepted);
+        }
+
+        @Override
+        public void onMessage(int kind, long id, long timestamp, String sender, String body) {
+            // The timestamp stays a number; ChatMessage formats it once, when first shown
+            if (kind == WireProtocol.KIND_SYSTEM) {
+                inbound.post(() -> addPublicMessage(id, timestamp, null, body));
+            } else if (kind == WireProtocol.KIND_PRIVATE_FROM) {
+                inbound.post(() -> addPrivateMessage(sender, true, id, timestamp, "(Private from " + sender + "): " + body));
+            } else if (kind == WireProtocol.KIND_PRIVATE_TO) {
+                inbound.post(() -> addPrivateMessage(sender, false, id, timestamp, "(Private to " + sender + "): " + body));
+            } else {
+                inbound.post(() -> addPublicMessage(id, timestamp, sender, sender + ": " + body));
+            }
+        }
+
+        @Override
+        public void onUserList(String[] users) {
+            inbound.post(() -> updateUserList(users));
+        }
+
+        @Override
+        public void onUserJoined(String user) {
+            inbound.post(() -> userJoined(user));
+        }
+
+        @Override
+        public void onUserLeft(String user) {
+            inbound.post(() -> userLeft(user));
+        }
+
+        @Override
+        public void onTyping(String[] started, String[] stopped) {
+            inbound.post(() -> applyTypingDelta(started, stopped));
+        }
+
+        @Override
+        public void onPrivateTyping(String user, boolean start) {
+            ChatLog.TYPING.debug("Client {}: Processing PMTYPING {} {}", name, user, start);
+            inbound.post(() -> {
+                if (privateChatBox != null) {
+                    privateChatBox.updatePrivateTypingIndicator(user, start ? "start" : "stop");
+                }
+            });
+        }
+
+        @Override
+        public void onPublicReactions(long[] messageIds, String[] emojis, int[] totals) {
+            inbound.post(() -> handlePublicReactions(messageIds, emojis, totals));
+        }
+
+        @Override
+        public void onReaction(String user, long messageId, String emoji) {
+            inbound.post(() -> handleReaction(user, messageId, emoji));
+        }
+
+        // Queued too, so the messages that arrived before the connection dropped are shown first
+        @Override
+        public void onDisconnected(IOException cause) {
+            inbound.post(() -> {
+                if (cause != null && isConnected) {
+                    appendChatMessage(new ChatMessage("Connection lost", -1));
+                }
+                disconnect();
+            });
+        }
+    }
+
+    private void beginInboundBatch() {
+        Conversation.holdEvents();
+    }
+
+    // Lists learn of the whole batch at once, then scroll and badges are brought up to date once
+    private void endInboundBatch() {
+        Conversation.releaseEvents();
+        if (publicChatGrew) {
+            publicChatGrew = false;
+            chatList.ensureIndexIsVisible(chatListModel.getSize() - 1);
+        }
+        if (!privateArrivals.isEmpty()) {
+            if (privateChatBox != null) {
+                privateArrivals.forEach(privateChatBox::appendMessage);
+            }
+            if (privateArrivals.containsValue(Boolean.TRUE)) {
+                updateNotification();
+            }
+            privateArrivals.clear();
+        }
+    }
+
+    private void onNameAccepted() {
+        sendButton.setEnabled(true);
+        privateChatButton.setEnabled(true);
+        connectButton.setEnabled(false);
+        serverField.setEnabled(false);
+        portField.setEnabled(false);
+        ChatLog.PRESENCE.info("Client {}: Name accepted, UI updated", name);
+    }
+
+    // sender is null for system messages such as joins and leaves
+    private void addPublicMessage(long id, long timestamp, String sender, String message) {
+        if (sender != null) {
+            removeTypingUser(sender);
+        }
+        appendChatMessage(new ChatMessage(message, id, timestamp));
+    }
+
+    // The public chat is updated in place: lines are appended and reactions repaint their own row,
+    // so an event costs the same however long the session. The conversation keeps the last
+    // chatWindow lines and drops the oldest as new ones arrive. Within a batch the list scrolls
+    // once, after it has heard of every new line.
+    private void appendChatMessage(ChatMessage message) {
+        chatListModel.add(message);
+        if (Conversation.holdingEvents()) {
+            publicChatGrew = true;
+        } else {
+            chatList.ensureIndexIsVisible(chatListModel.getSize() - 1);
+        }
+    }
+
+    // Applies one coalesced TYPINGSET delta from the server; only the footer is repainted
+    private void applyTypingDelta(String[] started, String[] stopped) {
+        boolean changed = false;
+        for (String user : stopped) {
+            changed |= typingUsers.remove(user);
+        }
+        for (String user : started) {
+            if (user.equals(name)) {
+                ChatLog.TYPING.debug("Client {}: Ignoring own typing status for {}", name, user);
+                continue;
+            }
+            changed |= typingUsers.add(user);
+        }
+        if (changed) {
+            updateTypingLabel();
+        }
+    }
+
+    private void removeTypingUser(String user) {
+        if (typingUsers.remove(user)) {
+            ChatLog.TYPING.debug("Client {}: Removed typing user: {} (message received)", name, user);
+            updateTypingLabel();
+        }
+    }
+
+    private void updateTypingLabel() {
+        typingLabel.setText(typingText(typingUsers));
+    }
+
+    // "a is typing...", "a and b are typing..." or "a, b and 3 others are typing..."; looks at
+    // no more than three names however many users are typing
+    private static String typingText(Collection<String> users) {
+        int count = users.size();
+        if (count == 0) {
+            return "";
+        }
+        Iterator<String> it = users.iterator();
+        String first = it.next();
+        if (count == 1) {
+            return first + " is typing...";
+        }
+        String second = it.next();
+        if (count == 2) {
+            return first + " and " + second + " are typing...";
+        }
+        if (count == 3) {
+            return first + ", " + second + " and " + it.next() + " are typing...";
+        }
+        return first + ", " + second + " and " + (count - 2) + " others are typing...";
+    }
+
+    // Runs in an inbound batch; the tab and the unread badge are updated when the batch ends
+    private void addPrivateMessage(String otherUser, boolean isIncoming, long id, long timestamp, String message) {
+        String otherUserLower = otherUser.toLowerCase();
+        privateConversation(otherUserLower).add(new ChatMessage(message, id, timestamp));
+
+        // Update unread messages if this is an incoming message
+        if (isIncoming) {
+            unreadMessages.merge(otherUserLower, 1, Integer::sum);
+        }
+        privateArrivals.merge(otherUserLower, isIncoming, Boolean::logicalOr);
+    }
+
+    private Conversation privateConversation(String userLower) {
+        return privateMessages.computeIfAbsent(userLower, user -> new Conversation(chatWindow));
+    }
+
+    // One private reaction, by or to user; counted here since the server keeps no private messages
+    private void handleReaction(String user, long messageId, String emoji) {
+        Conversation conversation = privateMessages.get(user.toLowerCase());
+        int index = conversation == null ? -1 : conversation.indexOf(messageId);
+        if (index >= 0) {
+            conversation.getElementAt(index).addReaction(emoji);
+            conversation.changed(index);
+        }
+    }
+
+    // A batch of public totals from the server; each changed row is repainted on its own
+    private void handlePublicReactions(long[] messageIds, String[] emojis, int[] totals) {
+        for (int i = 0; i < messageIds.length; i++) {
+            int index = chatListModel.indexOf(messageIds[i]);
+            if (index >= 0) {
+                chatListModel.getElementAt(index).setReactionCount(emojis[i], totals[i]);
+                chatListModel.changed(index);
+            }
+        }
+    }
+
+    // Method to add a public reaction (used via context menu)
+    private void addPublicReaction(int messageIndex, String emoji) {
+        if (messageIndex >= 0 && messageIndex < chatListModel.getSize()) {
+            ChatMessage chatMessage = chatListModel.getElementAt(messageIndex);
+            if (chatMessage.messageId < 0) {
+                ChatLog.UI.debug("Client {}: Message has no server id, cannot react to it", name);
+            } else if (client != null && isConnected) {
+                client.publicReaction(chatMessage.messageId, emoji);
+                ChatLog.MESSAGES.debug("Client {}: Sent public reaction: {} for message ID {}", name, emoji, chatMessage.messageId);
+            } else {
+                ChatLog.NETWORK.warn("Client {}: Cannot send reaction - not connected or output stream null", name);
+            }
+        }
+    }
+
+    // A full snapshot: on connect, from a text-protocol server, or after a lost delta
+    private void updateUserList(String[] users) {
+        userListModel.clear();
+        onlineUsers.clear();
+        for (String user : users) {
+            String trimmed = user.trim();
+            if (onlineUsers.add(trimmed)) {
+                userListModel.addElement(trimmed);
+            }
+        }
+        // Remove typing indicators for users who are no longer online
+        if (typingUsers.retainAll(onlineUsers)) {
+            updateTypingLabel();
+        }
+        ChatLog.PRESENCE.debug("Client {}: Updated user list: {} users", name, users.length);
+        // Update the private chat box user list
+        if (privateChatBox != null) {
+            privateChatBox.updateUserList(onlineUsers);
+        }
+    }
+
+    // Deltas touch one list row and one tab; the rest of the window is left alone
+    private void userJoined(String user) {
+        if (!onlineUsers.add(user)) {
+            return;
+        }
+        userListModel.addElement(user);
+        ChatLog.PRESENCE.debug("Client {}: {} joined, {} users", name, user, onlineUsers.size());
+        if (privateChatBox != null) {
+            privateChatBox.addOnlineUser(user);
+        }
+    }
+
+    private void userLeft(String user) {
+        if (!onlineUsers.remove(user)) {
+            return;
+        }
+        userListModel.removeElement(user);
+        if (typingUsers.remove(user)) {
+            ChatLog.TYPING.debug("Client {}: Removed typing user (disconnected): {}", name, user);
+            updateTypingLabel();
+        }
+        ChatLog.PRESENCE.debug("Client {}: {} left, {} users", name, user, onlineUsers.size());
+        if (privateChatBox != null) {
+            privateChatBox.removeOnlineUser(user);
+        }
+    }
+
+    private void openPrivateChatBox(ActionEvent e) {
+        if (privateChatBox == null) {
+            privateChatBox = new PrivateChatBox(name);
+            // Populate initial user list
+            privateChatBox.updateUserList(onlineUsers);
+        }
+        privateChatBox.showWindow();
+        // Clear notification for the currently selected tab (if any)
+        privateChatBox.clearNotificationForSelectedTab();
+    }
+
+    private void sendMessage(ActionEvent e) {
+        String message = messageField.getText().trim();
+        if (!message.isEmpty()) {
+            client.say(message);
+            ChatLog.MESSAGES.debug("Client {}: Sent message: {}", name, message);
+            messageField.setText("");
+            if (isTyping) {
+                isTyping = false;
+                client.typing(false);
+                typingTimer.stop();
+                ChatLog.TYPING.debug("Client {}: Sent /typing stop (message sent)", name);
+            }
+        }
+    }
+
+    private void disconnect() {
+        if (!isConnected) return;
+
+        isConnected = false;
+        if (client != null) {
+            if (isTyping) {
+                client.typing(false);
+                ChatLog.TYPING.debug("Client {}: Sent /typing stop (disconnect)", name);
+            }
+            client.close();
+        }
+        SwingUtilities.invokeLater(() -> {
+            sendButton.setEnabled(false);
+            privateChatButton.setEnabled(false);
+            connectButton.setEnabled(true);
+            serverField.setEnabled(true);
+            portField.setEnabled(true);
+            userListModel.clear();
+            onlineUsers.clear();
+            typingUsers.clear();
+            updateTypingLabel();
+            appendChatMessage(new ChatMessage("Disconnected from server", -1));
+            if (privateChatBox != null) {
+                privateChatBox.dispose();
+                privateChatBox = null;
+            }
+            // Reset notification dot and unread messages
+            unreadMessages.clear();
+            notificationDot.setVisible(false);
+            privateChatButton.setText("Private Chat");
+            privateChatButton.revalidate();
+            privateChatButton.repaint();
+            ChatLog.NETWORK.info("Client {}: Disconnected from server", name);
+        });
+    }
+
+    private void updateNotification() {
+        int totalUnread = unreadMessages.values().stream().mapToInt(Integer::intValue).sum();
+        SwingUtilities.invokeLater(() -> {
+            ChatLog.UI.debug("Client {}: Updating notification: totalUnread = {}", name, totalUnread);
+            if (totalUnread > 0) {
+                privateChatButton.setText("Private Chat (" + totalUnread + ")");
+                notificationDot.setVisible(true);
+            } else {
+                privateChatButton.setText("Private Chat");
+                notificationDot.setVisible(false);
+            }
+            privateChatButton.revalidate();
+            privateChatButton.repaint();
+        });
+    }
+
+    public static void main(String[] args) {
+        ChatLog.configure(args);
+        for (String arg : args) {
+            if (arg.equals("--wire=text")) {
+                preferBinary = false;
+            }
+        }
+        chatWindow = Math.max(1, Integer.parseInt(ConnectSphereServer.option(args, "chat-window", "1000")));
+        if ("text".equals(System.getProperty("connectsphere.wire"))) {
+            preferBinary = false;
+        }
+        SwingUtilities.invokeLater(ConnectSphereClient::new);
+    }
+
+    private class PrivateChatBox extends JFrame {
+        private static final long serialVersionUID = 1L;
+        private static final int SPARE_TABS = 8; // Closed tabs kept for reuse
+
+        private JTabbedPane chatTabs;
+        private final Map<String, PrivateTab> tabs = new HashMap<>(); // Open tabs by lowercased user
+        private final ArrayDeque<PrivateTab> spareTabs = new ArrayDeque<>();
+        private final TreeMap<String, String> online = new TreeMap<>(); // Every other online user, lowercased -> as shown
+        private final ListModel<ChatMessage> noConversation = new DefaultListModel<>(); // Shown by spare tabs
+        private final JPopupMenu reactionMenu = new JPopupMenu(); // Shared by every tab
+        private PrivateTab reactionTab; // The tab reactionMenu was last opened on
+        private JDialog picker; // Built on first use
+        private JTextField pickerField;
+        private JList<String> pickerList;
+        private String senderName;
+        private Set<String> typingUsers; // Lowercased names of the users typing to us
+        private Timer typingTimer;
+        private boolean isTyping = false;
+        private Color logoColor = new Color(13, 25, 64); // #0D1940
+        private BufferedImage backgroundImage; // The faded logo behind each tab; null until loaded
+
+        public PrivateChatBox(String senderName) {
+            this.senderName = senderName;
+            setTitle("ConnectSphere Private Chat");
+            setSize(400, 300);
+            setLayout(new BorderLayout());
+            setDefaultCloseOperation(JFrame.HIDE_ON_CLOSE);
+
+            // Initialize data structures
+            typingUsers = new HashSet<>();
+
+            // Load the faded logo image for chat background; decoded once and shared by every private chat
+            ClientImages.scaled(ClientImages.LOGO_ON_NAVY, FIT, 200, 100, image -> {
+                backgroundImage = image;
+                repaint();
+            });
+
+            // Tabs open for conversations with messages, or from the picker; not for every online user
+            JButton newChatButton = new JButton("New Chat");
+            newChatButton.setBackground(Color.WHITE);
+            newChatButton.setForeground(logoColor);
+            newChatButton.addActionListener(e -> showPicker());
+            JPanel northPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+            northPanel.setBackground(logoColor);
+            northPanel.add(newChatButton);
+            add(northPanel, BorderLayout.NORTH);
+
+            // Chat tabs
+            chatTabs = new JTabbedPane();
+            chatTabs.setBackground(logoColor); // Set navy background for the tabbed pane
+            chatTabs.setOpaque(true); // Ensure background is fully applied
+            ChatLog.UI.debug("Setting tabbed pane background to: {}", logoColor);
+            add(chatTabs, BorderLayout.CENTER);
+
+            // Reactions in private chat act on the selected message of the tab the menu was opened on
+            for (String[] reaction : REACTIONS) {
+                JMenuItem item = new JMenuItem(reaction[0] + " " + reaction[1]);
+                item.addActionListener(e -> addReaction(reactionTab.userLower, reactionTab.chatList.getSelectedIndex(), reaction[0]));
+                reactionMenu.add(item);
+            }
+
+            // Typing detection for private chat
+            typingTimer = new Timer(2000, new ActionListener() {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    if (isTyping) {
+                        isTyping = false;
+                        int selectedIndex = chatTabs.getSelectedIndex();
+                        if (selectedIndex != -1) {
+                            String recipient = chatTabs.getTitleAt(selectedIndex);
+                            if (client != null && recipient != null) {
+                                client.privateTyping(recipient, false);
+                                ChatLog.TYPING.debug("Client {}: Sent /pmtyping stop (private)", senderName);
+                            }
+                        }
+                    }
+                }
+            });
+            typingTimer.setRepeats(false);
+
+            // Add listener to clear unread status when a tab is selected
+            chatTabs.addChangeListener(new ChangeListener() {
+                @Override
+                public void stateChanged(ChangeEvent e) {
+                    int selectedIndex = chatTabs.getSelectedIndex();
+                    if (selectedIndex != -1) {
+                        String selectedUser = chatTabs.getTitleAt(selectedIndex);
+                        clearUnreadStatus(selectedUser.toLowerCase());
+                    }
+                }
+            });
+
+            setLocationRelativeTo(null);
+        }
+
+        // Reconciles with a full user list snapshot: each step is a hash lookup per open tab or
+        // conversation, never a scan of the user list per tab
+        public void updateUserList(Collection<String> onlineUsers) {
+            online.clear();
+            for (String user : onlineUsers) {
+                if (!user.equalsIgnoreCase(senderName)) {
+                    online.put(user.toLowerCase(), user);
+                }
+            }
+
+            // Close tabs for users who are no longer online
+            for (PrivateTab tab : new ArrayList<>(tabs.values())) {
+                if (!online.containsKey(tab.userLower)) {
+                    closeTab(tab);
+                }
+            }
+
+            // Open tabs for online users we already have messages with
+            for (Map.Entry<String, Conversation> entry : privateMessages.entrySet()) {
+                String user = online.get(entry.getKey());
+                if (user != null && entry.getValue().getSize() > 0) {
+                    openTab(user);
+                }
+            }
+
+            // Remove typing indicators for users who are no longer online
+            typingUsers.retainAll(online.keySet());
+            refreshPicker();
+        }
+
+        // A user came online; their tab comes back if we have messages with them
+        public void addOnlineUser(String user) {
+            if (user.equalsIgnoreCase(senderName)) {
+                return;
+            }
+            String userLower = user.toLowerCase();
+            online.put(userLower, user);
+            Conversation conversation = privateMessages.get(userLower);
+            if (conversation != null && conversation.getSize() > 0) {
+                openTab(user);
+            }
+            refreshPicker();
+        }
+
+        public void removeOnlineUser(String user) {
+            String userLower = user.toLowerCase();
+            online.remove(userLower);
+            PrivateTab tab = tabs.get(userLower);
+            if (tab != null) {
+                closeTab(tab);
+            }
+            typingUsers.remove(userLower);
+            refreshPicker();
+        }
+
+        // The user's tab, opened if needed with a spare tab's components or new ones
+        private PrivateTab openTab(String user) {
+            String userLower = user.toLowerCase();
+            PrivateTab tab = tabs.get(userLower);
+            if (tab != null) {
+                return tab;
+            }
+            tab = spareTabs.isEmpty() ? new PrivateTab() : spareTabs.pop();
+            tab.bind(user);
+            tabs.put(userLower, tab);
+            int tabIndex = chatTabs.getTabCount();
+            chatTabs.addTab(user, tab.panel);
+            chatTabs.setTabComponentAt(tabIndex, tab.tabLabel);
+            return tab;
+        }
+
+        private void closeTab(PrivateTab tab) {
+            chatTabs.remove(tab.panel);
+            tabs.remove(tab.userLower);
+            tab.unbind();
+            if (spareTabs.size() < SPARE_TABS) {
+                spareTabs.push(tab);
+            }
+        }
+
+        // "New Chat": a searchable list of online users; picking one opens, or shows, their tab
+        private void showPicker() {
+            if (picker == null) {
+                picker = new JDialog(this, "New Chat", false);
+                pickerField = new JTextField();
+                pickerList = new JList<>();
+                pickerList.setPrototypeCellValue("WWWWWWWWWWWWWWWWWWWW"); // Fixed-size rows; thousands of users are never measured
+                pickerList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+                pickerField.getDocument().addDocumentListener(new DocumentListener() {
+                    @Override
+                    public void insertUpdate(DocumentEvent e) {
+                        refreshPicker();
+                    }
+
+                    @Override
+                    public void removeUpdate(DocumentEvent e) {
+                        refreshPicker();
+                    }
+
+                    @Override
+                    public void changedUpdate(DocumentEvent e) {
+                    }
+                });
+                pickerField.addActionListener(e -> pickUser());
+                pickerField.addKeyListener(new KeyAdapter() {
+                    @Override
+                    public void keyPressed(KeyEvent e) {
+                        int step = e.getKeyCode() == KeyEvent.VK_DOWN ? 1 : e.getKeyCode() == KeyEvent.VK_UP ? -1 : 0;
+                        int index = pickerList.getSelectedIndex() + step;
+                        if (step != 0 && index >= 0 && index < pickerList.getModel().getSize()) {
+                            pickerList.setSelectedIndex(index);
+                            pickerList.ensureIndexIsVisible(index);
+                        }
+                    }
+                });
+                pickerList.addMouseListener(new MouseAdapter() {
+                    @Override
+                    public void mouseClicked(MouseEvent e) {
+                        if (e.getClickCount() == 2) {
+                            pickUser();
+                        }
+                    }
+                });
+                picker.add(pickerField, BorderLayout.NORTH);
+                picker.add(new JScrollPane(pickerList), BorderLayout.CENTER);
+                picker.setSize(250, 300);
+            }
+            pickerField.setText("");
+            picker.setLocationRelativeTo(this);
+            picker.setVisible(true);
+            refreshPicker();
+            pickerField.requestFocusInWindow();
+        }
+
+        // Online users whose name contains the search text, in name order; only while the picker is up
+        private void refreshPicker() {
+            if (picker == null || !picker.isVisible()) {
+                return;
+            }
+            String query = pickerField.getText().trim().toLowerCase();
+            List<String> matches = new ArrayList<>();
+            for (Map.Entry<String, String> entry : online.entrySet()) {
+                if (entry.getKey().contains(query)) {
+                    matches.add(entry.getValue());
+                }
+            }
+            pickerList.setListData(matches.toArray(new String[0])); // One model swap, not an event per user
+            if (!matches.isEmpty()) {
+                pickerList.setSelectedIndex(0);
+            }
+        }
+
+        private void pickUser() {
+            String user = pickerList.getSelectedValue();
+            if (user == null) {
+                return;
+            }
+            picker.setVisible(false);
+            PrivateTab tab = openTab(user);
+            chatTabs.setSelectedComponent(tab.panel);
+            tab.messageField.requestFocusInWindow();
+        }
+
+        private void sendMessage(PrivateTab tab) {
+            String recipient = tab.user;
+            String message = tab.messageField.getText().trim();
+            if (!message.isEmpty()) {
+                client.privateMessage(recipient, message);
+                ChatLog.MESSAGES.debug("Client {}: Sent private message to {}: {}", senderName, recipient, message);
+                tab.messageField.setText("");
+                if (isTyping) {
+                    isTyping = false;
+                    client.privateTyping(recipient, false);
+                    typingTimer.stop();
+                    ChatLog.TYPING.debug("Client {}: Sent /pmtyping stop (private message sent)", senderName);
+                }
+            }
+        }
+
+        private void addReaction(String userLower, int messageIndex, String emoji) {
+            Conversation chatListModel = privateMessages.get(userLower);
+            if (chatListModel != null && messageIndex >= 0 && messageIndex < chatListModel.getSize()) {
+                ChatMessage chatMessage = chatListModel.getElementAt(messageIndex);
+                if (chatMessage.messageId < 0) {
+                    ChatLog.UI.debug("Client {}: Message has no server id, cannot react to it", senderName);
+                    return;
+                }
+                client.reaction(userLower, chatMessage.messageId, emoji);
+                ChatLog.MESSAGES.debug("Client {}: Sent reaction to {}: {}", senderName, userLower, emoji);
+            }
+        }
+
+        // The message is already in the conversation; this opens its tab if needed, scrolls to it and updates the tab label
+        public void appendMessage(String otherUserLower, boolean isIncoming) {
+            PrivateTab tab = tabs.get(otherUserLower);
+            if (tab == null) {
+                String user = online.get(otherUserLower);
+                if (user == null) {
+                    return; // Gone already; the tab comes back with the messages if they return
+                }
+                tab = openTab(user);
+            }
+            tab.chatList.ensureIndexIsVisible(tab.chatList.getModel().getSize() - 1);
+            if (isIncoming && chatTabs.getSelectedComponent() != tab.panel) {
+                tab.updateTabLabel();
+            }
+        }
+
+        private void clearUnreadStatus(String userLower) {
+            if (unreadMessages.containsKey(userLower)) {
+                ChatLog.UI.debug("Client {}: Clearing unread for user: {}", senderName, userLower);
+                unreadMessages.remove(userLower);
+                PrivateTab tab = tabs.get(userLower);
+                if (tab != null) {
+                    tab.updateTabLabel();
+                }
+                ConnectSphereClient.this.updateNotification();
+            }
+        }
+
+        private void clearNotificationForSelectedTab() {
+            int selectedIndex = chatTabs.getSelectedIndex();
+            if (selectedIndex != -1) {
+                String selectedUser = chatTabs.getTitleAt(selectedIndex);
+                clearUnreadStatus(selectedUser.toLowerCase());
+            } else if (chatTabs.getTabCount() == 1) {
+                // If there's only one tab, clear its unread status
+                String onlyUser = chatTabs.getTitleAt(0);
+                clearUnreadStatus(onlyUser.toLowerCase());
+            }
+        }
+
+        public void updatePublicTypingIndicator(String user, String status) {
+            // Do nothing; this method is called for public typing indicators
+            // We don't want public typing indicators to affect the private chat
+        }
+
+        // Only the user's typing footer changes; the conversation itself is left alone
+        public void updatePrivateTypingIndicator(String user, String status) {
+            if (user.equals(senderName)) {
+                return;
+            }
+            String userLower = user.toLowerCase();
+            boolean typing = "start".equals(status);
+            if (typing ? !typingUsers.add(userLower) : !typingUsers.remove(userLower)) {
+                return;
+            }
+            PrivateTab tab = tabs.get(userLower);
+            if (tab != null) {
+                tab.typingLabel.setText(typing ? typingText(List.of(user)) : "");
+            }
+        }
+
+        public void showWindow() {
+            setVisible(true);
+            toFront();
+        }
+
+        // One conversation's tab. The components are built once; a closed tab is kept as a spare
+        // and bound to the next conversation that opens, so listeners look up the user they serve
+        // rather than capturing it.
+        private final class PrivateTab {
+            final JPanel panel;
+            final JList<ChatMessage> chatList;
+            final JTextField messageField;
+            final JLabel typingLabel;
+            final JLabel tabLabel = new JLabel();
+            String user; // As shown; null while spare
+            String userLower;
+
+            PrivateTab() {
+                // Background panel for private chat
+                panel = new JPanel(new BorderLayout()) {
+                    @Override
+                    protected void paintComponent(Graphics g) {
+                        super.paintComponent(g);
+                        g.setColor(logoColor); // Set navy background first
+                        g.fillRect(0, 0, getWidth(), getHeight());
+                        if (backgroundImage != null) {
+                            Graphics2D g2d = (Graphics2D) g;
+                            g2d.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 0.2f)); // 20% opacity
+                            g2d.drawImage(backgroundImage, (getWidth() - backgroundImage.getWidth()) / 2,
+                                    (getHeight() - backgroundImage.getHeight()) / 2, null);
+                            g2d.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 1.0f));
+                        }
+                    }
+                };
+                panel.setBackground(logoColor); // Set navy background color
+
+                chatList = new JList<>(noConversation);
+                chatList.setBackground(Color.WHITE); // Solid white background for text
+                chatList.setForeground(Color.BLACK);
+                chatList.setOpaque(true); // Ensure JList renders its background
+                ChatCellRenderer.install(chatList);
+
+                JScrollPane chatScrollPane = new JScrollPane(chatList);
+                chatScrollPane.setPreferredSize(new Dimension(350, 200)); // Larger size for testing
+                chatScrollPane.setBackground(logoColor);
+                chatScrollPane.getViewport().setOpaque(false); // Make viewport transparent to show background
+                panel.add(chatScrollPane, BorderLayout.CENTER);
+
+                chatList.addMouseListener(new MouseAdapter() {
+                    @Override
+                    public void mouseClicked(MouseEvent e) {
+                        if (SwingUtilities.isRightMouseButton(e) && chatList.getModel().getSize() > 0) {
+                            int index = chatList.locationToIndex(e.getPoint());
+                            if (index >= 0) {
+                                chatList.setSelectedIndex(index);
+                                reactionTab = PrivateTab.this;
+                                reactionMenu.show(chatList, e.getX(), e.getY());
+                            }
+                        }
+                    }
+                });
+
+                messageField = new JTextField();
+                messageField.setBackground(Color.WHITE);
+                messageField.setForeground(Color.BLACK);
+
+                JButton sendButton = new JButton("Send");
+                sendButton.setBackground(Color.WHITE);
+                sendButton.setForeground(logoColor);
+
+                JComboBox<String> emojiPicker = new JComboBox<>(ConnectSphereClient.this.emojiOptions); // Access outer class field
+                emojiPicker.addActionListener(new ActionListener() {
+                    @Override
+                    public void actionPerformed(ActionEvent e) {
+                        String selectedEmoji = (String) emojiPicker.getSelectedItem();
+                        if (selectedEmoji != null) {
+                            messageField.setText(messageField.getText() + selectedEmoji);
+                            messageField.requestFocus();
+                        }
+                    }
+                });
+
+                JPanel inputPanel = new JPanel(new BorderLayout());
+                inputPanel.setBackground(logoColor);
+                inputPanel.add(emojiPicker, BorderLayout.WEST);
+                inputPanel.add(messageField, BorderLayout.CENTER);
+                inputPanel.add(sendButton, BorderLayout.EAST);
+
+                // A fixed-height footer above the input, so the indicator never reflows the tab
+                typingLabel = new JLabel();
+                typingLabel.setFont(typingLabel.getFont().deriveFont(Font.ITALIC));
+                typingLabel.setForeground(Color.WHITE);
+                typingLabel.setPreferredSize(new Dimension(0, TYPING_FOOTER_HEIGHT));
+                typingLabel.setBorder(BorderFactory.createEmptyBorder(0, 4, 0, 4));
+
+                JPanel southPanel = new JPanel(new BorderLayout());
+                southPanel.setBackground(logoColor);
+                southPanel.add(typingLabel, BorderLayout.NORTH);
+                southPanel.add(inputPanel, BorderLayout.CENTER);
+                panel.add(southPanel, BorderLayout.SOUTH);
+
+                // Add event listeners for this tab
+                sendButton.addActionListener(e -> sendMessage(this));
+                messageField.addActionListener(e -> sendMessage(this));
+                messageField.addKeyListener(new KeyAdapter() {
+                    @Override
+                    public void keyTyped(KeyEvent event) {
+                        if (!isTyping && isConnected) {
+                            isTyping = true;
+                            if (client != null) {
+                                client.privateTyping(user, true);
+                                ChatLog.TYPING.debug("Client {}: Sent /pmtyping start (private)", senderName);
+                            }
+                        }
+                        typingTimer.restart();
+                    }
+                });
+            }
+
+            // Shows user's conversation; the tab shows the conversation itself, nothing is copied
+            void bind(String user) {
+                this.user = user;
+                userLower = user.toLowerCase();
+                chatList.setModel(privateConversation(userLower));
+                typingLabel.setText(typingUsers.contains(userLower) ? typingText(List.of(user)) : "");
+                updateTabLabel();
+                chatList.ensureIndexIsVisible(chatList.getModel().getSize() - 1);
+            }
+
+            // Stops listening to the conversation, which outlives the tab, and clears what was typed
+            void unbind() {
+                chatList.setModel(noConversation);
+                messageField.setText("");
+                typingLabel.setText("");
+                user = null;
+                userLower = null;
+            }
+
+            // The user's name, with their unread count if any
+            void updateTabLabel() {
+                Integer unreadCount = unreadMessages.getOrDefault(userLower, 0);
+                tabLabel.setText(unreadCount > 0 ? userLower + " (" + unreadCount + ")" : user);
+            }
+        }
+    }
+}
@@ -0,0 +1,1675 @@
+package connectsphere;
+
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.*;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongFunction;
+
+public class ConnectSphereServer {
+    private static final int PORT = 5555;
+    // Shared state is lock-free or guarded by ReentrantLock rather than synchronized, so sessions
+    // running on virtual threads never pin their carrier thread while holding it
+    private static final SessionRegistry registry = new SessionRegistry(); // Logged-in sessions by name
+    private static TypingTracker typingTracker = new TypingTracker(8000); // Who is typing in public chat
+    private static final int MAX_HISTORY = 50; // Default, override with --history
+    private static MessageHistory messageHistory = new MessageHistory(MAX_HISTORY);
+    private static MessageLog messageLog; // Durable copy of every public message, or null with --data-dir=
+    private static final int MAX_HISTORY_PAGE = 200; // Messages per history request
+    private static final ReactionTracker reactionTracker = new ReactionTracker(); // Public reaction counts
+    // Ids for private messages; public ones are history sequences. The two are separate id spaces.
+    private static final AtomicLong privateMessageIds = new AtomicLong();
+    private static final PrivateParties privateParties = new PrivateParties(4096); // Who may react to which
+    // Every fan-out (and a joiner's initial snapshot) happens under this lock. Fan-out only queues
+    // frames, so it is short, and every client sees events in the same order.
+    private static final ReentrantLock publishLock = new ReentrantLock();
+    // Bumped on every join and leave, guarded by publishLock. Snapshots and deltas carry it, so a
+    // client that sees a gap knows its list is stale and asks for a new snapshot.
+    private static long presenceEpoch = 0;
+    // Every change to shared state goes through the bus, standalone or clustered (see ClusterBus)
+    private static ClusterBus bus;
+    // Name claims this node has published and not yet seen applied, by claim id
+    private static final Map<Long, ChatSession> pendingClaims = new ConcurrentHashMap<>();
+    private static final AtomicLong claimIds = new AtomicLong();
+
+    // Per-session outbound queues (see OutboundQueue)
+    private static int queueCapacity = 1024;
+    private static boolean disconnectWhenFull = true;
+    // Whether clients may negotiate binary framing (see WireProtocol)
+    private static boolean offerBinary = true;
+    static final LongAdder droppedFrames = ServerMetrics.counter("dropped_frames", "Frames dropped by full outbound queues");
+    static final LongAdder slowConsumerDisconnects = ServerMetrics.counter("slow_consumer_disconnects",
+            "Clients disconnected because their outbound queue was full");
+    static final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+    // Instrumentation (see ServerMetrics); times are in nanoseconds
+    static final LongAdder connectionsOpened = ServerMetrics.counter("connections_opened", "Client connections accepted");
+    static final LongAdder connectionsClosed = ServerMetrics.counter("connections_closed", "Client connections ended");
+    static final LongAdder bytesReceived = ServerMetrics.counter("bytes_received", "Bytes read from clients");
+    static final LongAdder bytesSent = ServerMetrics.counter("bytes_sent", "Bytes written to clients");
+    static final LongAdder messagesReceived = ServerMetrics.counter("messages_received",
+            "Public and private chat messages received from local clients");
+    static final ServerMetrics.Histogram readDispatchTime = ServerMetrics.histogram("read_dispatch_nanoseconds",
+            "Time to decode and handle one read from a client socket");
+    static final ServerMetrics.Histogram broadcastFanoutTime = ServerMetrics.histogram("broadcast_fanout_nanoseconds",
+            "Time to queue one public message for every local session");
+    static final ServerMetrics.Histogram presenceFanoutTime = ServerMetrics.histogram("presence_fanout_nanoseconds",
+            "Time to queue one join or leave for every local session");
+    static final ServerMetrics.Histogram privateMessageRoutingTime = ServerMetrics.histogram("private_message_routing_nanoseconds",
+            "Time from receiving a private message to handing it to the cluster bus");
+    static final ServerMetrics.Histogram historyReplayTime = ServerMetrics.histogram("history_replay_nanoseconds",
+            "Time to build and queue the welcome batch for a new client");
+    static final ServerMetrics.Histogram historyPageTime = ServerMetrics.histogram("history_page_nanoseconds",
+            "Time to read and queue one page of older messages");
+    static final ServerMetrics.Histogram queueDepth = ServerMetrics.histogram("outbound_queue_depth",
+            "Frames in a session's outbound queue after each enqueue");
+
+    public static void main(String[] args) {
+        ChatLog.configure(args);
+        int port = Integer.parseInt(option(args, "port", String.valueOf(PORT)));
+        String mode = option(args, "mode", "threads");
+        messageHistory = new MessageHistory(Integer.parseInt(option(args, "history", String.valueOf(MAX_HISTORY))));
+        String hubAddress = option(args, "cluster-join", "");
+        // Nodes that join a cluster take their history and message ids from the hub, which keeps the log
+        openMessageLog(hubAddress.isEmpty() ? option(args, "data-dir", "data") : "",
+                Integer.parseInt(option(args, "segment-size", "16")), Long.parseLong(option(args, "commit-interval", "50")));
+        queueCapacity = Integer.parseInt(option(args, "queue-capacity", String.valueOf(queueCapacity)));
+        String fullPolicy = option(args, "queue-full", "disconnect");
+        if (!"disconnect".equals(fullPolicy) && !"drop".equals(fullPolicy)) {
+            System.err.println("Unknown queue-full policy '" + fullPolicy + "', expected disconnect or drop");
+            System.exit(1);
+        }
+        disconnectWhenFull = "disconnect".equals(fullPolicy);
+        String wire = option(args, "wire", "binary");
+        if (!"binary".equals(wire) && !"text".equals(wire)) {
+            System.err.println("Unknown wire format '" + wire + "', expected binary or text");
+            System.exit(1);
+        }
+        offerBinary = "binary".equals(wire);
+        typingTracker = new TypingTracker(Long.parseLong(option(args, "typing-timeout", "8000")));
+        startDeltaFlusher("typing-flush", Long.parseLong(option(args, "typing-interval", "250")), typingTracker::flush);
+        startDeltaFlusher("reaction-flush", Long.parseLong(option(args, "reaction-interval", "250")),
+                now -> reactionTracker.flush(messageHistory.oldestSequence()));
+        startQueueStatsReporter(Integer.parseInt(option(args, "stats-interval", "0")));
+        openClusterBus(option(args, "node-id", "node-" + port), option(args, "cluster-listen", ""),
+                option(args, "cluster-bind", ""), hubAddress);
+        startMetrics(Integer.parseInt(option(args, "admin-port", "0")));
+        ChatLog.NETWORK.info("Chat Server is running on port {} (mode: {})", port, mode);
+
+        if ("nio".equals(mode)) {
+            int loops = Integer.parseInt(option(args, "loops", String.valueOf(Runtime.getRuntime().availableProcessors())));
+            try {
+                new NioServer(port, loops).run();
+            } catch (IOException e) {
+                ChatLog.NETWORK.error("Could not listen on port {}: {}", port, e.getMessage());
+                System.exit(1);
+            }
+            return;
+        }
+
+        // Each blocking session drains its outbound queue on a writer task, so a stalled socket
+        // only ever blocks its own writer
+        ExecutorService virtualThreads = null;
+        Executor writerExecutor;
+        if ("virtual".equals(mode)) {
+            virtualThreads = newVirtualThreadPerTaskExecutor();
+            writerExecutor = virtualThreads;
+        } else if ("threads".equals(mode)) {
+            AtomicInteger writerCount = new AtomicInteger();
+            writerExecutor = Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(task, "writer-" + writerCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            System.err.println("Unknown mode '" + mode + "', expected threads, virtual or nio");
+            System.exit(1);
+            return;
+        }
+
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            while (true) {
+                Socket clientSocket = serverSocket.accept();
+                ChatLog.NETWORK.info("New client connected: {}", clientSocket.getInetAddress());
+                ClientHandler handler = new ClientHandler(clientSocket, writerExecutor);
+                if (virtualThreads != null) {
+                    virtualThreads.execute(handler);
+                } else {
+                    new Thread(handler).start();
+                }
+            }
+        } catch (IOException e) {
+            ChatLog.NETWORK.error("Could not listen on port {}", port);
+            System.exit(1);
+        }
+    }
+
+    // Looked up reflectively so the server and the load generator still compile and run the other modes on Java 17
+    static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) MethodHandles.publicLookup()
+                    .findStatic(Executors.class, "newVirtualThreadPerTaskExecutor", MethodType.methodType(ExecutorService.class))
+                    .invoke();
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            System.err.println("--mode=virtual requires Java 21 or newer (running " + System.getProperty("java.version") + ")");
+            System.exit(1);
+            return null;
+        } catch (Throwable t) {
+            throw new IllegalStateException("Could not create virtual thread executor", t);
+        }
+    }
+
+    // Opens the message log, refills the history ring from its tail and starts group commits
+    private static void openMessageLog(String directory, int segmentMegabytes, long commitIntervalMillis) {
+        if (directory.isEmpty()) {
+            ChatLog.NETWORK.info("Server: No message log, messages are kept in memory only");
+            return;
+        }
+        try {
+            messageLog = MessageLog.open(Paths.get(directory), segmentMegabytes * 1024 * 1024);
+        } catch (IOException e) {
+            ChatLog.NETWORK.error("Could not open message log in {}: {}", directory, e.getMessage());
+            System.exit(1);
+        }
+        long next = messageLog.nextId();
+        List<byte[]> tail = new ArrayList<>();
+        messageLog.readPage(next, messageHistory.capacity(), tail);
+        if (!tail.isEmpty() && Frame.storedMessage(tail.get(tail.size() - 1)).messageId() != next - 1) {
+            tail.clear(); // The messages right before next were lost in a crash; history starts after them
+        }
+        messageHistory.startAt(next - tail.size());
+        for (byte[] frame : tail) {
+            messageHistory.append(Frame.storedMessage(frame));
+        }
+        ChatLog.NETWORK.info("Server: Message log in {} holds messages {} to {}", directory, messageLog.firstId(), next - 1);
+
+        Thread committer = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(commitIntervalMillis);
+                    messageLog.commit();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    ChatLog.NETWORK.error("Server: Message log commit failed: {}", e.getMessage());
+                }
+            }
+        }, "message-log-commit");
+        committer.setDaemon(true);
+        committer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            publishLock.lock(); // No append can be half done while the log closes
+            try {
+                messageLog.close();
+            } catch (IOException e) {
+                ChatLog.NETWORK.error("Server: Could not close message log: {}", e.getMessage());
+            } finally {
+                publishLock.unlock();
+            }
+        }, "message-log-close"));
+    }
+
+    // Standalone unless --cluster-listen or --cluster-join is given
+    // The hub accepts nodes on bindAddress, by default on the loopback interface only
+    private static void openClusterBus(String nodeId, String listenPort, String bindAddress, String hubAddress) {
+        if (!listenPort.isEmpty() && !hubAddress.isEmpty()) {
+            System.err.println("--cluster-listen and --cluster-join are exclusive: a node is either the hub or joins one");
+            System.exit(1);
+        }
+        try {
+            if (!listenPort.isEmpty()) {
+                InetAddress address = bindAddress.isEmpty() ? InetAddress.getLoopbackAddress()
+                        : InetAddress.getByName(bindAddress);
+                bus = TcpClusterBus.listen(nodeId, address, Integer.parseInt(listenPort), ConnectSphereServer::deliver,
+                        ConnectSphereServer::clusterSnapshot);
+            } else if (!hubAddress.isEmpty()) {
+                int colon = hubAddress.lastIndexOf(':');
+                if (colon < 0) {
+                    System.err.println("Expected --cluster-join=host:port, got '" + hubAddress + "'");
+                    System.exit(1);
+                }
+                bus = TcpClusterBus.join(nodeId, hubAddress.substring(0, colon),
+                        Integer.parseInt(hubAddress.substring(colon + 1)), ConnectSphereServer::deliver);
+            } else {
+                bus = new ClusterBus.Standalone(nodeId, ConnectSphereServer::deliver);
+            }
+        } catch (IOException e) {
+            ChatLog.NETWORK.error("Could not set up the cluster: {}", e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    // A standalone node driven in-process rather than over sockets, e.g. by the benchmarks: sessions
+    // get their own Transport and are fed lines or frames directly
+    static void startInProcess(String nodeId) {
+        bus = new ClusterBus.Standalone(nodeId, ConnectSphereServer::deliver);
+    }
+
+    // Buses hand every event here, in the cluster's global order
+    private static void deliver(ClusterBus.Event event) {
+        publishLock.lock();
+        try {
+            apply(event);
+        } finally {
+            publishLock.unlock();
+        }
+    }
+
+    // Every node runs the same events through this in the same order, so each one makes the same
+    // decisions and hands out the same ids; only delivery to local sessions differs. Call under publishLock.
+    private static void apply(ClusterBus.Event event) {
+        switch (event.type) {
+            case ClusterBus.Event.CLAIM:
+                applyClaim(event);
+                break;
+            case ClusterBus.Event.RELEASE: {
+                SessionRegistry.Member member = registry.get(event.user);
+                // A stale release, e.g. sent after the node was dropped from the cluster, matches no claim
+                if (member != null && member.claimId == event.id && member.node.equals(event.node)) {
+                    release(member, event.value);
+                }
+                break;
+            }
+            case ClusterBus.Event.NODE_DOWN:
+                for (SessionRegistry.Member member : registry.members()) {
+                    if (member.node.equals(event.node)) {
+                        release(member, event.value);
+                    }
+                }
+                break;
+            case ClusterBus.Event.SAY:
+                appendMessage(WireProtocol.KIND_PUBLIC, event.user, event.text, event.value);
+                break;
+            case ClusterBus.Event.PRIVATE_MESSAGE:
+                deliverPrivateMessage(event);
+                break;
+            case ClusterBus.Event.TYPING:
+                typingTracker.request(event.user, event.flag, System.currentTimeMillis());
+                break;
+            case ClusterBus.Event.PRIVATE_TYPING: {
+                SessionRegistry.Member recipient = registry.get(event.peer);
+                if (recipient != null && recipient.session != null) {
+                    ChatLog.TYPING.debug("Server: Sending PMTYPING {} {} to {}", event.user, event.flag, recipient.name);
+                    recipient.session.enqueue(Frame.privateTyping(event.user, event.flag));
+                }
+                break;
+            }
+            case ClusterBus.Event.PUBLIC_REACTION:
+                if (!reactionTracker.add(event.id, event.text, event.user)) {
+                    ChatLog.MESSAGES.debug("Server: Rejected reaction from {} to message {}", event.user, event.id);
+                }
+                break;
+            case ClusterBus.Event.REACTION: {
+                // Private messages are not stored, so both parties are told and keep their own counts
+                if (!privateParties.isBetween(event.id, event.user, event.peer)) {
+                    ChatLog.MESSAGES.debug("Server: Rejected private reaction from {} to message {}", event.user, event.id);
+                    break;
+                }
+                SessionRegistry.Member sender = registry.get(event.user);
+                SessionRegistry.Member recipient = registry.get(event.peer);
+                if (sender != null && recipient != null) {
+                    if (recipient.session != null) {
+                        recipient.session.enqueue(Frame.reaction(sender.name, event.id, event.text));
+                    }
+                    if (sender.session != null) {
+                        sender.session.enqueue(Frame.reaction(recipient.name, event.id, event.text));
+                    }
+                }
+                break;
+            }
+            case ClusterBus.Event.DETACHED:
+                detach();
+                break;
+            case ClusterBus.Event.SYNC_BEGIN:
+                registry.clear();
+                messageHistory.reset(event.id);
+                presenceEpoch = event.value;
+                reactionTracker.clear();
+                typingTracker.clear();
+                privateParties.clear();
+                break;
+            case ClusterBus.Event.SYNC_MESSAGE:
+                messageHistory.append(Frame.storedMessage(event.frame));
+                break;
+            case ClusterBus.Event.SYNC_MEMBER:
+                registry.register(new SessionRegistry.Member(event.user, event.node, event.id, null), () -> { });
+                break;
+            case ClusterBus.Event.SYNC_REACTION:
+                reactionTracker.restore(event.id, event.text, event.user);
+                break;
+            case ClusterBus.Event.SYNC_PRIVATE:
+                privateParties.record(event.id, event.user, event.peer);
+                break;
+            case ClusterBus.Event.SYNC_END:
+                privateMessageIds.set(event.value);
+                ChatLog.PRESENCE.info("Server: In sync with the cluster: {} users online, next message id {}",
+                        registry.size(), messageHistory.nextSequence());
+                break;
+            default:
+                ChatLog.NETWORK.debug("Server: Ignoring cluster event type {}", event.type);
+                break;
+        }
+    }
+
+    // The first claim for a name in the cluster's order wins, and every node reaches the same verdict
+    private static void applyClaim(ClusterBus.Event event) {
+        boolean ours = event.node.equals(bus.nodeId());
+        ChatSession session = ours ? pendingClaims.remove(event.id) : null;
+        if (registry.get(event.user) != null) {
+            if (session != null) {
+                session.claimRejected();
+            }
+            return;
+        }
+        SessionRegistry.Member member = new SessionRegistry.Member(event.user, event.node, event.id, session);
+        // NAMEACCEPTED is queued before the session can receive any broadcast
+        registry.register(member, session != null ? () -> session.claimAccepted(member.name) : () -> { });
+        long epoch = ++presenceEpoch;
+        String[] everyone = registry.names();
+        if (session != null) {
+            session.sendWelcome(epoch, everyone);
+            ChatLog.PRESENCE.info("Server: Client {} connected", member.name);
+        } else {
+            ChatLog.PRESENCE.debug("Server: {} connected to node {}", member.name, member.node);
+        }
+        publishPresence(Frame.presence(true, epoch, member.name, everyone), session);
+        appendMessage(WireProtocol.KIND_SYSTEM, null, member.name + " joined the chat", event.value);
+        if (ours && session == null) {
+            // The client disconnected while its claim was in flight
+            bus.publish(ClusterBus.Event.release(member.node, member.claimId, member.name, event.value));
+        }
+    }
+
+    private static void release(SessionRegistry.Member member, long timestamp) {
+        registry.unregister(member);
+        publishPresence(Frame.presence(false, ++presenceEpoch, member.name, registry.names()), null);
+        if (member.session != null) {
+            ChatLog.PRESENCE.info("Server: Client {} left", member.name);
+        } else {
+            ChatLog.PRESENCE.debug("Server: {} left node {}", member.name, member.node);
+        }
+        // Goes out with the next typing flush if they were shown as typing
+        typingTracker.request(member.name, false, System.currentTimeMillis());
+        appendMessage(WireProtocol.KIND_SYSTEM, null, member.name + " left the chat", timestamp);
+    }
+
+    // Every node counts private messages, so both copies carry the same id wherever the two parties are
+    private static void deliverPrivateMessage(ClusterBus.Event event) {
+        long id = privateMessageIds.incrementAndGet();
+        SessionRegistry.Member sender = registry.get(event.user);
+        SessionRegistry.Member recipient = registry.get(event.peer);
+        if (sender == null) {
+            return;
+        }
+        if (recipient == null) {
+            if (sender.session != null) {
+                sender.session.sendNotice("Invalid private message format or user not found. Use: /pm username message");
+            }
+            return;
+        }
+        privateParties.record(id, sender.name, recipient.name);
+        if (recipient.session != null) {
+            recipient.session.enqueue(Frame.message(WireProtocol.KIND_PRIVATE_FROM, id, event.value, sender.name, event.text));
+        }
+        if (sender.session != null) {
+            sender.session.enqueue(Frame.message(WireProtocol.KIND_PRIVATE_TO, id, event.value, recipient.name, event.text));
+        }
+    }
+
+    // Public and system messages go to history, the log and every local session; the history sequence
+    // is the message id. Call under publishLock.
+    private static void appendMessage(int kind, String sender, String body, long timestamp) {
+        ChatLog.MESSAGES.debug("Server: Broadcasting message from {}: {}", sender, body);
+        Frame frame = Frame.message(kind, messageHistory.nextSequence(), timestamp, sender, body);
+        messageHistory.append(frame);
+        if (messageLog != null) {
+            try {
+                messageLog.append(frame.messageId(), frame.bytes(true));
+            } catch (IOException e) {
+                ChatLog.NETWORK.error("Server: Could not append message {} to the log: {}", frame.messageId(), e.getMessage());
+            }
+        }
+        long start = System.nanoTime();
+        for (ChatSession session : registry.sessions()) {
+            session.enqueue(frame);
+        }
+        broadcastFanoutTime.recordSince(start);
+    }
+
+    // Call under publishLock. except is the joiner, whose welcome batch already has the snapshot.
+    private static void publishPresence(Frame delta, ChatSession except) {
+        ChatSession[] sessions = registry.sessions();
+        ChatLog.PRESENCE.debug("Server: Publishing presence epoch {} ({} local users)", presenceEpoch, sessions.length);
+        long start = System.nanoTime();
+        for (ChatSession session : sessions) {
+            if (session != except) {
+                session.enqueue(delta);
+            }
+        }
+        presenceFanoutTime.recordSince(start);
+    }
+
+    // This node lost the cluster. Its clients are disconnected, since nothing they send could be
+    // ordered, and they can reconnect through a node that is still linked.
+    private static void detach() {
+        ChatSession[] sessions = registry.sessions();
+        for (ChatSession session : sessions) {
+            session.disconnect();
+        }
+        for (ChatSession session : pendingClaims.values()) {
+            session.disconnect();
+        }
+        pendingClaims.clear();
+        registry.clear();
+        ChatLog.PRESENCE.warn("Server: Disconnected {} clients after losing the cluster", sessions.length);
+    }
+
+    // The hub's state for a node that links up, as the SYNC events apply expects
+    private static List<ClusterBus.Event> clusterSnapshot() {
+        publishLock.lock();
+        try {
+            List<Frame> history = new ArrayList<>();
+            messageHistory.appendTo(history);
+            List<ClusterBus.Event> events = new ArrayList<>();
+            long firstId = history.isEmpty() ? messageHistory.nextSequence() : history.get(0).messageId();
+            events.add(ClusterBus.Event.syncBegin(firstId, presenceEpoch));
+            for (Frame frame : history) {
+                events.add(ClusterBus.Event.syncMessage(frame.bytes(true)));
+            }
+            for (SessionRegistry.Member member : registry.members()) {
+                events.add(ClusterBus.Event.syncMember(member.node, member.claimId, member.name));
+            }
+            reactionTracker.appendSync(messageHistory.oldestSequence(), events);
+            privateParties.appendSync(privateMessageIds.get(), events);
+            events.add(ClusterBus.Event.syncEnd(privateMessageIds.get()));
+            return events;
+        } finally {
+            publishLock.unlock();
+        }
+    }
+
+    // Every intervalMillis, publishes the coalesced delta that flush returns for the current time,
+    // if any (see TypingTracker and ReactionTracker)
+    private static void startDeltaFlusher(String name, long intervalMillis, LongFunction<Frame> flush) {
+        Thread flusher = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(intervalMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                publishLock.lock();
+                try {
+                    Frame frame = flush.apply(System.currentTimeMillis());
+                    if (frame != null) {
+                        for (ChatSession session : registry.sessions()) {
+                            session.enqueue(frame);
+                        }
+                    }
+                } finally {
+                    publishLock.unlock();
+                }
+            }
+        }, name);
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    // Exposes the trackers' counters next to the server's own, registers the MBean and, when
+    // --admin-port is set, serves /metrics on the loopback interface
+    private static void startMetrics(int adminPort) {
+        ServerMetrics.gauge("sessions", "Logged-in clients on this node", () -> registry.sessions().length);
+        ServerMetrics.gauge("users", "Logged-in clients across the cluster", registry::size);
+        ServerMetrics.gauge("outbound_queue_max_depth", "Deepest any outbound queue has been", maxQueueDepth::get);
+        ServerMetrics.counter("typing_changes_published", "Typing changes sent to clients", typingTracker.publishedChanges::sum);
+        ServerMetrics.counter("typing_changes_deferred", "Typing toggles held back by the rate limit", typingTracker.deferredChanges::sum);
+        ServerMetrics.counter("typing_expired", "Typing states that timed out", typingTracker.expired::sum);
+        ServerMetrics.counter("reactions_accepted", "Public reactions counted", reactionTracker.accepted::sum);
+        ServerMetrics.counter("reaction_counts_published", "Reaction totals sent to clients", reactionTracker.publishedCounts::sum);
+        ServerMetrics.counter("reactions_rejected", "Public reactions turned away", reactionTracker.rejected::sum);
+        ServerMetrics.counter("log_records_dropped", "Log records lost to a full log ring", ChatLog::droppedRecords);
+        if (messageLog != null) {
+            ServerMetrics.counter("message_log_appended", "Messages appended to the log", messageLog.appended::sum);
+            ServerMetrics.counter("message_log_commits", "Forces of the log to disk", messageLog.commits::sum);
+            ServerMetrics.gauge("message_log_mapped_segments", "Log segments mapped into memory", messageLog::mappedSegments);
+        }
+        if (bus instanceof TcpClusterBus) {
+            TcpClusterBus cluster = (TcpClusterBus) bus;
+            ServerMetrics.gauge("cluster_linked_nodes", "Links to other nodes that are up", cluster::linkedNodes);
+            ServerMetrics.counter("cluster_events_sent", "Events sent to other nodes", cluster.sent::sum);
+            ServerMetrics.counter("cluster_events_received", "Events received from other nodes", cluster.received::sum);
+        }
+        ServerMetrics.registerMBean();
+        if (adminPort > 0) {
+            try {
+                ServerMetrics.serve(adminPort);
+            } catch (IOException e) {
+                ChatLog.NETWORK.error("Could not listen on admin port {}: {}", adminPort, e.getMessage());
+                System.exit(1);
+            }
+        }
+    }
+
+    // Periodically prints outbound queue counters; disabled unless --stats-interval is set
+    private static void startQueueStatsReporter(int intervalSeconds) {
+        if (intervalSeconds <= 0) {
+            return;
+        }
+        Thread reporter = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(intervalSeconds * 1000L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                ChatSession[] sessions = registry.sessions();
+                int totalDepth = 0;
+                for (ChatSession session : sessions) {
+                    totalDepth += session.queueDepth();
+                }
+                ChatLog.NETWORK.info("Server: Outbound queues - sessions: {}, queued frames: {}, max depth: {}",
+                        sessions.length, totalDepth, maxQueueDepth.get());
+                ChatLog.NETWORK.info("Server: Outbound queues - dropped frames: {}, slow consumer disconnects: {}",
+                        droppedFrames.sum(), slowConsumerDisconnects.sum());
+                ChatLog.NETWORK.info("Server: Typing - published changes: {}, deferred: {}, expired: {}",
+                        typingTracker.publishedChanges.sum(), typingTracker.deferredChanges.sum(), typingTracker.expired.sum());
+                ChatLog.NETWORK.info("Server: Reactions - accepted: {}, published counts: {}, rejected: {}",
+                        reactionTracker.accepted.sum(), reactionTracker.publishedCounts.sum(), reactionTracker.rejected.sum());
+                if (messageLog != null) {
+                    ChatLog.NETWORK.info("Server: Message log - appended: {}, commits: {}",
+                            messageLog.appended.sum(), messageLog.commits.sum());
+                }
+                if (bus instanceof TcpClusterBus) {
+                    TcpClusterBus cluster = (TcpClusterBus) bus;
+                    ChatLog.NETWORK.info("Server: Cluster - linked nodes: {}, events sent: {}, events received: {}",
+                            cluster.linkedNodes(), cluster.sent.sum(), cluster.received.sum());
+                }
+            }
+        }, "queue-stats");
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+
+    // Reads --key=value from the command line, falling back to -Dconnectsphere.key=value
+    static String option(String[] args, String key, String defaultValue) {
+        String prefix = "--" + key + "=";
+        for (String arg : args) {
+            if (arg.startsWith(prefix)) {
+                return arg.substring(prefix.length());
+            }
+        }
+        return System.getProperty("connectsphere." + key, defaultValue);
+    }
+
+    // Transport side of a session: drains its outbound queue and can force the connection closed
+    interface Transport {
+        // Called when the session's queue goes from idle to having frames to send
+        void scheduleDrain();
+
+        void disconnect();
+    }
+
+    // Blocking transport: reads and decodes input on a platform thread (--mode=threads) or a
+    // virtual thread (--mode=virtual) per connection
+    private static class ClientHandler implements Runnable, Transport {
+        private final Socket socket;
+        private final Executor writerExecutor;
+        private OutputStream out;
+        private ChatSession session;
+
+        public ClientHandler(Socket socket, Executor writerExecutor) {
+            this.socket = socket;
+            this.writerExecutor = writerExecutor;
+        }
+
+        public void run() {
+            try {
+                InputStream in = socket.getInputStream();
+                out = new BufferedOutputStream(socket.getOutputStream(), 8192);
+                session = new ChatSession(this);
+                session.open();
+
+                WireProtocol.Decoder decoder = new WireProtocol.Decoder();
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = in.read(buffer)) >= 0) {
+                    bytesReceived.add(count);
+                    long start = System.nanoTime();
+                    boolean ok = decoder.decode(buffer, 0, count, session);
+                    readDispatchTime.recordSince(start);
+                    if (!ok) {
+                        ChatLog.NETWORK.warn("Server: Closing connection from {}: oversized or malformed input", session.getName());
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                ChatLog.NETWORK.info("Server: Client disconnected: {} - {}", session != null ? session.getName() : null, e.getMessage());
+            } finally {
+                if (session != null) {
+                    session.close();
+                }
+                disconnect();
+            }
+        }
+
+        public void scheduleDrain() {
+            writerExecutor.execute(this::drain);
+        }
+
+        // Writes everything queued since the last pass as already-encoded bytes, then flushes once
+        private void drain() {
+            try {
+                List<Frame> batch;
+                while ((batch = session.drainOutbound()) != null) {
+                    for (Frame frame : batch) {
+                        byte[] bytes = session.encode(frame);
+                        out.write(bytes);
+                        bytesSent.add(bytes.length);
+                    }
+                    out.flush();
+                }
+            } catch (IOException e) {
+                disconnect(); // The reader thread sees the closed socket and ends the session
+            }
+        }
+
+        public void disconnect() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                ChatLog.NETWORK.warn("Server: Error closing socket: {}", e.getMessage());
+            }
+        }
+    }
+
+    // Bounded queue of encoded frames for one session. Offers never block, so a client that stops
+    // reading only fills its own queue. When full, queued typing frames are evicted first; if there
+    // are none the frame is dropped or the session disconnected, depending on --queue-full.
+    static final class OutboundQueue {
+        static final int QUEUED = 0;
+        static final int SCHEDULE_DRAIN = 1; // Queue was idle; the caller must schedule a drain
+        static final int DROPPED = 2;
+        static final int FULL = 3;
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final int capacity;
+        private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+        private int typingCount = 0;
+        private boolean drainScheduled = false;
+
+        OutboundQueue(int capacity) {
+            this.capacity = capacity;
+        }
+
+        int offer(Frame frame) {
+            lock.lock();
+            try {
+                if (frames.size() >= capacity) {
+                    if (frame.typing || typingCount == 0) {
+                        return frame.typing ? DROPPED : FULL;
+                    }
+                    evictOldestTypingFrame();
+                }
+                frames.addLast(frame);
+                if (frame.typing) {
+                    typingCount++;
+                }
+                maxQueueDepth.accumulateAndGet(frames.size(), Math::max);
+                queueDepth.record(frames.size());
+                if (!drainScheduled) {
+                    drainScheduled = true;
+                    return SCHEDULE_DRAIN;
+                }
+                return QUEUED;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void evictOldestTypingFrame() {
+            Iterator<Frame> iterator = frames.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().typing) {
+                    iterator.remove();
+                    typingCount--;
+                    droppedFrames.increment();
+                    return;
+                }
+            }
+        }
+
+        // Takes every queued frame, or returns null and marks the queue idle when there are none
+        List<Frame> drain() {
+            lock.lock();
+            try {
+                if (frames.isEmpty()) {
+                    drainScheduled = false;
+                    return null;
+                }
+                List<Frame> batch = new ArrayList<>(frames);
+                frames.clear();
+                typingCount = 0;
+                return batch;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int size() {
+            lock.lock();
+            try {
+                return frames.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Fixed-capacity ring of recent MESSAGE frames. Appends are O(1) whatever the capacity and only
+    // happen under publishLock; readers copy the live window without locking and skip any slot
+    // that a newer append overwrote meanwhile.
+    static final class MessageHistory {
+        private static final class Entry {
+            final long sequence;
+            final Frame frame;
+
+            Entry(long sequence, Frame frame) {
+                this.sequence = sequence;
+                this.frame = frame;
+            }
+        }
+
+        private final AtomicReferenceArray<Entry> slots;
+        private final int capacity;
+        private volatile long nextSequence = 0;
+
+        MessageHistory(int capacity) {
+            this.capacity = Math.max(1, capacity);
+            this.slots = new AtomicReferenceArray<>(this.capacity);
+        }
+
+        int capacity() {
+            return capacity;
+        }
+
+        // Continues numbering after messages restored from the log; call before any append
+        void startAt(long sequence) {
+            nextSequence = sequence;
+        }
+
+        // Forgets every message and continues at sequence, e.g. to take over a hub's history
+        void reset(long sequence) {
+            for (int i = 0; i < capacity; i++) {
+                slots.set(i, null);
+            }
+            nextSequence = sequence;
+        }
+
+        void append(Frame frame) {
+            long sequence = nextSequence;
+            slots.set((int) (sequence % capacity), new Entry(sequence, frame));
+            nextSequence = sequence + 1;
+        }
+
+        // Sequence the next append will get; only stable while publishLock is held
+        long nextSequence() {
+            return nextSequence;
+        }
+
+        // Adds the retained frames with sequences below before, at most count of them, oldest first
+        void appendPage(long before, int count, List<Frame> out) {
+            long end = Math.min(before, nextSequence);
+            for (long sequence = Math.max(oldestSequence(), end - count); sequence < end; sequence++) {
+                Entry entry = slots.get((int) (sequence % capacity));
+                if (entry != null && entry.sequence == sequence) {
+                    out.add(entry.frame);
+                }
+            }
+        }
+
+        // Sequence of the oldest retained message
+        long oldestSequence() {
+            return Math.max(0, nextSequence - capacity);
+        }
+
+        boolean contains(long sequence) {
+            return sequence >= oldestSequence() && sequence < nextSequence;
+        }
+
+        // Appends the retained frames, oldest first
+        void appendTo(List<Frame> out) {
+            long end = nextSequence;
+            for (long sequence = Math.max(0, end - capacity); sequence < end; sequence++) {
+                Entry entry = slots.get((int) (sequence % capacity));
+                if (entry != null && entry.sequence == sequence) {
+                    out.add(entry.frame);
+                }
+            }
+        }
+    }
+
+    // Public typing state. Sessions only record what their user asked for; a flusher publishes the
+    // net change every --typing-interval as one TYPINGSET delta, so a burst of toggles from N users
+    // costs each client one frame per interval instead of N frames per toggle. A user's published
+    // state flips at most once per MIN_TOGGLE_INTERVAL_MS (later requests wait for a later flush),
+    // and a "start" that is not refreshed within --typing-timeout expires, so a client that stops
+    // responding without sending "stop" does not keep showing as typing.
+    static final class TypingTracker {
+        static final long MIN_TOGGLE_INTERVAL_MS = 500;
+
+        private static final class Entry {
+            boolean requested;
+            boolean published;
+            long lastRequest;   // Last "start", for expiry
+            long lastPublished; // For the per-user toggle limit
+        }
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Map<String, Entry> entries = new HashMap<>(); // Users whose requested or published state is "typing"
+        private final long timeoutMillis;
+        final LongAdder publishedChanges = new LongAdder();
+        final LongAdder deferredChanges = new LongAdder();
+        final LongAdder expired = new LongAdder();
+
+        TypingTracker(long timeoutMillis) {
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        void request(String user, boolean start, long now) {
+            lock.lock();
+            try {
+                Entry entry = entries.get(user);
+                if (entry == null) {
+                    if (!start) {
+                        return;
+                    }
+                    entry = new Entry();
+                    entries.put(user, entry);
+                }
+                entry.requested = start;
+                if (start) {
+                    entry.lastRequest = now;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void clear() {
+            lock.lock();
+            try {
+                entries.clear();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Everyone currently shown as typing; joiners get this and then every later delta.
+        // Call under publishLock so no delta can be published in between. Returns null if nobody is typing.
+        Frame snapshot() {
+            lock.lock();
+            try {
+                List<String> typing = new ArrayList<>();
+                for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                    if (e.getValue().published) {
+                        typing.add(e.getKey());
+                    }
+                }
+                return typing.isEmpty() ? null : Frame.typingSet(typing, Collections.emptyList());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // The net change since the last flush, or null if there is none. Call under publishLock
+        // and send the result to every session.
+        Frame flush(long now) {
+            lock.lock();
+            try {
+                List<String> started = null;
+                List<String> stopped = null;
+                Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<String, Entry> e = it.next();
+                    Entry entry = e.getValue();
+                    if (entry.requested && now - entry.lastRequest > timeoutMillis) {
+                        entry.requested = false;
+                        expired.increment();
+                    }
+                    if (entry.requested != entry.published) {
+                        if (now - entry.lastPublished < MIN_TOGGLE_INTERVAL_MS) {
+                            deferredChanges.increment();
+                            continue;
+                        }
+                        entry.published = entry.requested;
+                        entry.lastPublished = now;
+                        publishedChanges.increment();
+                        if (entry.published) {
+                            (started != null ? started : (started = new ArrayList<>())).add(e.getKey());
+                        } else {
+                            (stopped != null ? stopped : (stopped = new ArrayList<>())).add(e.getKey());
+                        }
+                    }
+                    if (!entry.requested && !entry.published) {
+                        it.remove();
+                    }
+                }
+                if (started == null && stopped == null) {
+                    return null;
+                }
+                return Frame.typingSet(started != null ? started : Collections.emptyList(),
+                        stopped != null ? stopped : Collections.emptyList());
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // The sender and recipient of each recent private message. Private messages are not stored,
+    // so this is all the server keeps of them: the last `capacity` ids, in a ring indexed by id,
+    // enough to react to anything still on a client's screen. Older ids can no longer be reacted
+    // to. Used under publishLock.
+    static final class PrivateParties {
+        private final long[] ids;
+        private final String[] senders;
+        private final String[] recipients;
+
+        PrivateParties(int capacity) {
+            ids = new long[capacity];
+            senders = new String[capacity];
+            recipients = new String[capacity];
+        }
+
+        void record(long messageId, String sender, String recipient) {
+            int slot = (int) (messageId % ids.length);
+            ids[slot] = messageId;
+            senders[slot] = sender;
+            recipients[slot] = recipient;
+        }
+
+        // Whether messageId is a recent private message between user and peer, in either direction
+        boolean isBetween(long messageId, String user, String peer) {
+            if (messageId <= 0) {
+                return false;
+            }
+            int slot = (int) (messageId % ids.length);
+            if (ids[slot] != messageId) {
+                return false;
+            }
+            return user.equals(senders[slot]) && peer.equals(recipients[slot])
+                    || user.equals(recipients[slot]) && peer.equals(senders[slot]);
+        }
+
+        void clear() {
+            Arrays.fill(ids, 0);
+            Arrays.fill(senders, null);
+            Arrays.fill(recipients, null);
+        }
+
+        // The parties of every id still kept, for a node that links up to this hub
+        void appendSync(long lastMessageId, List<ClusterBus.Event> out) {
+            for (long id = Math.max(1, lastMessageId - ids.length + 1); id <= lastMessageId; id++) {
+                int slot = (int) (id % ids.length);
+                if (ids[slot] == id) {
+                    out.add(ClusterBus.Event.syncPrivate(id, senders[slot], recipients[slot]));
+                }
+            }
+        }
+    }
+
+    // Public reaction counts for the messages still in history. Sessions record reactions as they
+    // arrive; a flusher publishes every total that changed as one REACTION_PUBLIC frame per
+    // --reaction-interval, so a popular message costs each client at most one frame per interval
+    // however many people react to it. Emoji are interned to small ids and each message keeps an
+    // int[] of counts indexed by them, so a message with reactions costs one short array. Each user
+    // counts once per message and emoji, so the names behind every count are kept as well.
+    static final class ReactionTracker {
+        static final int MAX_EMOJIS = 64;        // Distinct reactions accepted over the server's lifetime
+        static final int MAX_EMOJI_LENGTH = 16;  // chars; room for modifiers and zero-width joiners
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Map<String, Integer> emojiIds = new HashMap<>();
+        private final List<String> emojis = new ArrayList<>();
+        private final TreeMap<Long, int[]> counts = new TreeMap<>(); // Message id -> count per emoji id
+        private final Set<Long> changed = new LinkedHashSet<>();    // messageId * MAX_EMOJIS + emojiId
+        private final TreeMap<Long, Set<String>> reactors = new TreeMap<>(); // Same key -> who reacted
+        final LongAdder accepted = new LongAdder();
+        final LongAdder publishedCounts = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+
+        static boolean isValidEmoji(String emoji) {
+            if (emoji.isEmpty() || emoji.length() > MAX_EMOJI_LENGTH) {
+                return false;
+            }
+            for (int i = 0; i < emoji.length(); i++) {
+                if (Character.isWhitespace(emoji.charAt(i)) || Character.isISOControl(emoji.charAt(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Returns false if the message is no longer in history, the emoji is not accepted or user
+        // already reacted to the message with it
+        boolean add(long messageId, String emoji, String user) {
+            if (!messageHistory.contains(messageId) || !isValidEmoji(emoji)) {
+                rejected.increment();
+                return false;
+            }
+            lock.lock();
+            try {
+                int emojiId = emojiId(emoji);
+                if (emojiId < 0) {
+                    rejected.increment();
+                    return false;
+                }
+                if (!reactors.computeIfAbsent(messageId * MAX_EMOJIS + emojiId, key -> new HashSet<>()).add(user)) {
+                    rejected.increment();
+                    return false;
+                }
+                countsFor(messageId, emojiId)[emojiId]++;
+                changed.add(messageId * MAX_EMOJIS + emojiId);
+                accepted.increment();
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Counts one reaction taken from the hub's snapshot; the totals reach clients in their own
+        // welcome snapshot
+        void restore(long messageId, String emoji, String user) {
+            lock.lock();
+            try {
+                int emojiId = emojiId(emoji);
+                if (emojiId >= 0 && reactors.computeIfAbsent(messageId * MAX_EMOJIS + emojiId, key -> new HashSet<>()).add(user)) {
+                    countsFor(messageId, emojiId)[emojiId]++;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Forgets every count; the emoji ids stay, they are only ever used on this node
+        void clear() {
+            lock.lock();
+            try {
+                counts.clear();
+                changed.clear();
+                reactors.clear();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Every reaction to the retained messages, for a node that links up to this hub
+        void appendSync(long oldestMessageId, List<ClusterBus.Event> out) {
+            lock.lock();
+            try {
+                for (Map.Entry<Long, Set<String>> e : reactors.tailMap(oldestMessageId * MAX_EMOJIS).entrySet()) {
+                    long messageId = e.getKey() / MAX_EMOJIS;
+                    String emoji = emojis.get((int) (e.getKey() % MAX_EMOJIS));
+                    for (String user : e.getValue()) {
+                        out.add(ClusterBus.Event.syncReaction(messageId, emoji, user));
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // The emoji's interned id, or -1 once MAX_EMOJIS different ones are in use. Call under lock.
+        private int emojiId(String emoji) {
+            Integer emojiId = emojiIds.get(emoji);
+            if (emojiId == null) {
+                if (emojis.size() >= MAX_EMOJIS) {
+                    return -1;
+                }
+                emojiId = emojis.size();
+                emojis.add(emoji);
+                emojiIds.put(emoji, emojiId);
+            }
+            return emojiId;
+        }
+
+        // The message's counts, grown to hold emojiId. Call under lock.
+        private int[] countsFor(long messageId, int emojiId) {
+            int[] perEmoji = counts.get(messageId);
+            if (perEmoji == null || perEmoji.length <= emojiId) {
+                perEmoji = perEmoji == null ? new int[emojiId + 1] : Arrays.copyOf(perEmoji, emojiId + 1);
+                counts.put(messageId, perEmoji);
+            }
+            return perEmoji;
+        }
+
+        // Every count for the retained messages; joiners get this right after the history replay.
+        // Call under publishLock so no delta can be published in between. Returns null if there are none.
+        Frame snapshot(long oldestMessageId) {
+            lock.lock();
+            try {
+                forget(oldestMessageId);
+                List<long[]> entries = new ArrayList<>();
+                for (Map.Entry<Long, int[]> e : counts.entrySet()) {
+                    int[] perEmoji = e.getValue();
+                    for (int emojiId = 0; emojiId < perEmoji.length; emojiId++) {
+                        if (perEmoji[emojiId] > 0) {
+                            entries.add(new long[] {e.getKey(), emojiId, perEmoji[emojiId]});
+                        }
+                    }
+                }
+                return entries.isEmpty() ? null : toFrame(entries);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // The new totals for everything that changed since the last flush, or null if nothing did.
+        // Call under publishLock and send the result to every session.
+        Frame flush(long oldestMessageId) {
+            lock.lock();
+            try {
+                forget(oldestMessageId); // Messages that scrolled out of history
+                if (changed.isEmpty()) {
+                    return null;
+                }
+                List<long[]> entries = new ArrayList<>(changed.size());
+                for (long key : changed) {
+                    long messageId = key / MAX_EMOJIS;
+                    int emojiId = (int) (key % MAX_EMOJIS);
+                    int[] perEmoji = counts.get(messageId);
+                    if (perEmoji != null) {
+                        entries.add(new long[] {messageId, emojiId, perEmoji[emojiId]});
+                    }
+                }
+                changed.clear();
+                publishedCounts.add(entries.size());
+                return entries.isEmpty() ? null : toFrame(entries);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Drops the messages older than oldestMessageId. Call under lock.
+        private void forget(long oldestMessageId) {
+            counts.headMap(oldestMessageId).clear();
+            reactors.headMap(oldestMessageId * MAX_EMOJIS).clear();
+        }
+
+        private Frame toFrame(List<long[]> entries) {
+            long[] messageIds = new long[entries.size()];
+            String[] emojiNames = new String[entries.size()];
+            int[] totals = new int[entries.size()];
+            for (int i = 0; i < entries.size(); i++) {
+                long[] entry = entries.get(i);
+                messageIds[i] = entry[0];
+                emojiNames[i] = emojis.get((int) entry[1]);
+                totals[i] = (int) entry[2];
+            }
+            return Frame.publicReactions(messageIds, emojiNames, totals);
+        }
+    }
+
+    // Protocol state for one client. Transports feed it decoded lines or frames and call close()
+    // once the connection is gone, so the blocking and NIO servers speak exactly the same protocol.
+    // Both wire formats end up in the same handlers; only the parsing differs. Handlers validate
+    // what they can and publish events on the bus; the effects happen when the events are applied.
+    static class ChatSession implements WireProtocol.Sink {
+        private final Transport transport;
+        private final OutboundQueue outbound = new OutboundQueue(queueCapacity);
+        private volatile String name;   // Set once the cluster grants the claim
+        private volatile long claimId;  // The claim in flight or granted; 0 for none
+        private volatile boolean binary; // Negotiated binary1 framing, in both directions
+        private volatile boolean messageIds; // Text MESSAGE lines carry ids (ids1); binary frames always do
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private final AtomicBoolean disconnecting = new AtomicBoolean();
+
+        ChatSession(Transport transport) {
+            this.transport = transport;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        int queueDepth() {
+            return outbound.size();
+        }
+
+        // The encoding of frame this client gets
+        byte[] encode(Frame frame) {
+            return binary ? frame.bytes(true) : messageIds ? frame.textWithIds() : frame.bytes(false);
+        }
+
+        @Override
+        public boolean binaryInput() {
+            return binary;
+        }
+
+        // Broadcasts build the frame once and hand the same instance to every session
+        void enqueue(Frame frame) {
+            switch (outbound.offer(frame)) {
+                case OutboundQueue.SCHEDULE_DRAIN:
+                    transport.scheduleDrain();
+                    break;
+                case OutboundQueue.DROPPED:
+                    droppedFrames.increment();
+                    break;
+                case OutboundQueue.FULL:
+                    droppedFrames.increment();
+                    if (disconnectWhenFull && disconnecting.compareAndSet(false, true)) {
+                        slowConsumerDisconnects.increment();
+                        ChatLog.NETWORK.warn("Server: Disconnecting slow client {}: outbound queue full ({} frames)", name, queueCapacity);
+                        transport.disconnect();
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        // Used by the transport's writer; null means the queue is empty and now idle
+        List<Frame> drainOutbound() {
+            return outbound.drain();
+        }
+
+        // Request the client name
+        void open() {
+            connectionsOpened.increment();
+            promptForName();
+        }
+
+        private void promptForName() {
+            enqueue(Frame.submitName(offerBinary ? WireProtocol.BINARY_V1 + " " + WireProtocol.IDS_V1 : WireProtocol.IDS_V1));
+        }
+
+        @Override
+        public void onLine(String line) {
+            if (name == null) {
+                if (offerBinary && !binary && WireProtocol.PROTO_REQUEST.equals(line)) {
+                    // The client has already switched; the acknowledgement is the last text line we send
+                    binary = true;
+                    enqueue(Frame.handshake(WireProtocol.PROTO_ACK));
+                    ChatLog.NETWORK.debug("Server: Connection switched to {} framing", WireProtocol.BINARY_V1);
+                    return;
+                }
+                if (WireProtocol.IDS_REQUEST.equals(line)) {
+                    messageIds = true;
+                    return;
+                }
+                submitName(line);
+            } else {
+                handleMessage(line);
+            }
+        }
+
+        @Override
+        public void onFrame(int type, WireProtocol.Payload payload) {
+            if (name == null) {
+                if (type == WireProtocol.NAME) {
+                    submitName(payload.readString());
+                }
+                return; // Nothing else is accepted before a name
+            }
+            switch (type) {
+                case WireProtocol.SAY:
+                    handleChat(payload.readString());
+                    break;
+                case WireProtocol.PM: {
+                    long received = System.nanoTime();
+                    String recipient = payload.readString();
+                    String content = payload.readString();
+                    ChatLog.MESSAGES.debug("Server: Received private message from {} to {}: {}", name, recipient, content);
+                    SessionRegistry.Member recipientMember = registry.get(recipient);
+                    if (recipientMember == null || content.trim().isEmpty()) {
+                        sendNotice("Invalid private message format or user not found. Use: /pm username message");
+                    } else {
+                        sendPrivateMessage(recipientMember, content.trim(), received);
+                    }
+                    break;
+                }
+                case WireProtocol.SET_TYPING:
+                    setTyping(payload.readBoolean());
+                    break;
+                case WireProtocol.SET_PMTYPING: {
+                    String recipient = payload.readString();
+                    sendPrivateTypingStatus(recipient, payload.readBoolean());
+                    break;
+                }
+                case WireProtocol.REACT_PUBLIC: {
+                    long messageId = payload.readLong();
+                    addPublicReaction(messageId, payload.readString());
+                    break;
+                }
+                case WireProtocol.FETCH_HISTORY: {
+                    long beforeId = payload.readLong();
+                    sendHistoryPage(beforeId, payload.readVarint());
+                    break;
+                }
+                case WireProtocol.REACT: {
+                    String recipient = payload.readString();
+                    long messageId = payload.readLong();
+                    sendPrivateReaction(recipient, messageId, payload.readString());
+                    break;
+                }
+                case WireProtocol.LINE:
+                    handleMessage(payload.readString());
+                    break;
+                default:
+                    ChatLog.NETWORK.debug("Server: Ignoring unknown frame type {} from {}", type, name);
+                    break;
+            }
+        }
+
+        private void submitName(String line) {
+            if (claimId != 0) {
+                return; // Still waiting for the cluster's answer
+            }
+            String candidate = line.trim(); // Trim whitespace but keep internal spaces
+            if (candidate.isEmpty()) {
+                promptForName();
+                return;
+            }
+            long claim = claimIds.incrementAndGet();
+            claimId = claim;
+            pendingClaims.put(claim, this);
+            // Answered through claimAccepted or claimRejected when the claim is applied
+            if (!bus.publish(ClusterBus.Event.claim(bus.nodeId(), claim, candidate, System.currentTimeMillis()))) {
+                pendingClaims.remove(claim);
+                ChatLog.PRESENCE.warn("Server: Turning away {}: not linked to the cluster", candidate);
+                disconnect();
+            }
+        }
+
+        // Called by the registry under publishLock, before any broadcast can reach this session
+        private void claimAccepted(String acceptedName) {
+            name = acceptedName;
+            enqueue(Frame.nameAccepted(acceptedName));
+        }
+
+        private void claimRejected() {
+            claimId = 0;
+            promptForName();
+        }
+
+        // History, user list and typing set go out as one frame with a single flush. Called under
+        // publishLock, so no live event can slip in before or between them.
+        private void sendWelcome(long epoch, String[] everyone) {
+            long start = System.nanoTime();
+            List<Frame> welcome = new ArrayList<>();
+            messageHistory.appendTo(welcome);
+            Frame reactions = reactionTracker.snapshot(messageHistory.oldestSequence());
+            if (reactions != null) {
+                welcome.add(reactions);
+            }
+            welcome.add(Frame.userList(epoch, everyone));
+            Frame typing = typingTracker.snapshot();
+            if (typing != null) {
+                welcome.add(typing);
+            }
+            enqueue(Frame.concat(welcome));
+            historyReplayTime.recordSince(start);
+        }
+
+        // Handle text-protocol client messages
+        private void handleMessage(String message) {
+            ChatLog.MESSAGES.debug("Server: Received from {}: {}", name, message);
+            if (!message.isEmpty()) {
+                if (message.startsWith("/pm ")) {
+                    handlePrivateMessage(message);
+                } else if (message.startsWith("/typing ")) {
+                    handlePublicTypingStatus(message);
+                } else if (message.startsWith("/pmtyping ")) {
+                    handlePrivateTypingStatus(message);
+                } else if ("/users".equals(message)) {
+                    sendUserList();
+                } else if (message.startsWith("/history ")) {
+                    handleHistoryRequest(message);
+                } else if (message.startsWith("/reaction_public ")) {
+                    handlePublicReaction(message);
+                } else if (message.startsWith("/reaction ")) {
+                    handlePrivateReaction(message);
+                } else {
+                    handleChat(message);
+                }
+            }
+        }
+
+        private void handleChat(String message) {
+            if (!message.isEmpty()) {
+                messagesReceived.increment();
+                bus.publish(ClusterBus.Event.say(name, System.currentTimeMillis(), message));
+            }
+        }
+
+        // Called exactly once by the transport when the connection ends
+        void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            connectionsClosed.increment();
+            String leaving;
+            publishLock.lock();
+            try {
+                // Decided under the lock, so a claim being applied right now sees either this session or nothing
+                leaving = name;
+                if (leaving == null && claimId != 0) {
+                    pendingClaims.remove(claimId);
+                }
+            } finally {
+                publishLock.unlock();
+            }
+            if (leaving != null) {
+                // Published outside publishLock: a hub orders events under its own lock, which comes first
+                bus.publish(ClusterBus.Event.release(bus.nodeId(), claimId, leaving, System.currentTimeMillis()));
+            }
+        }
+
+        void disconnect() {
+            transport.disconnect();
+        }
+
+        private void handlePrivateMessage(String message) {
+            long received = System.nanoTime();
+            if (!message.startsWith("/pm ") || message.length() <= 4) {
+                sendNotice("Invalid private message format. Use: /pm username message");
+                return;
+            }
+
+            String remaining = message.substring(4).trim();
+            if (remaining.isEmpty()) {
+                sendNotice("Invalid private message format. Use: /pm username message");
+                return;
+            }
+
+            // Longest online name followed by a space, so "Bob Smith" wins over "Bob"
+            SessionRegistry.Member recipient = registry.longestNamePrefix(remaining);
+            String pmContent = recipient != null ? remaining.substring(recipient.name.length()).trim() : null;
+
+            if (recipient == null || pmContent.isEmpty()) {
+                sendNotice("Invalid private message format or user not found. Use: /pm username message");
+                return;
+            }
+            sendPrivateMessage(recipient, pmContent, received);
+        }
+
+        // Both copies carry the same id, so either party can react to the message. receivedNanos is
+        // when the message came in, for the routing time.
+        private void sendPrivateMessage(SessionRegistry.Member recipient, String content, long receivedNanos) {
+            messagesReceived.increment();
+            bus.publish(ClusterBus.Event.privateMessage(name, recipient.name, System.currentTimeMillis(), content));
+            privateMessageRoutingTime.recordSince(receivedNanos);
+        }
+
+        // A message from "Server" to this client only
+        private void sendNotice(String text) {
+            enqueue(Frame.message(WireProtocol.KIND_PUBLIC, -1, System.currentTimeMillis(), "Server", text));
+        }
+
+        private void handlePublicTypingStatus(String message) {
+            String[] parts = message.split(" ", 3);
+            if (parts.length < 2 || !("start".equals(parts[1]) || "stop".equals(parts[1]))) {
+                ChatLog.TYPING.warn("Server: Invalid typing message format from {}", name);
+                return;
+            }
+            ChatLog.TYPING.debug("Server: Received /typing {} from {}", parts[1], name);
+            setTyping("start".equals(parts[1]));
+        }
+
+        // Accepts "/pmtyping <recipient> <start|stop>" as sent by the client, and the older
+        // "/pmtyping <start|stop> <recipient>" form
+        private void handlePrivateTypingStatus(String message) {
+            String remaining = message.substring(10).trim();
+            String status;
+            String recipientName;
+            if (remaining.endsWith(" start") || remaining.endsWith(" stop")) {
+                int space = remaining.lastIndexOf(' ');
+                status = remaining.substring(space + 1);
+                recipientName = remaining.substring(0, space).trim();
+            } else if (remaining.startsWith("start ") || remaining.startsWith("stop ")) {
+                int space = remaining.indexOf(' ');
+                status = remaining.substring(0, space);
+                recipientName = remaining.substring(space + 1).trim();
+            } else {
+                ChatLog.TYPING.warn("Server: Invalid pmtyping message format from {}", name);
+                return;
+            }
+            ChatLog.TYPING.debug("Server: Received /pmtyping {} from {}", status, name);
+            sendPrivateTypingStatus(recipientName, "start".equals(status));
+        }
+
+        // Send the typing status only to the recipient
+        private void sendPrivateTypingStatus(String recipientName, boolean start) {
+            SessionRegistry.Member recipient = registry.get(recipientName);
+            if (recipient == null) {
+                ChatLog.TYPING.debug("Server: Could not determine recipient for /pmtyping from {}", name);
+                return;
+            }
+            bus.publish(ClusterBus.Event.privateTyping(name, recipient.name, start));
+        }
+
+        // "/history <beforeId> <count>"
+        private void handleHistoryRequest(String message) {
+            String[] parts = message.split(" ");
+            try {
+                if (parts.length == 3) {
+                    sendHistoryPage(Long.parseLong(parts[1]), Integer.parseInt(parts[2]));
+                    return;
+                }
+            } catch (NumberFormatException e) {
+                // Reported below
+            }
+            sendNotice("Invalid history request. Use: /history beforeId count");
+        }
+
+        // Pages come straight out of the mapped log without taking publishLock; without a log, the
+        // history ring is all there is
+        private void sendHistoryPage(long beforeId, int count) {
+            long start = System.nanoTime();
+            count = Math.max(0, Math.min(count, MAX_HISTORY_PAGE));
+            List<Frame> page = new ArrayList<>(count);
+            if (messageLog != null) {
+                List<byte[]> frames = new ArrayList<>(count);
+                messageLog.readPage(beforeId, count, frames);
+                for (byte[] frame : frames) {
+                    page.add(Frame.storedMessage(frame));
+                }
+            } else {
+                messageHistory.appendPage(beforeId, count, page);
+            }
+            ChatLog.MESSAGES.debug("Server: Sending {} history messages before {} to {}", page.size(), beforeId, name);
+            enqueue(Frame.historyPage(page));
+            historyPageTime.recordSince(start);
+        }
+
+        // "/reaction_public <messageId> <emoji>"
+        private void handlePublicReaction(String message) {
+            String[] parts = message.split(" ", 3);
+            try {
+                if (parts.length == 3) {
+                    addPublicReaction(Long.parseLong(parts[1]), parts[2].trim());
+                    return;
+                }
+            } catch (NumberFormatException e) {
+                // Reported below
+            }
+            ChatLog.MESSAGES.debug("Server: Invalid reaction_public message format from {}", name);
+        }
+
+        // "/reaction <user> <messageId> <emoji>"; the user name may contain spaces
+        private void handlePrivateReaction(String message) {
+            String remaining = message.substring(10).trim();
+            int emojiStart = remaining.lastIndexOf(' ');
+            int idStart = emojiStart > 0 ? remaining.lastIndexOf(' ', emojiStart - 1) : -1;
+            try {
+                if (idStart > 0) {
+                    long messageId = Long.parseLong(remaining.substring(idStart + 1, emojiStart));
+                    sendPrivateReaction(remaining.substring(0, idStart).trim(), messageId, remaining.substring(emojiStart + 1));
+                    return;
+                }
+            } catch (NumberFormatException e) {
+                // Reported below
+            }
+            ChatLog.MESSAGES.debug("Server: Invalid reaction message format from {}", name);
+        }
+
+        // Recorded only; the reaction flusher publishes the new totals. Hopeless reactions are
+        // turned away here rather than sent around the cluster.
+        private void addPublicReaction(long messageId, String emoji) {
+            if (!knowsMessageIds()) {
+                reactionTracker.rejected.increment();
+                ChatLog.MESSAGES.debug("Server: Ignoring reaction from {}, whose client has no message ids", name);
+                return;
+            }
+            if (!messageHistory.contains(messageId) || !ReactionTracker.isValidEmoji(emoji)) {
+                reactionTracker.rejected.increment();
+                ChatLog.MESSAGES.debug("Server: Rejected reaction from {} to message {}", name, messageId);
+                return;
+            }
+            bus.publish(ClusterBus.Event.publicReaction(name, messageId, emoji));
+        }
+
+        // Only the two parties of a private message may react to it; apply checks that in the
+        // cluster's order, so a reaction from anyone else is dropped on every node
+        private void sendPrivateReaction(String recipientName, long messageId, String emoji) {
+            SessionRegistry.Member recipient = registry.get(recipientName);
+            if (!knowsMessageIds() || recipient == null || messageId <= 0 || messageId > privateMessageIds.get()
+                    || !ReactionTracker.isValidEmoji(emoji)) {
+                ChatLog.MESSAGES.debug("Server: Rejected private reaction from {} to message {}", name, messageId);
+                return;
+            }
+            bus.publish(ClusterBus.Event.reaction(name, recipient.name, messageId, emoji));
+        }
+
+        // Old text clients react with ids they numbered themselves, which name other messages here
+        private boolean knowsMessageIds() {
+            return binary || messageIds;
+        }
+
+        // Recorded only; the typing flusher tells everyone
+        private void setTyping(boolean start) {
+            bus.publish(ClusterBus.Event.typing(name, start));
+        }
+
+        // A fresh snapshot for a client whose list fell out of step, e.g. after a dropped delta
+        private void sendUserList() {
+            publishLock.lock();
+            try {
+                enqueue(Frame.userList(presenceEpoch, registry.names()));
+            } finally {
+                publishLock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package connectsphere;
+
+import javax.swing.AbstractListModel;
+import java.util.ArrayList;
+import java.util.List;
+
+import connectsphere.ConnectSphereClient.ChatMessage;
+
+// One conversation in the client, the public room or a private chat: the last `retention`
+// messages, oldest first, and an index from server message id to position, so a reaction finds
+// its message without a scan. Messages live in a ring that grows on demand up to the retention
+// window; once full, each new message drops the oldest, with no copying or shifting. The
+// conversation is the JList model itself, so showing it costs no second copy.
+// Like any Swing model it is used on the EDT only.
+//
+// Between holdEvents() and releaseEvents() changes are not reported one by one: each
+// conversation then tells its list once, with one removed, one added and one changed range, so a
+// batch of server events lays out and repaints each list once.
+final class Conversation extends AbstractListModel<ChatMessage> {
+    private static final long serialVersionUID = 1L;
+    static final int INITIAL_CAPACITY = 16; // Also half the initial index slots
+    private static final long NO_SLOT = 0; // Index slots hold sequence + 1, so zero marks an empty one
+
+    private final int retention;
+    private ChatMessage[] ring = new ChatMessage[INITIAL_CAPACITY]; // A power of two; slot = sequence & (length - 1)
+    private long first = 0; // Sequence number of the oldest message kept
+    private long next = 0;  // Sequence number of the next message
+
+    // Message id -> sequence number, open addressing with linear probing. Messages without an id
+    // (local lines, server notices) are not indexed.
+    private long[] ids = new long[INITIAL_CAPACITY * 2];
+    private long[] slots = new long[INITIAL_CAPACITY * 2];
+    private int indexed = 0;
+
+    private static boolean holding = false;
+    private static final List<Conversation> held = new ArrayList<>(); // Changed while holding
+    // What the listeners last heard, as sequence numbers, and the changed rows since then
+    private boolean isHeld = false;
+    private long heardFirst;
+    private long heardNext;
+    private long changedFrom = Long.MAX_VALUE;
+    private long changedTo = -1;
+
+    Conversation(int retention) {
+        this.retention = Math.max(1, retention);
+    }
+
+    @Override
+    public int getSize() {
+        return (int) (next - first);
+    }
+
+    @Override
+    public ChatMessage getElementAt(int position) {
+        return ring[(int) ((first + position) & (ring.length - 1))];
+    }
+
+    // Conversations report changes once per batch until releaseEvents()
+    static void holdEvents() {
+        holding = true;
+    }
+
+    static boolean holdingEvents() {
+        return holding;
+    }
+
+    static void releaseEvents() {
+        holding = false;
+        for (Conversation conversation : held) {
+            conversation.fireHeld();
+        }
+        held.clear();
+    }
+
+    // Appends a message, dropping the oldest once the retention window is full
+    void add(ChatMessage message) {
+        if (holding) {
+            hold();
+        }
+        if (getSize() == retention) {
+            int slot = (int) (first & (ring.length - 1));
+            ChatMessage oldest = ring[slot];
+            ring[slot] = null;
+            if (oldest.messageId >= 0) {
+                unindex(oldest.messageId, first);
+            }
+            first++;
+            if (!holding) {
+                fireIntervalRemoved(this, 0, 0);
+            }
+        } else if (getSize() == ring.length) {
+            grow();
+        }
+        long sequence = next++;
+        ring[(int) (sequence & (ring.length - 1))] = message;
+        if (message.messageId >= 0) {
+            index(message.messageId, sequence);
+        }
+        if (!holding) {
+            int position = getSize() - 1;
+            fireIntervalAdded(this, position, position);
+        }
+    }
+
+    // Position of the message with this server id, or -1 if it is not (or no longer) here
+    int indexOf(long messageId) {
+        int i = find(messageId);
+        return slots[i] == NO_SLOT ? -1 : (int) (slots[i] - 1 - first);
+    }
+
+    // Repaints one message after it changed, e.g. a new reaction
+    void changed(int position) {
+        if (holding) {
+            hold();
+            changedFrom = Math.min(changedFrom, first + position);
+            changedTo = Math.max(changedTo, first + position);
+        } else {
+            fireContentsChanged(this, position, position);
+        }
+    }
+
+    private void hold() {
+        if (isHeld) {
+            return;
+        }
+        isHeld = true;
+        held.add(this);
+        heardFirst = first;
+        heardNext = next;
+    }
+
+    // Reports everything since hold() as at most three ranges, in the order listeners expect
+    private void fireHeld() {
+        long removed = Math.min(first - heardFirst, heardNext - heardFirst); // Rows the list showed that are gone
+        long kept = heardNext - heardFirst - removed;
+        if (removed > 0) {
+            fireIntervalRemoved(this, 0, (int) removed - 1);
+        }
+        if (getSize() > kept) {
+            fireIntervalAdded(this, (int) kept, getSize() - 1);
+        }
+        long from = Math.max(changedFrom, first);
+        long to = Math.min(changedTo, heardNext - 1); // Added rows were just reported
+        if (from <= to) {
+            fireContentsChanged(this, (int) (from - first), (int) (to - first));
+        }
+        changedFrom = Long.MAX_VALUE;
+        changedTo = -1;
+        isHeld = false;
+    }
+
+    private void grow() {
+        ChatMessage[] larger = new ChatMessage[ring.length * 2];
+        for (long sequence = first; sequence < next; sequence++) {
+            larger[(int) (sequence & (larger.length - 1))] = ring[(int) (sequence & (ring.length - 1))];
+        }
+        ring = larger;
+    }
+
+    static int hash(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    // The slot holding id, or the empty slot where it would go
+    private int find(long id) {
+        int mask = ids.length - 1;
+        int i = hash(id) & mask;
+        while (slots[i] != NO_SLOT && ids[i] != id) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    // A replayed message (e.g. history after a reconnect) moves its id to the newest copy
+    private void index(long id, long sequence) {
+        int i = find(id);
+        if (slots[i] == NO_SLOT) {
+            if ((indexed + 1) * 2 > ids.length) {
+                rehash(ids.length * 2);
+                i = find(id);
+            }
+            ids[i] = id;
+            indexed++;
+        }
+        slots[i] = sequence + 1;
+    }
+
+    // Removes id if it still points at sequence, shifting later entries of its probe run back
+    private void unindex(long id, long sequence) {
+        int i = find(id);
+        if (slots[i] != sequence + 1) {
+            return;
+        }
+        int mask = ids.length - 1;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (slots[j] == NO_SLOT) {
+                break;
+            }
+            int home = hash(ids[j]) & mask;
+            // Entry j may fill the hole at i only if its home slot is not within (i, j]
+            boolean stays = i <= j ? home > i && home <= j : home > i || home <= j;
+            if (!stays) {
+                ids[i] = ids[j];
+                slots[i] = slots[j];
+                i = j;
+            }
+        }
+        slots[i] = NO_SLOT;
+        indexed--;
+    }
+
+    private void rehash(int length) {
+        long[] oldIds = ids;
+        long[] oldSlots = slots;
+        ids = new long[length];
+        slots = new long[length];
+        for (int i = 0; i < oldIds.length; i++) {
+            if (oldSlots[i] != NO_SLOT) {
+                int j = find(oldIds[i]);
+                ids[j] = oldIds[i];
+                slots[j] = oldSlots[i];
+            }
+        }
+    }
+}
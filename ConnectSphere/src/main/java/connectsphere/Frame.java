@@ -0,0 +1,338 @@
+package connectsphere;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+// One outbound event. Broadcasts hand the same Frame to every session, and each wire format is
+// encoded at most once however many sessions receive it: a 2,000-user room encodes a message
+// once per format in use, not 2,000 times. Encodings are built on first use, so a room without
+// binary clients never builds binary frames. Frames are immutable and safe to share across threads.
+final class Frame {
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss").withZone(ZoneId.systemDefault());
+    private static final int CONCAT = -1;
+    private static final int HANDSHAKE = -2; // Same bytes in both formats
+
+    final boolean typing; // Typing frames are the first to go when a session's queue is full
+    private final int type;
+    private final int kind;
+    private final long id;
+    private final long timestamp;
+    private final String first;
+    private final String second;
+    private final String[] names; // USERJOIN and USERLEAVE: everyone online, for text clients
+    private final String[] stoppedNames; // TYPINGSET only; names holds the users who started
+    private final long[] messageIds;     // REACTION_PUBLIC only, with names holding the emoji
+    private final int[] totals;
+    private final List<Frame> parts;
+    // Racy but benign: two threads may both encode, and both get identical bytes
+    private volatile byte[] text;
+    private volatile byte[] textWithIds; // MESSAGE and CONCAT only; others have one text encoding
+    private volatile byte[] binary;
+
+    private Frame(int type, boolean typing, int kind, long id, long timestamp, String first, String second,
+                  String[] names, List<Frame> parts) {
+        this(type, typing, kind, id, timestamp, first, second, names, null, parts);
+    }
+
+    private Frame(int type, boolean typing, int kind, long id, long timestamp, String first, String second,
+                  String[] names, String[] stoppedNames, List<Frame> parts) {
+        this(type, typing, kind, id, timestamp, first, second, names, stoppedNames, null, null, parts);
+    }
+
+    private Frame(int type, boolean typing, int kind, long id, long timestamp, String first, String second,
+                  String[] names, String[] stoppedNames, long[] messageIds, int[] totals, List<Frame> parts) {
+        this.type = type;
+        this.typing = typing;
+        this.kind = kind;
+        this.id = id;
+        this.timestamp = timestamp;
+        this.first = first;
+        this.second = second;
+        this.names = names;
+        this.stoppedNames = stoppedNames;
+        this.messageIds = messageIds;
+        this.totals = totals;
+        this.parts = parts;
+    }
+
+    // caps is advertised to clients that understand it, e.g. "binary1", or null
+    static Frame submitName(String caps) {
+        return new Frame(WireProtocol.SUBMITNAME, false, 0, 0, 0, caps, null, null, null);
+    }
+
+    // The text line at which the server's output switches format; identical in both formats
+    static Frame handshake(String line) {
+        return new Frame(HANDSHAKE, false, 0, 0, 0, line, null, null, null);
+    }
+
+    static Frame nameAccepted(String name) {
+        return new Frame(WireProtocol.NAMEACCEPTED, false, 0, 0, 0, name, null, null, null);
+    }
+
+    // A chat line. sender is the other party for private kinds and ignored for KIND_SYSTEM.
+    static Frame message(int kind, long id, long timestamp, String sender, String body) {
+        return new Frame(WireProtocol.MESSAGE, false, kind, id, timestamp, sender == null ? "" : sender, body, null, null);
+    }
+
+    // The full presence snapshot at epoch, sent on connect and on request
+    static Frame userList(long epoch, String[] names) {
+        return new Frame(WireProtocol.USERLIST, false, 0, epoch, 0, null, null, names, null);
+    }
+
+    // One join or leave moving presence to epoch. Binary clients get just the change; text clients
+    // have no delta line, so they get the whole list in everyone, as before.
+    static Frame presence(boolean joined, long epoch, String name, String[] everyone) {
+        return new Frame(joined ? WireProtocol.USERJOIN : WireProtocol.USERLEAVE, false, 0, epoch, 0, name, null, everyone, null);
+    }
+
+    // A public typing delta. Binary clients get one TYPINGSET frame; the text protocol has no
+    // equivalent, so text clients get one TYPING line per change, as before.
+    static Frame typingSet(List<String> started, List<String> stopped) {
+        return new Frame(WireProtocol.TYPINGSET, true, 0, 0, 0, null, null,
+                started.toArray(new String[0]), stopped.toArray(new String[0]), null);
+    }
+
+    static Frame privateTyping(String user, boolean start) {
+        return new Frame(WireProtocol.PMTYPING, true, start ? 1 : 0, 0, 0, user, null, null, null);
+    }
+
+    // New public reaction totals: entry i sets emojis[i] on message messageIds[i] to totals[i].
+    // Totals rather than increments, so applying the same frame twice does no harm.
+    static Frame publicReactions(long[] messageIds, String[] emojis, int[] totals) {
+        return new Frame(WireProtocol.REACTION_PUBLIC, false, 0, 0, 0, null, null, emojis, null, messageIds, totals, null);
+    }
+
+    // A private reaction; user is the other party of the conversation
+    static Frame reaction(String user, long messageId, String emoji) {
+        return new Frame(WireProtocol.REACTION, false, 0, messageId, 0, user, emoji, null, null);
+    }
+
+    // A MESSAGE frame read back from the message log. The stored bytes are exactly what binary
+    // clients receive, so they are reused as is; only text clients cause any encoding.
+    static Frame storedMessage(byte[] binaryFrame) {
+        int offset = 1;
+        while ((binaryFrame[offset] & 0x80) != 0) {
+            offset++;
+        }
+        offset++;
+        WireProtocol.Payload payload = new WireProtocol.Payload();
+        payload.reset(binaryFrame, offset, binaryFrame.length - offset);
+        int kind = payload.readByte();
+        long id = payload.readLong();
+        long timestamp = payload.readLong();
+        String sender = payload.readString();
+        Frame frame = message(kind, id, timestamp, sender, payload.readString());
+        frame.binary = binaryFrame;
+        return frame;
+    }
+
+    // An answer to a history request: a HISTORY header and then the page's messages, oldest first
+    static Frame historyPage(List<Frame> messages) {
+        List<Frame> frames = new ArrayList<>(messages.size() + 1);
+        frames.add(new Frame(WireProtocol.HISTORY, false, 0, messages.size(), 0, null, null, null, null));
+        frames.addAll(messages);
+        return concat(frames);
+    }
+
+    // The server-assigned id of a MESSAGE frame
+    long messageId() {
+        return id;
+    }
+
+    // Several frames sent as one write, e.g. the welcome batch for a joining client
+    static Frame concat(List<Frame> frames) {
+        return new Frame(CONCAT, false, 0, 0, 0, null, null, null, List.copyOf(frames));
+    }
+
+    byte[] bytes(boolean binaryFormat) {
+        byte[] bytes = binaryFormat ? binary : text;
+        if (bytes == null) {
+            bytes = type == CONCAT ? concatBytes(frame -> frame.bytes(binaryFormat))
+                    : binaryFormat ? encodeBinary() : encodeText(false);
+            if (binaryFormat) {
+                binary = bytes;
+            } else {
+                text = bytes;
+            }
+        }
+        return bytes;
+    }
+
+    // The text encoding for clients that asked for message ids (ids1): MESSAGE lines end with a
+    // tab and the id. Every other frame is the same as bytes(false).
+    byte[] textWithIds() {
+        if (type != WireProtocol.MESSAGE && type != CONCAT) {
+            return bytes(false);
+        }
+        byte[] bytes = textWithIds;
+        if (bytes == null) {
+            bytes = type == CONCAT ? concatBytes(Frame::textWithIds) : encodeText(true);
+            textWithIds = bytes;
+        }
+        return bytes;
+    }
+
+    private byte[] concatBytes(Function<Frame, byte[]> encoding) {
+        int length = 0;
+        for (Frame frame : parts) {
+            length += encoding.apply(frame).length;
+        }
+        byte[] bytes = new byte[length];
+        int offset = 0;
+        for (Frame frame : parts) {
+            byte[] part = encoding.apply(frame);
+            System.arraycopy(part, 0, bytes, offset, part.length);
+            offset += part.length;
+        }
+        return bytes;
+    }
+
+    private byte[] encodeText(boolean withIds) {
+        String line;
+        switch (type) {
+            case HANDSHAKE:
+                line = first;
+                break;
+            case WireProtocol.SUBMITNAME:
+                line = first == null ? "SUBMITNAME" : "SUBMITNAME " + first;
+                break;
+            case WireProtocol.NAMEACCEPTED:
+                line = "NAMEACCEPTED " + first;
+                break;
+            case WireProtocol.MESSAGE:
+                line = "MESSAGE " + messageText();
+                if (withIds && id >= 0) {
+                    // The id trails the display text after a tab, which the body therefore cannot hold
+                    line = line.replace('\t', ' ') + "\t" + id;
+                }
+                break;
+            case WireProtocol.USERLIST:
+            case WireProtocol.USERJOIN:
+            case WireProtocol.USERLEAVE:
+                line = "USERLIST " + String.join(",", names);
+                break;
+            case WireProtocol.TYPINGSET: {
+                StringBuilder lines = new StringBuilder();
+                for (String user : names) {
+                    lines.append("TYPING ").append(oneLine(user)).append(" start\n");
+                }
+                for (String user : stoppedNames) {
+                    lines.append("TYPING ").append(oneLine(user)).append(" stop\n");
+                }
+                lines.setLength(lines.length() - 1); // The final newline is added below
+                line = lines.toString();
+                break;
+            }
+            case WireProtocol.REACTION_PUBLIC: {
+                StringBuilder lines = new StringBuilder();
+                for (int i = 0; i < messageIds.length; i++) {
+                    lines.append("REACTION_PUBLIC ").append(messageIds[i]).append(' ')
+                            .append(oneLine(names[i])).append(' ').append(totals[i]).append('\n');
+                }
+                lines.setLength(lines.length() - 1);
+                line = lines.toString();
+                break;
+            }
+            case WireProtocol.REACTION:
+                line = "REACTION " + first + " " + id + " " + second;
+                break;
+            case WireProtocol.HISTORY:
+                line = "HISTORY " + id;
+                break;
+            case WireProtocol.PMTYPING:
+                line = "PMTYPING " + first + (kind == 1 ? " start" : " stop");
+                break;
+            default:
+                throw new IllegalStateException("Unknown frame type " + type);
+        }
+        if (type != WireProtocol.TYPINGSET && type != WireProtocol.REACTION_PUBLIC) {
+            line = oneLine(line); // These span several lines and flatten each field instead
+        }
+        return (line + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Binary clients may send names and messages containing line breaks; on the text protocol
+    // they would end the line early and let the rest be read as a command
+    private static String oneLine(String text) {
+        if (text.indexOf('\n') < 0 && text.indexOf('\r') < 0) {
+            return text;
+        }
+        return text.replace('\n', ' ').replace('\r', ' ');
+    }
+
+    // The text protocol carries messages preformatted for display
+    private String messageText() {
+        if (kind == WireProtocol.KIND_SYSTEM) {
+            return second;
+        }
+        String time = "[" + TIME.format(Instant.ofEpochMilli(timestamp)) + "] ";
+        switch (kind) {
+            case WireProtocol.KIND_PRIVATE_FROM:
+                return time + "(Private from " + first + "): " + second;
+            case WireProtocol.KIND_PRIVATE_TO:
+                return time + "(Private to " + first + "): " + second;
+            default:
+                return time + first + ": " + second;
+        }
+    }
+
+    private byte[] encodeBinary() {
+        if (type == HANDSHAKE) {
+            return encodeText(false);
+        }
+        WireProtocol.Encoder encoder = WireProtocol.encoder();
+        switch (type) {
+            case WireProtocol.SUBMITNAME:
+                break;
+            case WireProtocol.NAMEACCEPTED:
+                encoder.writeString(first);
+                break;
+            case WireProtocol.MESSAGE:
+                encoder.writeByte(kind).writeLong(id).writeLong(timestamp).writeString(first).writeString(second);
+                break;
+            case WireProtocol.USERLIST:
+                encoder.writeLong(id).writeVarint(names.length);
+                for (String name : names) {
+                    encoder.writeString(name);
+                }
+                break;
+            case WireProtocol.USERJOIN:
+            case WireProtocol.USERLEAVE:
+                encoder.writeLong(id).writeString(first);
+                break;
+            case WireProtocol.TYPINGSET:
+                encoder.writeVarint(names.length);
+                for (String user : names) {
+                    encoder.writeString(user);
+                }
+                encoder.writeVarint(stoppedNames.length);
+                for (String user : stoppedNames) {
+                    encoder.writeString(user);
+                }
+                break;
+            case WireProtocol.REACTION_PUBLIC:
+                encoder.writeVarint(messageIds.length);
+                for (int i = 0; i < messageIds.length; i++) {
+                    encoder.writeLong(messageIds[i]).writeString(names[i]).writeVarint(totals[i]);
+                }
+                break;
+            case WireProtocol.REACTION:
+                encoder.writeString(first).writeLong(id).writeString(second);
+                break;
+            case WireProtocol.HISTORY:
+                encoder.writeVarint((int) id);
+                break;
+            case WireProtocol.PMTYPING:
+                encoder.writeString(first).writeBoolean(kind == 1);
+                break;
+            default:
+                throw new IllegalStateException("Unknown frame type " + type);
+        }
+        return encoder.toFrame(type);
+    }
+}
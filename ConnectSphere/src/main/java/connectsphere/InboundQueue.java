@@ -0,0 +1,82 @@
+package connectsphere;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Carries server events from the connection's reader thread to the EDT in batches. The reader
+// only enqueues. The first event after a quiet spell is applied right away; during a burst the
+// queue is drained at most once per frame (about 60 Hz), each drain applying everything queued
+// since the last one between the batch hooks. A burst of 500 history lines is then a few EDT
+// tasks, model updates and repaints instead of 500, and keystrokes are never queued behind it.
+final class InboundQueue {
+    private static final long FRAME_NANOS = TimeUnit.MILLISECONDS.toNanos(16);
+    private static final long BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(8); // EDT time per drain; the rest waits a frame
+
+    private final ConcurrentLinkedQueue<Runnable> events = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(); // A drain is queued on the EDT or waiting for the timer
+    private final Runnable beforeBatch;
+    private final Runnable afterBatch;
+    private final Timer frameTimer; // Holds a drain back until a frame has passed since the last one
+    private long lastDrain = System.nanoTime() - FRAME_NANOS; // EDT only
+
+    // beforeBatch and afterBatch run on the EDT around every drain
+    InboundQueue(Runnable beforeBatch, Runnable afterBatch) {
+        this.beforeBatch = beforeBatch;
+        this.afterBatch = afterBatch;
+        frameTimer = new Timer(0, e -> drain());
+        frameTimer.setRepeats(false);
+    }
+
+    // Called from any thread; event runs on the EDT, after every event posted before it
+    void post(Runnable event) {
+        events.add(event);
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(this::drainOrWait);
+        }
+    }
+
+    private void drainOrWait() {
+        long wait = lastDrain + FRAME_NANOS - System.nanoTime();
+        if (wait > 0) {
+            frameTimer.setInitialDelay((int) TimeUnit.NANOSECONDS.toMillis(wait) + 1);
+            frameTimer.restart();
+        } else {
+            drain();
+        }
+    }
+
+    private void drain() {
+        long start = System.nanoTime();
+        lastDrain = start;
+        int applied = 0;
+        beforeBatch.run();
+        try {
+            Runnable event;
+            while ((event = events.poll()) != null) {
+                try {
+                    event.run();
+                } catch (RuntimeException e) {
+                    ChatLog.UI.error("Client: Error applying server event: {}", e.toString());
+                }
+                if (++applied % 64 == 0 && System.nanoTime() - start > BUDGET_NANOS) {
+                    break;
+                }
+            }
+        } finally {
+            afterBatch.run();
+        }
+        ChatLog.UI.debug("Client: Applied {} server events in {} us", applied, (System.nanoTime() - start) / 1000);
+        // An event posted after the last poll saw a drain still scheduled, so this one picks it up
+        scheduled.set(false);
+        if (!events.isEmpty()) {
+            schedule();
+        }
+    }
+}
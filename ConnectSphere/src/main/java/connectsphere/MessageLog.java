@@ -0,0 +1,609 @@
+package connectsphere;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+// Durable, append-only log of public MESSAGE frames. The log is a directory of fixed-size segment
+// files named after the id of their first message, each written and read through a memory-mapped
+// FileChannel. Ids are dense (they are MessageHistory sequences), so a segment's sparse index is
+// just the position of every INDEX_INTERVAL-th record, and finding any id costs one array lookup
+// plus a scan of at most INDEX_INTERVAL records.
+//
+// A record is its length, a CRC32C of the frame, and the binary frame exactly as clients receive
+// it, so pages are copied out of the mapping and sent without re-encoding. Appends only copy into
+// the mapping; a committer thread forces everything appended since its last pass to disk once per
+// commit interval (group commit), so a crash of the process loses nothing and a crash of the
+// machine loses at most one interval. Each commit then appends the new index entries to the
+// segment's .idx file. Recovery checks those entries and scans only the records after the last
+// one, so it takes milliseconds whatever the size of the log, and it cuts off a torn final record.
+// Sealed segments get the same check, since a crash can tear the tail of a segment that was just
+// sealed. No record is read unless it checked out or lies before an index entry that did.
+//
+// Only the active segment stays open. Once a sealed segment is committed, its file is closed and
+// its read-write mapping dropped; reads map it again read-only at the length of its records, and
+// only the MAX_MAPPED_SEALED most recently mapped stay mapped, so neither file handles nor
+// address space grow with the size of the log.
+final class MessageLog implements Closeable {
+    static final int INDEX_INTERVAL = 64;
+    static final int MAX_MAPPED_SEALED = 8;
+    private static final int RECORD_HEADER = 8; // length:int, crc32c:int
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String LOCK_FILE = "lock";
+    private static final byte[] ZEROS = new byte[RECORD_HEADER + WireProtocol.MAX_FRAME_LENGTH + 1]; // Longer than any record
+
+    private static final class Segment {
+        final long firstId;
+        final Path path;
+        FileChannel channel;               // Open until the segment is sealed and committed
+        volatile MappedByteBuffer buffer;  // Null while a sealed segment is not mapped (see mapped)
+        int capacity;                      // Bytes mapped: the whole file while writable, then its records
+        volatile int count;      // Records readable by other threads
+        volatile int[] index;    // Position of record k * INDEX_INTERVAL; null until loaded for sealed segments
+        int position;            // Next write position (active segment, under the log lock)
+        // Committer state, under commitLock
+        int forcedPosition;      // Everything before this has been forced to disk
+        int indexEntriesWritten; // Entries already in the .idx file
+        FileChannel indexChannel;
+
+        Segment(long firstId, Path path, FileChannel channel, MappedByteBuffer buffer) {
+            this.firstId = firstId;
+            this.path = path;
+            this.channel = channel;
+            this.buffer = buffer;
+            this.capacity = buffer.capacity();
+        }
+    }
+
+    private final Path directory;
+    private final int segmentBytes;
+    private FileChannel lockChannel; // Holds the directory lock until close
+    private final ReentrantLock lock = new ReentrantLock(); // Appends, rolls and lazy index loads
+    private final ReentrantLock commitLock = new ReentrantLock(); // Taken before lock, never while holding it
+    private volatile Segment[] segments; // Oldest first; readers binary-search it without locking
+    private int uncommitted; // Index of the oldest segment commits are not done with (under commitLock)
+    private final ArrayDeque<Segment> mappedSealed = new ArrayDeque<>(); // Oldest mapping first, under lock
+    private volatile long nextId;
+    final LongAdder appended = new LongAdder();
+    final LongAdder commits = new LongAdder();
+
+    private MessageLog(Path directory, int segmentBytes) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+    }
+
+    // Opens or creates the log in directory. Only the records after each segment's last index entry are scanned.
+    static MessageLog open(Path directory, int segmentBytes) throws IOException {
+        Files.createDirectories(directory);
+        MessageLog log = new MessageLog(directory, segmentBytes);
+        // Two servers appending to the same segments would corrupt them
+        log.lockChannel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (log.lockChannel.tryLock() == null) {
+            log.lockChannel.close();
+            throw new IOException("in use by another process");
+        }
+        List<Long> firstIds = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    firstIds.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    ChatLog.NETWORK.warn("MessageLog: Ignoring unexpected file {}", file);
+                }
+            }
+        }
+        Collections.sort(firstIds);
+        if (firstIds.isEmpty()) {
+            log.segments = new Segment[] {log.createSegment(0)};
+            log.nextId = 0;
+            return log;
+        }
+        Segment[] opened = new Segment[firstIds.size()];
+        for (int i = 0; i < opened.length; i++) {
+            opened[i] = log.mapSegment(firstIds.get(i), i == opened.length - 1);
+        }
+        for (int i = 0; i < opened.length - 1; i++) {
+            log.verifySealed(opened[i], (int) (firstIds.get(i + 1) - firstIds.get(i)));
+            opened[i].buffer = null; // Mapped again when read
+        }
+        Segment active = opened[opened.length - 1];
+        log.recover(active);
+        log.segments = opened;
+        log.uncommitted = opened.length - 1;
+        log.nextId = active.firstId + active.count;
+        return log;
+    }
+
+    // Id the next append must use
+    long nextId() {
+        return nextId;
+    }
+
+    // Segments currently mapped: the active one, sealed ones awaiting their commit and at most
+    // MAX_MAPPED_SEALED others
+    int mappedSegments() {
+        int mapped = 0;
+        for (Segment segment : segments) {
+            if (segment.buffer != null) {
+                mapped++;
+            }
+        }
+        return mapped;
+    }
+
+    // Id of the oldest message still in the log
+    long firstId() {
+        return segments[0].firstId;
+    }
+
+    // Appends one binary MESSAGE frame. Callers append in id order (ConnectSphereServer holds publishLock).
+    void append(long id, byte[] frame) throws IOException {
+        lock.lock();
+        try {
+            if (id != nextId) {
+                throw new IllegalStateException("Expected message id " + nextId + " but got " + id);
+            }
+            int length = RECORD_HEADER + frame.length;
+            Segment segment = segments[segments.length - 1];
+            if (segment.position + length > segment.capacity) {
+                segment = roll(segment, id);
+                if (length > segment.capacity) {
+                    throw new IOException("Message of " + frame.length + " bytes is larger than a segment");
+                }
+            }
+            CRC32C crc = new CRC32C();
+            crc.update(frame, 0, frame.length);
+            segment.buffer.putInt(segment.position, frame.length);
+            segment.buffer.putInt(segment.position + 4, (int) crc.getValue());
+            segment.buffer.put(segment.position + RECORD_HEADER, frame);
+            int count = segment.count;
+            if (count % INDEX_INTERVAL == 0) {
+                addIndexEntry(segment, count, segment.position);
+            }
+            segment.position += length;
+            segment.count = count + 1; // Publishes the record to readers
+            nextId = id + 1;
+            appended.increment();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Forces everything appended since the last commit to disk, then records the new index entries.
+    // The disk is never touched under the append lock, so appends (and the broadcasts waiting on
+    // them) never wait for a flush.
+    void commit() throws IOException {
+        commitLock.lock();
+        try {
+            commitPending();
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    private void commitPending() throws IOException {
+        Segment[] current;
+        int first;
+        int[] positions;
+        int[] entries;
+        lock.lock();
+        try {
+            current = segments;
+            first = uncommitted;
+            positions = new int[current.length - first];
+            entries = new int[current.length - first];
+            for (int i = first; i < current.length; i++) {
+                positions[i - first] = current[i].position;
+                entries[i - first] = (current[i].count + INDEX_INTERVAL - 1) / INDEX_INTERVAL;
+            }
+        } finally {
+            lock.unlock();
+        }
+        boolean wrote = false;
+        for (int i = first; i < current.length; i++) {
+            Segment segment = current[i];
+            int to = positions[i - first];
+            if (to > segment.forcedPosition) {
+                segment.buffer.force(segment.forcedPosition, to - segment.forcedPosition);
+                segment.forcedPosition = to;
+                wrote = true;
+            }
+            writeIndexEntries(segment, entries[i - first]);
+            if (i < current.length - 1) {
+                // Sealed before this pass began, so everything in it is now on disk
+                segment.indexChannel.force(true);
+                segment.indexChannel.close();
+                segment.indexChannel = null;
+                unmapSealed(segment);
+                uncommitted = i + 1;
+            }
+        }
+        if (wrote) {
+            commits.increment();
+        }
+    }
+
+    // Adds the frames of up to count messages with ids below beforeId to out, oldest first. Ids
+    // are consecutive: a page never spans messages lost in a crash (see verifySealed), so it may
+    // hold fewer than count and end before beforeId - 1.
+    void readPage(long beforeId, int count, List<byte[]> out) {
+        long end = Math.min(beforeId, nextId);
+        long start = Math.max(firstId(), end - count);
+        if (start >= end) {
+            return;
+        }
+        Segment[] current = segments;
+        int s = segmentIndex(current, start);
+        int from = out.size();
+        try {
+            readRange(current, s, start, end, from, out);
+        } catch (IOException e) {
+            ChatLog.NETWORK.warn("MessageLog: Could not read messages {} to {}: {}", start, end - 1, e.getMessage());
+            out.subList(from, out.size()).clear();
+        }
+    }
+
+    private void readRange(Segment[] current, int s, long start, long end, int from, List<byte[]> out) throws IOException {
+        long id = start;
+        while (id < end && s < current.length) {
+            Segment segment = current[s];
+            if (segment.firstId > id) {
+                if (segment.firstId >= end) {
+                    break;
+                }
+                out.subList(from, out.size()).clear();
+                id = segment.firstId;
+            }
+            if (segment.index == null) {
+                loadIndex(segment); // May find fewer records than opening did
+            }
+            int available = segment.count;
+            int k = (int) (id - segment.firstId);
+            if (k >= available) {
+                s++;
+                continue;
+            }
+            ByteBuffer buffer = mapped(segment);
+            int position = locate(segment, buffer, k);
+            for (; k < available && id < end; k++, id++) {
+                int length = buffer.getInt(position);
+                byte[] frame = new byte[length];
+                buffer.get(position + RECORD_HEADER, frame);
+                out.add(frame);
+                position += RECORD_HEADER + length;
+            }
+            s++;
+        }
+    }
+
+    // Commits and closes; call after the last append
+    @Override
+    public void close() throws IOException {
+        commitLock.lock();
+        try {
+            commitPending();
+            for (Segment segment : segments) {
+                if (segment.indexChannel != null) {
+                    segment.indexChannel.close();
+                    segment.indexChannel = null;
+                }
+                if (segment.channel != null) {
+                    segment.channel.close();
+                    segment.channel = null;
+                }
+            }
+            lockChannel.close();
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    // Position of record k, from the nearest index entry at or before it
+    private int locate(Segment segment, ByteBuffer buffer, int k) throws IOException {
+        int[] index = segment.index;
+        if (index == null) {
+            index = loadIndex(segment);
+        }
+        int position = index[k / INDEX_INTERVAL];
+        for (int skip = k % INDEX_INTERVAL; skip > 0; skip--) {
+            position += RECORD_HEADER + buffer.getInt(position);
+        }
+        return position;
+    }
+
+    // The segment's records, mapping a sealed segment read-only if it is not mapped. The oldest
+    // mapping beyond MAX_MAPPED_SEALED is dropped; a reader still holding it can finish, since a
+    // mapping stays valid until it is garbage collected.
+    private ByteBuffer mapped(Segment segment) throws IOException {
+        MappedByteBuffer buffer = segment.buffer;
+        if (buffer != null) {
+            return buffer;
+        }
+        lock.lock();
+        try {
+            if (segment.buffer == null) {
+                try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+                    segment.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, segment.capacity);
+                }
+                mappedSealed.addLast(segment);
+                if (mappedSealed.size() > MAX_MAPPED_SEALED) {
+                    mappedSealed.removeFirst().buffer = null;
+                }
+            }
+            return segment.buffer;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Closes a segment that is sealed and committed; it is mapped again, read-only and only as
+    // long as its records, when next read
+    private void unmapSealed(Segment segment) throws IOException {
+        lock.lock();
+        try {
+            segment.capacity = segment.position;
+            segment.buffer = null;
+        } finally {
+            lock.unlock();
+        }
+        segment.channel.close();
+        segment.channel = null;
+    }
+
+    private static int segmentIndex(Segment[] segments, long id) {
+        int low = 0;
+        int high = segments.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (segments[mid].firstId <= id) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    // Seals the full segment and starts a new one at firstId; the next commit finishes the old one
+    private Segment roll(Segment full, long firstId) throws IOException {
+        Segment next = createSegment(firstId);
+        Segment[] grown = Arrays.copyOf(segments, segments.length + 1);
+        grown[grown.length - 1] = next;
+        segments = grown;
+        ChatLog.NETWORK.info("MessageLog: Sealed segment {} with {} messages", full.path.getFileName(), full.count);
+        return next;
+    }
+
+    private Segment createSegment(long firstId) throws IOException {
+        Segment segment = mapSegment(firstId, true);
+        segment.index = new int[16];
+        return segment;
+    }
+
+    // The newest segment is mapped read-write at full size; on Linux the unwritten tail stays sparse
+    private Segment mapSegment(long firstId, boolean writable) throws IOException {
+        Path path = directory.resolve(String.format("%020d%s", firstId, SEGMENT_SUFFIX));
+        FileChannel channel;
+        MappedByteBuffer buffer;
+        if (writable) {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentBytes, channel.size()));
+        } else {
+            // Only checked on open (see verifySealed); the mapping outlives the file
+            try (FileChannel readOnly = FileChannel.open(path, StandardOpenOption.READ)) {
+                buffer = readOnly.map(FileChannel.MapMode.READ_ONLY, 0, readOnly.size());
+            }
+            channel = null;
+        }
+        return new Segment(firstId, path, channel, buffer);
+    }
+
+    // Finds the end of the newest segment and cuts off a torn final record. Index entries are only
+    // written once their records are on disk, so the newest entry that still points at the record
+    // it should is trusted along with everything before it, and only what follows is scanned.
+    private void recover(Segment segment) throws IOException {
+        long started = System.nanoTime();
+        CRC32C crc = new CRC32C();
+        int[] committed = readIndexFile(segment);
+        int valid = trustedEntries(segment, committed, committed.length, crc);
+        segment.index = Arrays.copyOf(committed, Math.max(16, valid));
+        int position = valid > 0 ? segment.index[valid - 1] : 0;
+        int count = valid > 0 ? (valid - 1) * INDEX_INTERVAL : 0;
+        int scanned = 0;
+        while (isRecord(segment, position, segment.firstId + count, crc)) {
+            if (count % INDEX_INTERVAL == 0) {
+                addIndexEntry(segment, count, position);
+            }
+            position += RECORD_HEADER + segment.buffer.getInt(position);
+            count++;
+            scanned++;
+        }
+        // Zero whatever a crash left half-written after the last good record, so stale bytes can
+        // never line up with a later append. Pages may reach the disk out of order, so this runs
+        // until a stretch of zeros longer than any record.
+        int at = position;
+        while (at < segment.capacity) {
+            int window = Math.min(ZEROS.length, segment.capacity - at);
+            int nonZero = segment.buffer.slice(at, window).mismatch(ByteBuffer.wrap(ZEROS, 0, window));
+            if (nonZero < 0) {
+                break;
+            }
+            at += nonZero;
+            int length = Math.min(4096, segment.capacity - at);
+            segment.buffer.put(at, ZEROS, 0, length);
+            at += length;
+        }
+        segment.position = position;
+        segment.forcedPosition = position;
+        segment.count = count;
+        // Entries past the last good one may point at records that are gone
+        segment.indexChannel = FileChannel.open(indexPath(segment), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        segment.indexChannel.truncate(4L * Math.max(0, valid - 1));
+        segment.indexEntriesWritten = Math.max(0, valid - 1);
+        ChatLog.NETWORK.info("MessageLog: Recovered {} messages from {} in {} ms", count, segment.path.getFileName(),
+                (System.nanoTime() - started) / 1_000_000);
+        ChatLog.NETWORK.debug("MessageLog: {} records after the last index entry were scanned", scanned);
+    }
+
+    // Finds where the records of a sealed segment end. The segment after it is created before this
+    // one's tail is forced, so after a machine crash the tail may be zeros or torn records. As in
+    // recover, the last index entry that checks out is trusted along with everything before it,
+    // and the records after it are scanned, up to the count the next segment's first id implies.
+    private void verifySealed(Segment segment, int expected) {
+        CRC32C crc = new CRC32C();
+        int[] committed = readIndexFile(segment);
+        int valid = trustedEntries(segment, committed, (expected + INDEX_INTERVAL - 1) / INDEX_INTERVAL, crc);
+        int position = valid > 0 ? committed[valid - 1] : 0;
+        int count = valid > 0 ? (valid - 1) * INDEX_INTERVAL : 0;
+        while (count < expected && isRecord(segment, position, segment.firstId + count, crc)) {
+            position += RECORD_HEADER + segment.buffer.getInt(position);
+            count++;
+        }
+        segment.count = count;
+        segment.capacity = position; // Mapped this long from now on
+        if (count < expected) {
+            ChatLog.NETWORK.warn("MessageLog: {} ends early; messages {} to {} were lost",
+                    segment.path.getFileName(), segment.firstId + count, segment.firstId + expected - 1);
+        }
+    }
+
+    // How many of the first entries of an .idx file to trust: the last one that points at the
+    // record it should, and all before it. Entries are only written once their records are on
+    // disk, so the records before a good entry are too.
+    private static int trustedEntries(Segment segment, int[] entries, int limit, CRC32C crc) {
+        int valid = Math.min(entries.length, limit);
+        while (valid > 0
+                && !isRecord(segment, entries[valid - 1], segment.firstId + (long) (valid - 1) * INDEX_INTERVAL, crc)) {
+            valid--;
+        }
+        return valid;
+    }
+
+    // Whether a complete record with the expected id starts at position
+    private static boolean isRecord(Segment segment, int position, long expectedId, CRC32C crc) {
+        if (position < 0 || position > segment.capacity - RECORD_HEADER) {
+            return false;
+        }
+        int length = segment.buffer.getInt(position);
+        if (length <= 0 || length > segment.capacity - position - RECORD_HEADER) {
+            return false;
+        }
+        crc.reset();
+        crc.update(segment.buffer.slice(position + RECORD_HEADER, length));
+        return (int) crc.getValue() == segment.buffer.getInt(position + 4)
+                && messageId(segment.buffer, position + RECORD_HEADER) == expectedId;
+    }
+
+    // The id field of a MESSAGE frame: type byte, varint length, kind byte, then the id
+    private static long messageId(ByteBuffer buffer, int frameStart) {
+        int at = frameStart + 1;
+        while ((buffer.get(at) & 0x80) != 0) {
+            at++;
+        }
+        return buffer.getLong(at + 2);
+    }
+
+    private static void addIndexEntry(Segment segment, int count, int position) {
+        int slot = count / INDEX_INTERVAL;
+        int[] index = segment.index;
+        if (slot >= index.length) {
+            index = Arrays.copyOf(index, index.length * 2);
+        }
+        index[slot] = position;
+        segment.index = index; // Before count is published, so readers never see a missing entry
+    }
+
+    // Appends index entries up to (not including) entries to the segment's .idx file. Only called
+    // after the records they point to have been forced, so every entry on disk is backed by data.
+    private void writeIndexEntries(Segment segment, int entries) throws IOException {
+        if (segment.indexChannel == null) {
+            segment.indexChannel = FileChannel.open(indexPath(segment), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        }
+        if (entries <= segment.indexEntriesWritten) {
+            return;
+        }
+        int[] index = segment.index;
+        ByteBuffer bytes = ByteBuffer.allocate(4 * (entries - segment.indexEntriesWritten));
+        for (int i = segment.indexEntriesWritten; i < entries; i++) {
+            bytes.putInt(index[i]);
+        }
+        bytes.flip();
+        long offset = 4L * segment.indexEntriesWritten;
+        while (bytes.hasRemaining()) {
+            offset += segment.indexChannel.write(bytes, offset);
+        }
+        segment.indexEntriesWritten = entries;
+    }
+
+    private int[] readIndexFile(Segment segment) {
+        try {
+            byte[] bytes = Files.readAllBytes(indexPath(segment));
+            int[] entries = new int[bytes.length / 4];
+            ByteBuffer.wrap(bytes).asIntBuffer().get(entries);
+            return entries;
+        } catch (NoSuchFileException e) {
+            return new int[0];
+        } catch (IOException e) {
+            ChatLog.NETWORK.warn("MessageLog: Could not read {}, scanning instead: {}", indexPath(segment), e.getMessage());
+            return new int[0];
+        }
+    }
+
+    // Sealed segments load their index on first read, from the .idx file if every entry checks out,
+    // or else by scanning. A scan that finds fewer good records than opening did cuts count back.
+    private int[] loadIndex(Segment segment) throws IOException {
+        lock.lock();
+        try {
+            if (segment.index != null) {
+                return segment.index;
+            }
+            mapped(segment); // Stays mapped while the lock is held
+            CRC32C crc = new CRC32C();
+            int entries = (segment.count + INDEX_INTERVAL - 1) / INDEX_INTERVAL;
+            int[] index = new int[Math.max(1, entries)];
+            int[] committed = readIndexFile(segment);
+            if (committed.length >= entries) {
+                System.arraycopy(committed, 0, index, 0, entries);
+                int checked = 0;
+                while (checked < entries
+                        && isRecord(segment, index[checked], segment.firstId + (long) checked * INDEX_INTERVAL, crc)) {
+                    checked++;
+                }
+                if (checked == entries) {
+                    segment.index = index;
+                    return index;
+                }
+                ChatLog.NETWORK.warn("MessageLog: {} has a bad entry, scanning instead", indexPath(segment));
+            }
+            int position = 0;
+            int k = 0;
+            for (; k < segment.count && isRecord(segment, position, segment.firstId + k, crc); k++) {
+                if (k % INDEX_INTERVAL == 0) {
+                    index[k / INDEX_INTERVAL] = position;
+                }
+                position += RECORD_HEADER + segment.buffer.getInt(position);
+            }
+            if (k < segment.count) {
+                ChatLog.NETWORK.warn("MessageLog: {} holds only {} of {} messages", segment.path.getFileName(), k, segment.count);
+            }
+            segment.index = index;
+            segment.count = k; // After the index, so readers never see a missing entry
+            return index;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Path indexPath(Segment segment) {
+        String name = segment.path.getFileName().toString();
+        return directory.resolve(name.substring(0, name.length() - SEGMENT_SUFFIX.length()) + INDEX_SUFFIX);
+    }
+}
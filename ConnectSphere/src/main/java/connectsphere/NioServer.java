@@ -0,0 +1,282 @@
+package connectsphere;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Non-blocking transport for ConnectSphereServer. A small pool of event loops (one per core by
+// default) each own a Selector and a share of the sessions; input is decoded incrementally from
+// pooled direct buffers and handed to the same ChatSession the blocking server uses, and each
+// session's outbound queue is drained by its loop whenever the socket can take more.
+class NioServer {
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_POOLED_BUFFERS = 4096;
+
+    private final int port;
+    private final EventLoop[] loops;
+    private int nextLoop = 0;
+
+    NioServer(int port, int loopCount) {
+        this.port = port;
+        this.loops = new EventLoop[Math.max(1, loopCount)];
+    }
+
+    // Accepts on the calling thread and spreads connections round-robin across the event loops
+    void run() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+            loops[i].start();
+        }
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port));
+            ChatLog.NETWORK.info("Server: NIO engine started with {} event loop(s)", loops.length);
+            while (true) {
+                SocketChannel channel = server.accept();
+                ChatLog.NETWORK.info("New client connected: {}", channel.socket().getInetAddress());
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                loops[nextLoop].register(channel);
+                nextLoop = (nextLoop + 1) % loops.length;
+            }
+        }
+    }
+
+    // Direct buffers are expensive to allocate, so every read and write buffer comes from here
+    private static final class BufferPool {
+        private static final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+        private static final AtomicInteger freeCount = new AtomicInteger();
+
+        static ByteBuffer acquire() {
+            ByteBuffer buffer = free.poll();
+            if (buffer == null) {
+                return ByteBuffer.allocateDirect(BUFFER_SIZE);
+            }
+            freeCount.decrementAndGet();
+            return buffer;
+        }
+
+        static void release(ByteBuffer buffer) {
+            buffer.clear();
+            if (freeCount.incrementAndGet() <= MAX_POOLED_BUFFERS) {
+                free.offer(buffer);
+            } else {
+                freeCount.decrementAndGet();
+            }
+        }
+    }
+
+    private static final class EventLoop extends Thread {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = BufferPool.acquire(); // Shared by every connection on this loop
+
+        EventLoop(int index) throws IOException {
+            super("nio-loop-" + index);
+            setDaemon(true);
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    Connection connection = new Connection(this, channel);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    connection.session.open();
+                } catch (IOException e) {
+                    ChatLog.NETWORK.warn("Server: Error registering channel: {}", e.getMessage());
+                    closeQuietly(channel);
+                }
+            });
+        }
+
+        // Tasks queued from the loop itself run after the current batch of keys, without a wakeup
+        void execute(Runnable task) {
+            tasks.offer(task);
+            if (Thread.currentThread() != this) {
+                selector.wakeup();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        if (!key.isValid()) {
+                            connection.close();
+                            continue;
+                        }
+                        if (key.isReadable()) {
+                            connection.read(readBuffer);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flushOutbound();
+                        }
+                    }
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    ChatLog.NETWORK.error("Server: Event loop {} error: {}", getName(), e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static final class Connection implements ConnectSphereServer.Transport {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final WireProtocol.Decoder decoder = new WireProtocol.Decoder();
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private final ConnectSphereServer.ChatSession session;
+        private SelectionKey key;
+        // Loop thread only: frames taken from the session queue but not yet copied, the frame
+        // being copied (in the session's wire format) and how far into it, and a pooled buffer the socket has not fully accepted yet
+        private final ArrayDeque<Frame> batch = new ArrayDeque<>();
+        private byte[] current;
+        private int currentOffset;
+        private ByteBuffer unsent;
+
+        Connection(EventLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+            this.session = new ConnectSphereServer.ChatSession(this);
+        }
+
+        // Runs on the event loop; the loop's buffer is reused, partial input is carried by the decoder
+        void read(ByteBuffer buffer) {
+            buffer.clear();
+            int count;
+            try {
+                count = channel.read(buffer);
+            } catch (IOException e) {
+                ChatLog.NETWORK.info("Server: Client disconnected: {} - {}", session.getName(), e.getMessage());
+                close();
+                return;
+            }
+            if (count < 0) {
+                close();
+                return;
+            }
+            ConnectSphereServer.bytesReceived.add(count);
+            buffer.flip();
+            long start = System.nanoTime();
+            boolean ok = decoder.decode(buffer, session);
+            ConnectSphereServer.readDispatchTime.recordSince(start);
+            if (!ok) {
+                ChatLog.NETWORK.warn("Server: Closing connection from {}: oversized or malformed input", session.getName());
+                close();
+            }
+        }
+
+        // Called from any thread when the session queue becomes non-empty
+        @Override
+        public void scheduleDrain() {
+            if (!closed.get() && flushScheduled.compareAndSet(false, true)) {
+                loop.execute(this::flushOutbound);
+            }
+        }
+
+        @Override
+        public void disconnect() {
+            loop.execute(this::close);
+        }
+
+        // Copies queued frames into a pooled direct buffer and writes it. Frames are only pulled
+        // from the session queue once the socket has taken the previous buffer, so a slow reader
+        // backs up into its bounded queue rather than into this connection.
+        void flushOutbound() {
+            flushScheduled.set(false);
+            if (closed.get()) {
+                return;
+            }
+            try {
+                while (true) {
+                    if (unsent == null) {
+                        unsent = fill();
+                        if (unsent == null) {
+                            key.interestOps(SelectionKey.OP_READ);
+                            return;
+                        }
+                    }
+                    ConnectSphereServer.bytesSent.add(channel.write(unsent));
+                    if (unsent.hasRemaining()) {
+                        // Socket send buffer is full; wait for OP_WRITE instead of spinning
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    BufferPool.release(unsent);
+                    unsent = null;
+                }
+            } catch (IOException | CancelledKeyException e) {
+                close();
+            }
+        }
+
+        // Returns the next buffer of output, or null if nothing is queued. Frames are already
+        // encoded and shared with every other recipient, so this is a plain byte copy.
+        private ByteBuffer fill() {
+            ByteBuffer buffer = BufferPool.acquire();
+            while (buffer.hasRemaining()) {
+                if (current == null || currentOffset == current.length) {
+                    Frame next = batch.poll();
+                    current = next != null ? session.encode(next) : null;
+                    currentOffset = 0;
+                    if (current == null) {
+                        List<Frame> frames = session.drainOutbound();
+                        if (frames == null) {
+                            break;
+                        }
+                        batch.addAll(frames);
+                        continue;
+                    }
+                }
+                int count = Math.min(buffer.remaining(), current.length - currentOffset);
+                buffer.put(current, currentOffset, count);
+                currentOffset += count;
+            }
+            buffer.flip();
+            if (!buffer.hasRemaining()) {
+                BufferPool.release(buffer);
+                return null;
+            }
+            return buffer;
+        }
+
+        // Runs on the event loop
+        void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            closeQuietly(channel);
+            session.close();
+            if (unsent != null) {
+                BufferPool.release(unsent);
+                unsent = null;
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Already closing
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package connectsphere;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.*;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Counters, gauges and latency histograms for the running server. They can be read over JMX, as
+// the ConnectSphere:type=Server MBean, and as plain text from /metrics on the admin port
+// (--admin-port, loopback only). Recording a value is a few atomic adds, so the hooks on the
+// message paths never allocate or take a lock; all the work happens when someone reads.
+final class ServerMetrics {
+    static final String PREFIX = "connectsphere_";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final String[] QUANTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+    private static final List<Metric> metrics = new CopyOnWriteArrayList<>();
+
+    private static final class Metric {
+        final String name;
+        final String help;
+        final String type; // counter, gauge or summary
+        final LongSupplier value;
+        final Histogram histogram;
+
+        Metric(String name, String help, String type, LongSupplier value, Histogram histogram) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.value = value;
+            this.histogram = histogram;
+        }
+    }
+
+    private ServerMetrics() {
+    }
+
+    static LongAdder counter(String name, String help) {
+        LongAdder adder = new LongAdder();
+        counter(name, help, adder::sum);
+        return adder;
+    }
+
+    // A counter kept elsewhere, e.g. on a tracker
+    static void counter(String name, String help, LongSupplier value) {
+        metrics.add(new Metric(name, help, "counter", value, null));
+    }
+
+    static void gauge(String name, String help, LongSupplier value) {
+        metrics.add(new Metric(name, help, "gauge", value, null));
+    }
+
+    static Histogram histogram(String name, String help) {
+        Histogram histogram = new Histogram();
+        metrics.add(new Metric(name, help, "summary", null, histogram));
+        return histogram;
+    }
+
+    // Log-linear buckets in the manner of HdrHistogram: exact below 32, then 16 buckets per power of
+    // two, so every value is reported within 1/16 of what was recorded. The 960 buckets cover all of
+    // long; recording is one array increment, two adds and a max.
+    static final class Histogram {
+        private static final int LINEAR = 32;
+        private static final int SUB_BUCKETS = 16;
+        private static final int BUCKETS = LINEAR + 58 * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        Histogram() {
+        }
+
+        void record(long value) {
+            if (value < 0) {
+                value = 0; // nanoTime differences across cores can come out slightly negative
+            }
+            counts.incrementAndGet(bucket(value));
+            sum.add(value);
+            max.accumulateAndGet(value, Math::max);
+        }
+
+        // Records the time since startNanos, a System.nanoTime() reading
+        void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        static int bucket(long value) {
+            if (value < LINEAR) {
+                return (int) value;
+            }
+            int shift = 59 - Long.numberOfLeadingZeros(value); // Leaves value >>> shift in [16, 32)
+            return LINEAR + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+        }
+
+        // Largest value that lands in bucket
+        static long highestValue(int bucket) {
+            if (bucket < LINEAR) {
+                return bucket;
+            }
+            int shift = (bucket - LINEAR) / SUB_BUCKETS + 1;
+            long next = (long) ((bucket - LINEAR) % SUB_BUCKETS + SUB_BUCKETS + 1) << shift;
+            return next > 0 ? next - 1 : Long.MAX_VALUE;
+        }
+
+        // Counts at the time of the call; recording carries on meanwhile
+        Snapshot snapshot() {
+            long[] copy = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                copy[i] = counts.get(i);
+                total += copy[i];
+            }
+            return new Snapshot(copy, total, sum.sum(), max.get());
+        }
+    }
+
+    static final class Snapshot {
+        private final long[] counts;
+        final long count;
+        final long sum;
+        final long max;
+
+        private Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        // Upper end of the bucket holding the value at quantile q, capped at the largest value seen
+        long quantile(double q) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(q * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(Histogram.highestValue(i), max);
+                }
+            }
+            return max;
+        }
+
+        long mean() {
+            return count == 0 ? 0 : sum / count;
+        }
+    }
+
+    // Every metric as flat name/value pairs, histograms expanded; the MBean's attributes
+    static Map<String, Long> values() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (Metric metric : metrics) {
+            if (metric.histogram == null) {
+                values.put(metric.name, metric.value.getAsLong());
+                continue;
+            }
+            Snapshot snapshot = metric.histogram.snapshot();
+            values.put(metric.name + "_count", snapshot.count);
+            values.put(metric.name + "_mean", snapshot.mean());
+            for (int i = 0; i < QUANTILES.length; i++) {
+                values.put(metric.name + "_" + QUANTILE_NAMES[i], snapshot.quantile(QUANTILES[i]));
+            }
+            values.put(metric.name + "_max", snapshot.max);
+        }
+        return values;
+    }
+
+    // Prometheus text exposition format, version 0.0.4
+    static String render() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Metric metric : metrics) {
+            String name = PREFIX + metric.name;
+            out.append("# HELP ").append(name).append(' ').append(metric.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(metric.type).append('\n');
+            if (metric.histogram == null) {
+                out.append(name).append(' ').append(metric.value.getAsLong()).append('\n');
+                continue;
+            }
+            Snapshot snapshot = metric.histogram.snapshot();
+            for (double q : QUANTILES) {
+                out.append(name).append("{quantile=\"").append(q).append("\"} ").append(snapshot.quantile(q)).append('\n');
+            }
+            out.append(name).append("_sum ").append(snapshot.sum).append('\n');
+            out.append(name).append("_count ").append(snapshot.count).append('\n');
+            out.append(name).append("_max ").append(snapshot.max).append('\n');
+        }
+        return out.toString();
+    }
+
+    // Registers the MBean with the platform MBean server, where jconsole and JMX agents find it
+    static void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), new ObjectName("ConnectSphere:type=Server"));
+        } catch (JMException e) {
+            ChatLog.NETWORK.error("Server: Could not register the metrics MBean: {}", e.getMessage());
+        }
+    }
+
+    // Serves GET /metrics on 127.0.0.1:port. Readers get their own thread, away from the chat ports.
+    static void serve(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", ServerMetrics::handle);
+        server.start();
+        ChatLog.NETWORK.info("Server: Metrics available at http://127.0.0.1:{}/metrics", server.getAddress().getPort());
+    }
+
+    private static void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"/metrics".equals(exchange.getRequestURI().getPath())) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "GET");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    // Read-only view of values(); the attribute set follows whatever has been registered
+    private static final class MetricsMBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Long value = values().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Long> values = values();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                Long value = values.get(attribute);
+                if (value != null) {
+                    list.add(new Attribute(attribute, value));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (String name : values().keySet()) {
+                attributes.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+            }
+            return new MBeanInfo(ServerMetrics.class.getName(), "ConnectSphere server metrics",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package connectsphere;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Every online user in the cluster, indexed three ways: by canonical (lowercase) name for
+// uniqueness and exact lookups, by an immutable trie for longest-prefix matching of "/pm <name>
+// <text>", and as copy-on-write arrays that broadcasts and user lists iterate without taking any
+// lock. Users connected to this server have a ChatSession; users on other nodes are just a Member.
+// Joins and leaves are serialized by one lock; every read is lock-free.
+class SessionRegistry {
+    private static final ConnectSphereServer.ChatSession[] NO_SESSIONS = new ConnectSphereServer.ChatSession[0];
+    private static final Member[] NO_MEMBERS = new Member[0];
+
+    // One online user. The node and claim id identify the claim that won the name (see ClusterBus).
+    static final class Member {
+        final String name;
+        final String node;
+        final long claimId;
+        final ConnectSphereServer.ChatSession session; // null for users on other nodes
+
+        Member(String name, String node, long claimId, ConnectSphereServer.ChatSession session) {
+            this.name = name;
+            this.node = node;
+            this.claimId = claimId;
+            this.session = session;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Member> byKey = new ConcurrentHashMap<>();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private volatile TrieNode trie = TrieNode.EMPTY;
+    private volatile ConnectSphereServer.ChatSession[] snapshot = NO_SESSIONS;
+    private volatile Member[] members = NO_MEMBERS;
+
+    // Lowercases char by char so the key always has the same length as the name it came from
+    static String canonicalKey(CharSequence name) {
+        char[] chars = new char[name.length()];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(name.charAt(i));
+        }
+        return new String(chars);
+    }
+
+    // Claims the member's name. onRegistered runs before the member's session becomes visible to
+    // broadcasts, so anything it queues is guaranteed to reach the client first.
+    boolean register(Member member, Runnable onRegistered) {
+        String key = canonicalKey(member.name);
+        writeLock.lock();
+        try {
+            if (byKey.putIfAbsent(key, member) != null) {
+                return false;
+            }
+            onRegistered.run();
+            trie = trie.with(key, 0, member);
+            Member[] currentMembers = members;
+            Member[] nextMembers = Arrays.copyOf(currentMembers, currentMembers.length + 1);
+            nextMembers[currentMembers.length] = member;
+            members = nextMembers;
+            if (member.session != null) {
+                ConnectSphereServer.ChatSession[] current = snapshot;
+                ConnectSphereServer.ChatSession[] next = Arrays.copyOf(current, current.length + 1);
+                next[current.length] = member.session;
+                snapshot = next;
+            }
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    void unregister(Member member) {
+        String key = canonicalKey(member.name);
+        writeLock.lock();
+        try {
+            if (!byKey.remove(key, member)) {
+                return;
+            }
+            TrieNode next = trie.without(key, 0);
+            trie = next != null ? next : TrieNode.EMPTY;
+            Member[] currentMembers = members;
+            Member[] shrunkMembers = new Member[currentMembers.length - 1];
+            int i = 0;
+            for (Member m : currentMembers) {
+                if (m != member) {
+                    shrunkMembers[i++] = m;
+                }
+            }
+            members = shrunkMembers;
+            if (member.session != null) {
+                ConnectSphereServer.ChatSession[] current = snapshot;
+                ConnectSphereServer.ChatSession[] shrunk = new ConnectSphereServer.ChatSession[current.length - 1];
+                int j = 0;
+                for (ConnectSphereServer.ChatSession s : current) {
+                    if (s != member.session) {
+                        shrunk[j++] = s;
+                    }
+                }
+                snapshot = shrunk;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Forgets everyone, e.g. when this node loses the cluster and has to sync again
+    void clear() {
+        writeLock.lock();
+        try {
+            byKey.clear();
+            trie = TrieNode.EMPTY;
+            members = NO_MEMBERS;
+            snapshot = NO_SESSIONS;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    Member get(String name) {
+        return byKey.get(canonicalKey(name));
+    }
+
+    // Sessions connected to this server, in join order; the array is never modified, callers must
+    // not modify it either
+    ConnectSphereServer.ChatSession[] sessions() {
+        return snapshot;
+    }
+
+    // Everyone in the cluster, in join order; never modified, like sessions()
+    Member[] members() {
+        return members;
+    }
+
+    String[] names() {
+        Member[] current = members;
+        String[] names = new String[current.length];
+        for (int i = 0; i < current.length; i++) {
+            names[i] = current[i].name;
+        }
+        return names;
+    }
+
+    int size() {
+        return members.length;
+    }
+
+    // Finds the longest registered name that text starts with (case-insensitively) and that is
+    // followed by a space, e.g. "bob smith hi" resolves to "Bob Smith" even if "Bob" is online.
+    // Cost depends on the name length only, not on how many users are online.
+    Member longestNamePrefix(CharSequence text) {
+        TrieNode node = trie;
+        Member match = null;
+        for (int i = 0; i < text.length() && node != null; i++) {
+            char c = text.charAt(i);
+            if (c == ' ' && node.member != null) {
+                match = node.member;
+            }
+            node = node.child(Character.toLowerCase(c));
+        }
+        return match;
+    }
+
+    // Immutable trie node. Updates copy the path from the root and publish a new root, so
+    // lookups walk a consistent version without locking.
+    private static final class TrieNode {
+        static final TrieNode EMPTY = new TrieNode(new char[0], new TrieNode[0], null);
+
+        final char[] keys; // Sorted, parallel to children
+        final TrieNode[] children;
+        final Member member;
+
+        TrieNode(char[] keys, TrieNode[] children, Member member) {
+            this.keys = keys;
+            this.children = children;
+            this.member = member;
+        }
+
+        TrieNode child(char c) {
+            int i = Arrays.binarySearch(keys, c);
+            return i >= 0 ? children[i] : null;
+        }
+
+        TrieNode with(String key, int depth, Member value) {
+            if (depth == key.length()) {
+                return new TrieNode(keys, children, value);
+            }
+            char c = key.charAt(depth);
+            int i = Arrays.binarySearch(keys, c);
+            if (i >= 0) {
+                TrieNode[] newChildren = children.clone();
+                newChildren[i] = children[i].with(key, depth + 1, value);
+                return new TrieNode(keys, newChildren, member);
+            }
+            int at = -i - 1;
+            char[] newKeys = new char[keys.length + 1];
+            TrieNode[] newChildren = new TrieNode[children.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, at);
+            System.arraycopy(children, 0, newChildren, 0, at);
+            newKeys[at] = c;
+            newChildren[at] = EMPTY.with(key, depth + 1, value);
+            System.arraycopy(keys, at, newKeys, at + 1, keys.length - at);
+            System.arraycopy(children, at, newChildren, at + 1, children.length - at);
+            return new TrieNode(newKeys, newChildren, member);
+        }
+
+        // Returns null when the node ends up with neither a member nor children
+        TrieNode without(String key, int depth) {
+            if (depth == key.length()) {
+                return keys.length == 0 ? null : new TrieNode(keys, children, null);
+            }
+            int i = Arrays.binarySearch(keys, key.charAt(depth));
+            if (i < 0) {
+                return this;
+            }
+            TrieNode newChild = children[i].without(key, depth + 1);
+            if (newChild != null) {
+                TrieNode[] newChildren = children.clone();
+                newChildren[i] = newChild;
+                return new TrieNode(keys, newChildren, member);
+            }
+            if (keys.length == 1 && member == null) {
+                return null;
+            }
+            char[] newKeys = new char[keys.length - 1];
+            TrieNode[] newChildren = new TrieNode[children.length - 1];
+            System.arraycopy(keys, 0, newKeys, 0, i);
+            System.arraycopy(children, 0, newChildren, 0, i);
+            System.arraycopy(keys, i + 1, newKeys, i, keys.length - i - 1);
+            System.arraycopy(children, i + 1, newChildren, i, children.length - i - 1);
+            return new TrieNode(newKeys, newChildren, member);
+        }
+    }
+}
@@ -0,0 +1,484 @@
+package connectsphere;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+// ClusterBus over TCP with one hub. The hub (--cluster-listen) decides the global order: it takes
+// each event, its own and those its nodes send, sends it to every linked node and then applies it
+// itself, all under one lock. The other nodes (--cluster-join) send their events to the hub and
+// only apply what comes back, so every node sees exactly the hub's order.
+//
+// A node that links up says HELLO and gets the hub's state as SYNC_* events before any live event.
+// When a node's link drops, the hub publishes NODE_DOWN and everyone connected to that node leaves.
+// When a node loses the hub, it disconnects its own clients (see DETACHED), reconnects and syncs again.
+// Links use the binary frame codec from WireProtocol; each has a bounded queue and its own writer,
+// so a stalled node cannot block the hub. A node whose queue fills up is dropped and syncs again.
+//
+// Links are not authenticated: anything that reaches the hub's port can link up as a node. The
+// hub therefore listens on loopback unless told otherwise (--cluster-bind), and it only orders an
+// event sent on a user's behalf if it comes from the node that holds the user's name.
+final class TcpClusterBus implements ClusterBus, Closeable {
+    private static final int LINK_QUEUE_CAPACITY = 65536;
+    private static final int MAX_EVENT_LENGTH = 2 * WireProtocol.MAX_FRAME_LENGTH; // A client frame plus event fields
+    private static final long RECONNECT_DELAY_MS = 1000;
+
+    private final String nodeId;
+    private final Consumer<Event> deliver;
+    private final Supplier<List<Event>> snapshot; // Hub only: the state a joining node starts from
+    private final ReentrantLock sequenceLock = new ReentrantLock(); // Hub only: one event at a time, in order
+    private volatile Link[] links = new Link[0]; // Hub only: linked nodes, copy-on-write
+    private final Map<String, Long> ownNames = new HashMap<>(); // Hub only: names its own clients hold, by claim id
+    private volatile Link hub;                   // Node only: null while cut off
+    private ServerSocket serverSocket;           // Hub only
+    private Thread follower;                     // Node only: reads the hub's link and reconnects
+    private volatile boolean closed;
+    final LongAdder sent = new LongAdder();
+    final LongAdder received = new LongAdder();
+
+    private TcpClusterBus(String nodeId, Consumer<Event> deliver, Supplier<List<Event>> snapshot) {
+        this.nodeId = nodeId;
+        this.deliver = deliver;
+        this.snapshot = snapshot;
+    }
+
+    // Starts the hub, accepting nodes on address only; snapshot is taken while no event is being applied
+    static TcpClusterBus listen(String nodeId, InetAddress address, int port, Consumer<Event> deliver,
+                                Supplier<List<Event>> snapshot) throws IOException {
+        TcpClusterBus bus = new TcpClusterBus(nodeId, deliver, snapshot);
+        ServerSocket serverSocket = new ServerSocket(port, 50, address);
+        bus.serverSocket = serverSocket;
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    socket.setTcpNoDelay(true);
+                    Thread reader = new Thread(() -> bus.serveNode(socket), "cluster-node-" + socket.getPort());
+                    reader.setDaemon(true);
+                    reader.start();
+                } catch (IOException e) {
+                    if (!bus.closed) {
+                        ChatLog.NETWORK.error("Cluster: Stopped accepting nodes: {}", e.getMessage());
+                    }
+                    return;
+                }
+            }
+        }, "cluster-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        ChatLog.NETWORK.info("Cluster: Node {} is the hub, listening for nodes on {}:{}", nodeId,
+                address.getHostAddress(), serverSocket.getLocalPort());
+        return bus;
+    }
+
+    // Links to the hub and returns once this node holds the hub's state. Later link failures are
+    // retried in the background; only the first connection has to succeed.
+    static TcpClusterBus join(String nodeId, String host, int port, Consumer<Event> deliver) throws IOException {
+        TcpClusterBus bus = new TcpClusterBus(nodeId, deliver, null);
+        Socket first = new Socket(host, port);
+        CountDownLatch firstLink = new CountDownLatch(1);
+        AtomicBoolean synced = new AtomicBoolean();
+        Thread reader = new Thread(() -> {
+            Socket socket = first;
+            while (true) {
+                if (socket != null) {
+                    bus.followHub(socket, synced, firstLink);
+                }
+                if (bus.closed) {
+                    return;
+                }
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MS);
+                    socket = new Socket(host, port);
+                } catch (IOException e) {
+                    ChatLog.NETWORK.debug("Cluster: Could not reach the hub at {}:{}: {}", host, port, e.getMessage());
+                    socket = null;
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "cluster-hub");
+        reader.setDaemon(true);
+        bus.follower = reader;
+        reader.start();
+        try {
+            firstLink.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while joining the cluster");
+        }
+        if (!synced.get()) {
+            throw new IOException("the hub closed the link before sending its state");
+        }
+        return bus;
+    }
+
+    @Override
+    public boolean publish(Event event) {
+        if (snapshot != null) {
+            sequence(event);
+            return true;
+        }
+        Link link = hub;
+        if (link == null) {
+            return false;
+        }
+        sent.increment();
+        return link.send(event.encode());
+    }
+
+    @Override
+    public String nodeId() {
+        return nodeId;
+    }
+
+    int linkedNodes() {
+        return snapshot != null ? links.length : hub != null ? 1 : 0;
+    }
+
+    // Hub only: the port nodes link to, e.g. after listening on port 0
+    int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    // Hub: stops accepting nodes and drops every link. Node: leaves the cluster for good; the hub
+    // publishes NODE_DOWN for it, and this node gets DETACHED.
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        if (snapshot != null) {
+            serverSocket.close();
+            for (Link link : links) {
+                link.close();
+            }
+        } else {
+            follower.interrupt();
+            Link link = hub;
+            if (link != null) {
+                link.close();
+            }
+        }
+    }
+
+    // Hub: the one place events are ordered. Reentrant, so applying an event may publish another,
+    // which is then ordered right after it.
+    private void sequence(Event event) {
+        sequenceLock.lock();
+        try {
+            Link[] current = links;
+            if (current.length > 0) {
+                byte[] bytes = event.encode();
+                for (Link link : current) {
+                    link.send(bytes);
+                }
+                sent.add(current.length);
+            }
+            trackNames(event);
+            deliver.accept(event);
+        } finally {
+            sequenceLock.unlock();
+        }
+    }
+
+    // Hub: reads one node's link until it closes
+    private void serveNode(Socket socket) {
+        Link link;
+        try {
+            link = new Link(socket);
+        } catch (IOException e) {
+            ChatLog.NETWORK.warn("Cluster: Could not set up link from {}: {}", socket.getRemoteSocketAddress(), e.getMessage());
+            return;
+        }
+        String[] node = new String[1]; // Set by HELLO
+        WireProtocol.Sink sink = new WireProtocol.Sink() {
+            @Override
+            public void onLine(String line) {
+            }
+
+            @Override
+            public void onFrame(int type, WireProtocol.Payload payload) {
+                Event event = Event.decode(type, payload);
+                received.increment();
+                if (node[0] == null) {
+                    if (type != Event.HELLO || !addNode(event.node, link)) {
+                        link.close();
+                        return;
+                    }
+                    node[0] = event.node;
+                    return;
+                }
+                if (!isNodeEvent(event, node[0])) {
+                    ChatLog.NETWORK.warn("Cluster: Dropping link to {}: unexpected event type {}", node[0], type);
+                    link.close();
+                    return;
+                }
+                if (!sequenceFrom(link, event)) {
+                    ChatLog.NETWORK.warn("Cluster: Ignoring event type {} from {}: it does not hold the name '{}'",
+                            type, node[0], event.user);
+                }
+            }
+
+            @Override
+            public boolean binaryInput() {
+                return true;
+            }
+        };
+        try {
+            readLink(socket, sink);
+        } finally {
+            link.close();
+            if (node[0] != null) {
+                removeNode(node[0], link);
+            }
+        }
+    }
+
+    // Hub: the new node gets the current state first, then every later event
+    private boolean addNode(String node, Link link) {
+        sequenceLock.lock();
+        try {
+            if (node.isEmpty() || node.equals(nodeId) || findLink(node) != null) {
+                ChatLog.NETWORK.error("Cluster: Refusing a second node named '{}'", node);
+                return false;
+            }
+            link.node = node;
+            for (Event event : snapshot.get()) {
+                link.send(event.encode());
+            }
+            Link[] grown = Arrays.copyOf(links, links.length + 1);
+            grown[grown.length - 1] = link;
+            links = grown;
+            ChatLog.NETWORK.info("Cluster: Node {} linked ({} nodes)", node, grown.length + 1);
+            return true;
+        } finally {
+            sequenceLock.unlock();
+        }
+    }
+
+    private void removeNode(String node, Link link) {
+        sequenceLock.lock();
+        try {
+            Link[] current = links;
+            Link[] shrunk = new Link[current.length - 1];
+            int j = 0;
+            for (Link l : current) {
+                if (l != link) {
+                    shrunk[j++] = l;
+                }
+            }
+            links = shrunk;
+            ChatLog.NETWORK.warn("Cluster: Node {} unlinked ({} nodes)", node, shrunk.length + 1);
+            sequence(Event.nodeDown(node, System.currentTimeMillis()));
+        } finally {
+            sequenceLock.unlock();
+        }
+    }
+
+    private Link findLink(String node) {
+        for (Link link : links) {
+            if (node.equals(link.node)) {
+                return link;
+            }
+        }
+        return null;
+    }
+
+    // What a node may send the hub. Claims and releases must name the node they came from.
+    private static boolean isNodeEvent(Event event, String node) {
+        switch (event.type) {
+            case Event.CLAIM:
+            case Event.RELEASE:
+                return node.equals(event.node);
+            case Event.SAY:
+            case Event.PRIVATE_MESSAGE:
+            case Event.TYPING:
+            case Event.PRIVATE_TYPING:
+            case Event.PUBLIC_REACTION:
+            case Event.REACTION:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Hub: orders an event from a node. Claims and releases pass; any other event is sent on behalf
+    // of its user, who must be connected to that node. False if the event was dropped.
+    private boolean sequenceFrom(Link link, Event event) {
+        sequenceLock.lock();
+        try {
+            if (event.type != Event.CLAIM && event.type != Event.RELEASE && !link.names.containsKey(event.user)) {
+                return false;
+            }
+            sequence(event);
+            return true;
+        } finally {
+            sequenceLock.unlock();
+        }
+    }
+
+    // Hub: follows who holds each name by the rule every node applies to claims (see ClusterBus):
+    // a claim wins if no earlier claim holds the name, and only the release of the winning claim
+    // frees it. A node's names go with its link, as NODE_DOWN releases them all. Under sequenceLock.
+    private void trackNames(Event event) {
+        if (event.type != Event.CLAIM && event.type != Event.RELEASE) {
+            return;
+        }
+        Map<String, Long> names = event.node.equals(nodeId) ? ownNames : namesOf(event.node);
+        if (names == null) {
+            return;
+        }
+        if (event.type == Event.RELEASE) {
+            names.remove(event.user, event.id);
+        } else if (!ownNames.containsKey(event.user) && !isLinkName(event.user)) {
+            names.put(event.user, event.id);
+        }
+    }
+
+    private Map<String, Long> namesOf(String node) {
+        Link link = findLink(node);
+        return link != null ? link.names : null;
+    }
+
+    private boolean isLinkName(String name) {
+        for (Link link : links) {
+            if (link.names.containsKey(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Node: says hello, then applies everything the hub sends until the link closes
+    private void followHub(Socket socket, AtomicBoolean synced, CountDownLatch firstLink) {
+        Link link;
+        try {
+            socket.setTcpNoDelay(true);
+            link = new Link(socket);
+        } catch (IOException e) {
+            ChatLog.NETWORK.warn("Cluster: Could not set up link to the hub: {}", e.getMessage());
+            return;
+        }
+        link.node = "hub";
+        link.send(Event.hello(nodeId).encode());
+        hub = link;
+        boolean[] attached = new boolean[1];
+        try {
+            readLink(socket, new WireProtocol.Sink() {
+                @Override
+                public void onLine(String line) {
+                }
+
+                @Override
+                public void onFrame(int type, WireProtocol.Payload payload) {
+                    received.increment();
+                    Event event = Event.decode(type, payload);
+                    deliver.accept(event);
+                    if (type == Event.SYNC_END) {
+                        attached[0] = true;
+                        synced.set(true);
+                        firstLink.countDown();
+                        ChatLog.NETWORK.info("Cluster: Node {} joined the cluster", nodeId);
+                    }
+                }
+
+                @Override
+                public boolean binaryInput() {
+                    return true;
+                }
+            });
+        } finally {
+            hub = null;
+            link.close();
+            firstLink.countDown();
+            if (attached[0]) {
+                ChatLog.NETWORK.warn("Cluster: Lost the link to the hub, reconnecting");
+                deliver.accept(Event.detached());
+            }
+        }
+    }
+
+    private void readLink(Socket socket, WireProtocol.Sink sink) {
+        WireProtocol.Decoder decoder = new WireProtocol.Decoder(MAX_EVENT_LENGTH);
+        byte[] buffer = new byte[8192];
+        try {
+            InputStream in = socket.getInputStream();
+            int count;
+            while ((count = in.read(buffer)) >= 0) {
+                if (!decoder.decode(buffer, 0, count, sink)) {
+                    ChatLog.NETWORK.warn("Cluster: Closing link to {}: malformed event", socket.getRemoteSocketAddress());
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            ChatLog.NETWORK.debug("Cluster: Link to {} failed: {}", socket.getRemoteSocketAddress(), e.getMessage());
+        }
+    }
+
+    // One end of a link: a bounded queue of encoded events drained by a writer thread
+    private static final class Link {
+        private final Socket socket;
+        private final OutputStream out;
+        private final ArrayBlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(LINK_QUEUE_CAPACITY);
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private final Thread writer;
+        volatile String node;
+        final Map<String, Long> names = new HashMap<>(); // Hub only: names the node's clients hold, by claim id; under sequenceLock
+
+        Link(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = new BufferedOutputStream(socket.getOutputStream(), 65536);
+            this.writer = new Thread(this::writeLoop, "cluster-writer-" + socket.getPort());
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        // Never blocks; a link that falls this far behind is closed and its node syncs again
+        boolean send(byte[] event) {
+            if (queue.offer(event)) {
+                return true;
+            }
+            if (!closed.get()) {
+                ChatLog.NETWORK.warn("Cluster: Closing link to {}: {} events queued", node, LINK_QUEUE_CAPACITY);
+                close();
+            }
+            return false;
+        }
+
+        private void writeLoop() {
+            List<byte[]> batch = new ArrayList<>();
+            try {
+                while (true) {
+                    batch.add(queue.take());
+                    queue.drainTo(batch);
+                    for (byte[] event : batch) {
+                        out.write(event);
+                    }
+                    out.flush();
+                    batch.clear();
+                }
+            } catch (InterruptedException | IOException e) {
+                close(); // The reader sees the closed socket
+            }
+        }
+
+        void close() {
+            if (closed.compareAndSet(false, true)) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    ChatLog.NETWORK.debug("Cluster: Error closing link to {}: {}", node, e.getMessage());
+                }
+                writer.interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,369 @@
+package connectsphere;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Wire formats shared by the server and the client. Every connection starts with the original
+// newline-terminated text protocol. A server that supports binary framing advertises it in the
+// first line ("SUBMITNAME binary1"). A client that wants it answers "/proto binary1" and switches
+// its output to frames right after that line. The server acknowledges with "PROTO binary1" and
+// switches its output after that line. Old clients never send /proto, so they stay on text.
+//
+// Text clients can also ask for message ids: the server lists "ids1" in SUBMITNAME, and a client
+// that sends "/proto ids1" before its name gets MESSAGE lines ending with a tab and the id. There
+// is no acknowledgement, since the framing does not change. Others get the lines as before.
+//
+// A binary frame is a type byte, the payload length as an unsigned LEB128 varint, then the
+// payload. Payload strings are a varint byte length followed by UTF-8, and ids and timestamps
+// are fixed 8-byte big-endian longs, so names and messages may contain spaces, commas or
+// newlines without any escaping.
+final class WireProtocol {
+    static final String BINARY_V1 = "binary1";
+    static final String PROTO_REQUEST = "/proto " + BINARY_V1; // Client -> server, last text line
+    static final String PROTO_ACK = "PROTO " + BINARY_V1;      // Server -> client, last text line
+    static final String IDS_V1 = "ids1";
+    static final String IDS_REQUEST = "/proto " + IDS_V1;      // Client -> server, before the name
+
+    // Server -> client frame types
+    static final int SUBMITNAME = 0x01;   // (empty)
+    static final int NAMEACCEPTED = 0x02; // name
+    static final int MESSAGE = 0x03;      // kind:u8, id:i64 (-1: none), timestamp:i64 (epoch millis), sender, body
+    static final int USERLIST = 0x04;     // epoch:i64, count:varint, name*
+    static final int PMTYPING = 0x06;     // user, start:u8
+    static final int TYPINGSET = 0x07;    // startedCount:varint, name*, stoppedCount:varint, name*
+    static final int USERJOIN = 0x08;     // epoch:i64, name
+    static final int USERLEAVE = 0x09;    // epoch:i64, name
+    static final int REACTION_PUBLIC = 0x0A; // count:varint, (messageId:i64, emoji, total:varint)*; public counts
+    static final int REACTION = 0x0B;     // user, messageId:i64, emoji; one private reaction
+    static final int HISTORY = 0x0C;      // count:varint; the next count MESSAGE frames are the requested page
+
+    // MESSAGE kinds; sender is the other party for the private kinds and empty for SYSTEM
+    static final int KIND_SYSTEM = 0;       // "alice joined the chat"
+    static final int KIND_PUBLIC = 1;
+    static final int KIND_PRIVATE_FROM = 2;
+    static final int KIND_PRIVATE_TO = 3;
+
+    // Client -> server frame types
+    static final int NAME = 0x41;         // name
+    static final int SAY = 0x42;          // body
+    static final int PM = 0x43;           // recipient, body
+    static final int SET_TYPING = 0x44;   // start:u8
+    static final int SET_PMTYPING = 0x45; // recipient, start:u8
+    static final int REACT_PUBLIC = 0x46; // messageId:i64, emoji
+    static final int REACT = 0x47;        // recipient, messageId:i64, emoji
+    static final int FETCH_HISTORY = 0x48; // beforeId:i64, count:varint
+    static final int LINE = 0x4F;         // a text-protocol command that has no frame type of its own
+
+    static final int MAX_FRAME_LENGTH = 64 * 1024; // Also the longest accepted text line, in bytes
+
+    // For code that builds a frame and is done with it before building the next, like Frame and ClusterBus
+    private static final ThreadLocal<Encoder> ENCODERS = ThreadLocal.withInitial(Encoder::new);
+
+    private WireProtocol() {
+    }
+
+    // This thread's encoder, started. The frame must be finished with toFrame() before the next call.
+    static Encoder encoder() {
+        return ENCODERS.get().start();
+    }
+
+    // Builds one frame. Reusable: start() resets it, so a single instance can serve a connection.
+    static final class Encoder {
+        private byte[] bytes = new byte[256];
+        private int length;
+
+        Encoder start() {
+            length = 0;
+            return this;
+        }
+
+        Encoder writeByte(int value) {
+            ensure(1);
+            bytes[length++] = (byte) value;
+            return this;
+        }
+
+        Encoder writeBoolean(boolean value) {
+            return writeByte(value ? 1 : 0);
+        }
+
+        Encoder writeVarint(int value) {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+            return this;
+        }
+
+        Encoder writeLong(long value) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                bytes[length++] = (byte) (value >>> shift);
+            }
+            return this;
+        }
+
+        Encoder writeString(String value) {
+            return writeBytes(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        // A varint length followed by the bytes, e.g. a whole frame nested in another
+        Encoder writeBytes(byte[] value) {
+            writeVarint(value.length);
+            ensure(value.length);
+            System.arraycopy(value, 0, bytes, length, value.length);
+            length += value.length;
+            return this;
+        }
+
+        // The payload written since start(), wrapped in a frame header
+        byte[] toFrame(int type) {
+            int headerLength = 1 + varintLength(length);
+            byte[] frame = new byte[headerLength + length];
+            frame[0] = (byte) type;
+            int at = 1;
+            int value = length;
+            while ((value & ~0x7F) != 0) {
+                frame[at++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            frame[at] = (byte) value;
+            System.arraycopy(bytes, 0, frame, headerLength, length);
+            return frame;
+        }
+
+        private void ensure(int extra) {
+            if (length + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+            }
+        }
+
+        private static int varintLength(int value) {
+            int count = 1;
+            while ((value & ~0x7F) != 0) {
+                value >>>= 7;
+                count++;
+            }
+            return count;
+        }
+    }
+
+    // Read cursor over one received payload. Only valid during the onFrame call that received it.
+    static final class Payload {
+        private byte[] bytes;
+        private int position;
+        private int limit;
+
+        void reset(byte[] bytes, int offset, int length) {
+            this.bytes = bytes;
+            this.position = offset;
+            this.limit = offset + length;
+        }
+
+        int readByte() {
+            check(1);
+            return bytes[position++] & 0xFF;
+        }
+
+        boolean readBoolean() {
+            return readByte() != 0;
+        }
+
+        int readVarint() {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                int b = readByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint");
+        }
+
+        long readLong() {
+            check(8);
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (bytes[position++] & 0xFF);
+            }
+            return value;
+        }
+
+        String readString() {
+            int length = readVarint();
+            check(length);
+            String value = new String(bytes, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        byte[] readBytes() {
+            int length = readVarint();
+            check(length);
+            byte[] value = Arrays.copyOfRange(bytes, position, position + length);
+            position += length;
+            return value;
+        }
+
+        private void check(int count) {
+            if (count < 0 || position + count > limit) {
+                throw new IllegalArgumentException("Truncated frame");
+            }
+        }
+    }
+
+    interface Sink {
+        void onLine(String line);
+
+        // The line's UTF-8 bytes, in a buffer the decoder reuses once this returns. Sinks that
+        // can parse bytes override this to skip building a String for the whole line.
+        default void onLine(byte[] line, int offset, int length) {
+            onLine(new String(line, offset, length, StandardCharsets.UTF_8));
+        }
+
+        void onFrame(int type, Payload payload);
+
+        // Checked before every line or frame, so a connection can switch formats mid-buffer
+        boolean binaryInput();
+    }
+
+    // Incremental decoder for either format. Input may arrive in arbitrary chunks: partial lines,
+    // multi-byte characters and frames split across reads are carried over to the next call.
+    // Text lines end at "\n", "\r" or "\r\n", the same as BufferedReader.readLine().
+    static final class Decoder {
+        private final Payload payload = new Payload();
+        private byte[] pending = new byte[256];
+        private int pendingLength = 0;
+        private boolean lastWasCarriageReturn = false;
+        private int frameType = -1;   // Type of the frame being read, or -1 while reading its header
+        private int frameLength = -1; // Payload length once the varint is complete
+        private int varintShift = 0;
+        private long bytesDecoded = 0;
+        private long messagesDecoded = 0;
+        private final int maxFrameLength;
+
+        Decoder() {
+            this(MAX_FRAME_LENGTH);
+        }
+
+        // Links between servers carry client frames wrapped with a few more fields, so they need more room
+        Decoder(int maxFrameLength) {
+            this.maxFrameLength = maxFrameLength;
+        }
+
+        // Returns false if a line or frame is longer than the maximum length or a payload is malformed;
+        // the connection should then be closed
+        boolean decode(ByteBuffer buffer, Sink sink) {
+            while (buffer.hasRemaining()) {
+                boolean ok = sink.binaryInput() ? decodeFrame(buffer, sink) : decodeLine(buffer, sink);
+                if (!ok) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean decode(byte[] bytes, int offset, int length, Sink sink) {
+            return decode(ByteBuffer.wrap(bytes, offset, length), sink);
+        }
+
+        long bytesDecoded() {
+            return bytesDecoded;
+        }
+
+        long messagesDecoded() {
+            return messagesDecoded;
+        }
+
+        // Consumes bytes up to and including one line terminator, or to the end of the buffer
+        private boolean decodeLine(ByteBuffer buffer, Sink sink) {
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                bytesDecoded++;
+                if (b == '\n' || b == '\r') {
+                    boolean skip = b == '\n' && lastWasCarriageReturn;
+                    lastWasCarriageReturn = b == '\r';
+                    if (!skip) {
+                        int length = pendingLength;
+                        pendingLength = 0;
+                        messagesDecoded++;
+                        sink.onLine(pending, 0, length);
+                        return true;
+                    }
+                    continue;
+                }
+                lastWasCarriageReturn = false;
+                if (pendingLength >= maxFrameLength) {
+                    return false;
+                }
+                append(b);
+            }
+            return true;
+        }
+
+        // Consumes bytes up to the end of one frame, or to the end of the buffer
+        private boolean decodeFrame(ByteBuffer buffer, Sink sink) {
+            lastWasCarriageReturn = false;
+            while (frameLength < 0 && buffer.hasRemaining()) {
+                int b = buffer.get() & 0xFF;
+                bytesDecoded++;
+                if (frameType < 0) {
+                    frameType = b;
+                    frameLength = -1;
+                    pendingLength = 0;
+                    varintShift = 0;
+                    continue;
+                }
+                // The varint is collected in pendingLength until it is complete
+                pendingLength |= (b & 0x7F) << varintShift;
+                varintShift += 7;
+                if ((b & 0x80) == 0) {
+                    frameLength = pendingLength;
+                    pendingLength = 0;
+                    if (frameLength > maxFrameLength) {
+                        return false;
+                    }
+                } else if (varintShift > 21) {
+                    return false; // Longer than any length we accept
+                }
+            }
+            if (frameLength < 0) {
+                return true;
+            }
+            int count = Math.min(buffer.remaining(), frameLength - pendingLength);
+            ensure(pendingLength + count);
+            buffer.get(pending, pendingLength, count);
+            pendingLength += count;
+            bytesDecoded += count;
+            if (pendingLength == frameLength) {
+                int type = frameType;
+                payload.reset(pending, 0, frameLength);
+                frameType = -1;
+                frameLength = -1;
+                pendingLength = 0;
+                messagesDecoded++;
+                try {
+                    sink.onFrame(type, payload);
+                } catch (IllegalArgumentException e) {
+                    return false; // Truncated or malformed payload
+                }
+            }
+            return true;
+        }
+
+        private void append(byte b) {
+            ensure(pendingLength + 1);
+            pending[pendingLength++] = b;
+        }
+
+        private void ensure(int capacity) {
+            if (capacity > pending.length) {
+                pending = Arrays.copyOf(pending, Math.max(pending.length * 2, capacity));
+            }
+        }
+    }
+}
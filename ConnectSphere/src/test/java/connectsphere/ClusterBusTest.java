@@ -0,0 +1,272 @@
+package connectsphere;
+
+import connectsphere.ClusterBus.Event;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// A hub and two nodes on loopback, each applying events the way the server does: the first claim
+// for a name wins, and public messages take the next id in the order they are delivered
+class ClusterBusTest {
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    private final Replica hubState = new Replica();
+    private final List<TcpClusterBus> buses = new ArrayList<>();
+    private TcpClusterBus hub;
+
+    @BeforeEach
+    void startHub() throws IOException {
+        hub = TcpClusterBus.listen("hub", InetAddress.getLoopbackAddress(), 0, hubState, hubState::snapshot);
+        buses.add(hub);
+    }
+
+    @AfterEach
+    void stopAll() throws IOException {
+        for (TcpClusterBus bus : buses) {
+            bus.close();
+        }
+    }
+
+    @Test
+    void racingClaimsHaveOneWinnerEverywhere() throws Exception {
+        Replica aState = new Replica();
+        Replica bState = new Replica();
+        TcpClusterBus a = join("a", aState);
+        TcpClusterBus b = join("b", bState);
+        for (int round = 0; round < 20; round++) {
+            String name = "carol" + round;
+            CountDownLatch start = new CountDownLatch(1);
+            Thread claimA = claimAfter(start, a, round, name);
+            Thread claimB = claimAfter(start, b, round, name);
+            start.countDown();
+            claimA.join();
+            claimB.join();
+            int claims = 2 * (round + 1);
+            for (Replica replica : List.of(hubState, aState, bState)) {
+                replica.await(r -> r.claims == claims);
+            }
+            String winner = hubState.owner(name);
+            assertNotNull(winner, name);
+            assertEquals(winner, aState.owner(name), name);
+            assertEquals(winner, bState.owner(name), name);
+        }
+        // Only the winner may speak for a name; the hub drops the loser's messages
+        String name = "carol0";
+        TcpClusterBus loser = hubState.owner(name).equals("a") ? b : a;
+        loser.publish(Event.claim(loser.nodeId(), 100, "dave", 0));
+        loser.publish(Event.say(name, 1, "not mine"));
+        loser.publish(Event.say("dave", 2, "mine"));
+        hubState.await(r -> r.messages.size() == 1);
+        assertEquals(List.of("dave: mine"), hubState.texts);
+    }
+
+    @Test
+    void messageIdsMatchOnEveryNode() throws Exception {
+        Replica aState = new Replica();
+        Replica bState = new Replica();
+        TcpClusterBus a = join("a", aState);
+        TcpClusterBus b = join("b", bState);
+        a.publish(Event.claim("a", 1, "alice", 0));
+        b.publish(Event.claim("b", 1, "bob", 0));
+        hub.publish(Event.claim("hub", 1, "hana", 0));
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> senders = List.of(sayAfter(start, a, "alice", 200), sayAfter(start, b, "bob", 200),
+                sayAfter(start, hub, "hana", 200));
+        start.countDown();
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        for (Replica replica : List.of(hubState, aState, bState)) {
+            replica.await(r -> r.messages.size() == 600);
+        }
+        assertEquals(hubState.state(), aState.state());
+        assertEquals(hubState.state(), bState.state());
+    }
+
+    @Test
+    void rejoiningNodeCatchesUpAfterSync() throws Exception {
+        Replica aState = new Replica();
+        Replica bState = new Replica();
+        TcpClusterBus a = join("a", aState);
+        TcpClusterBus b = join("b", bState);
+        a.publish(Event.claim("a", 1, "alice", 0));
+        b.publish(Event.claim("b", 1, "bob", 0));
+        a.publish(Event.say("alice", 1, "before"));
+        b.publish(Event.say("bob", 2, "before"));
+        bState.await(r -> r.messages.size() == 2);
+
+        buses.remove(b);
+        b.close();
+        bState.await(r -> r.detached);
+        hubState.await(r -> r.nodesDown.contains("b"));
+        assertNull(hubState.owner("bob"), "a node's names go with its link");
+        // What b misses while it is away
+        a.publish(Event.claim("a", 2, "bob", 0));
+        a.publish(Event.say("bob", 3, "while b was away"));
+        a.publish(Event.say("alice", 4, "also while b was away"));
+        aState.await(r -> r.messages.size() == 4);
+
+        // b comes back under the same id with its stale state, which SYNC replaces
+        join("b", bState);
+        assertEquals(hubState.state(), bState.state());
+        assertEquals("a", bState.owner("bob"));
+        TcpClusterBus rejoined = buses.get(buses.size() - 1);
+        rejoined.publish(Event.claim("b", 2, "bea", 0));
+        rejoined.publish(Event.say("bea", 5, "after"));
+        for (Replica replica : List.of(hubState, aState, bState)) {
+            replica.await(r -> r.messages.size() == 5);
+        }
+        assertEquals(hubState.state(), aState.state());
+        assertEquals(hubState.state(), bState.state());
+    }
+
+    private TcpClusterBus join(String node, Replica state) throws IOException {
+        TcpClusterBus bus = TcpClusterBus.join(node, "127.0.0.1", hub.port(), state);
+        buses.add(bus);
+        return bus;
+    }
+
+    private static Thread claimAfter(CountDownLatch start, TcpClusterBus bus, long claimId, String name) {
+        return started(() -> {
+            start.await();
+            bus.publish(Event.claim(bus.nodeId(), claimId, name, 0));
+        });
+    }
+
+    private static Thread sayAfter(CountDownLatch start, TcpClusterBus bus, String sender, int count) {
+        return started(() -> {
+            start.await();
+            for (int i = 0; i < count; i++) {
+                bus.publish(Event.say(sender, i, sender + " " + i));
+            }
+        });
+    }
+
+    private interface Step {
+        void run() throws InterruptedException;
+    }
+
+    private static Thread started(Step step) {
+        Thread thread = new Thread(() -> {
+            try {
+                step.run();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    // One server's view of the chat, kept the way ConnectSphereServer keeps it
+    private static final class Replica implements Consumer<Event> {
+        private final Map<String, String> owners = new TreeMap<>();     // name -> node
+        private final Map<String, Long> claimIds = new TreeMap<>();    // name -> winning claim id
+        private final List<byte[]> messages = new ArrayList<>();      // binary MESSAGE frames
+        private final List<String> texts = new ArrayList<>();
+        private final List<String> nodesDown = new ArrayList<>();
+        private long firstId;
+        private int claims;
+        private boolean detached;
+
+        @Override
+        public synchronized void accept(Event event) {
+            switch (event.type) {
+                case Event.CLAIM:
+                    claims++;
+                    if (owners.putIfAbsent(event.user, event.node) == null) {
+                        claimIds.put(event.user, event.id);
+                    }
+                    break;
+                case Event.RELEASE:
+                    if (claimIds.remove(event.user, event.id)) {
+                        owners.remove(event.user);
+                    }
+                    break;
+                case Event.NODE_DOWN:
+                    nodesDown.add(event.node);
+                    owners.values().removeIf(event.node::equals);
+                    claimIds.keySet().retainAll(owners.keySet());
+                    break;
+                case Event.SAY:
+                    long id = firstId + messages.size();
+                    messages.add(Frame.message(WireProtocol.KIND_PUBLIC, id, event.value, event.user, event.text).bytes(true));
+                    texts.add(event.user + ": " + event.text);
+                    break;
+                case Event.SYNC_BEGIN:
+                    owners.clear();
+                    claimIds.clear();
+                    messages.clear();
+                    texts.clear();
+                    firstId = event.id;
+                    detached = false;
+                    break;
+                case Event.SYNC_MESSAGE:
+                    messages.add(event.frame);
+                    break;
+                case Event.SYNC_MEMBER:
+                    owners.put(event.user, event.node);
+                    claimIds.put(event.user, event.id);
+                    break;
+                case Event.DETACHED:
+                    detached = true;
+                    break;
+                default:
+                    break;
+            }
+            notifyAll();
+        }
+
+        // Taken by the hub under its sequence lock, like the server's snapshot
+        synchronized List<Event> snapshot() {
+            List<Event> events = new ArrayList<>();
+            events.add(Event.syncBegin(firstId, 0));
+            for (byte[] frame : messages) {
+                events.add(Event.syncMessage(frame));
+            }
+            for (Map.Entry<String, String> owner : owners.entrySet()) {
+                events.add(Event.syncMember(owner.getValue(), claimIds.get(owner.getKey()), owner.getKey()));
+            }
+            events.add(Event.syncEnd(0));
+            return events;
+        }
+
+        synchronized String owner(String name) {
+            return owners.get(name);
+        }
+
+        // Names with their nodes, then every message frame in id order
+        synchronized String state() {
+            Map<String, Object> state = new LinkedHashMap<>(owners);
+            for (int i = 0; i < messages.size(); i++) {
+                state.put("#" + (firstId + i), Arrays.toString(messages.get(i)));
+            }
+            return state.toString();
+        }
+
+        synchronized void await(Predicate<Replica> condition) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (!condition.test(this)) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    fail("timed out; state " + state() + ", claims " + claims);
+                }
+                wait(left);
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package connectsphere;
+
+import connectsphere.ConnectSphereClient.ChatMessage;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// The id index stays exact as the retention window drops old messages, including entries whose
+// probe runs wrap past the end of the index
+class ConversationTest {
+    private static final int INDEX_SLOTS = Conversation.INITIAL_CAPACITY * 2; // Enough for retention 8
+
+    @Test
+    void evictsAndReindexesAcrossTheIndexWrap() {
+        // Ids whose home is one of the last two slots or the first, so their probe runs cross the end
+        List<Long> wrapping = new ArrayList<>();
+        for (long id = 0; wrapping.size() < 24; id++) {
+            int home = Conversation.hash(id) & (INDEX_SLOTS - 1);
+            if (home >= INDEX_SLOTS - 2 || home == 0) {
+                wrapping.add(id);
+            }
+        }
+        Model model = new Model(8);
+        for (int round = 0; round < 3; round++) {
+            for (long id : wrapping) {
+                model.add(id);
+            }
+            // Replays move an id to its newest copy; the old copy's eviction must not drop it
+            for (int i = wrapping.size() - 1; i >= 0; i -= 3) {
+                model.add(wrapping.get(i));
+            }
+        }
+    }
+
+    @Test
+    void matchesAMapThroughRandomTraffic() {
+        Random random = new Random(21);
+        for (int retention : new int[] {1, 5, 8, 100}) {
+            Model model = new Model(retention);
+            for (int i = 0; i < 20_000; i++) {
+                int roll = random.nextInt(10);
+                // Mostly new ids, some replays of recent or evicted ones, some lines without an id
+                model.add(roll == 0 ? -1 : roll < 3 ? random.nextInt(3 * retention + 1) : 1_000_000 + i);
+            }
+        }
+    }
+
+    // A conversation checked after every add against a plain map of id -> newest sequence number
+    private static final class Model {
+        private final int retention;
+        private final Conversation conversation;
+        private final List<Long> added = new ArrayList<>(); // Id by sequence number
+        private final Map<Long, Integer> newest = new HashMap<>();
+
+        Model(int retention) {
+            this.retention = retention;
+            this.conversation = new Conversation(retention);
+        }
+
+        void add(long id) {
+            conversation.add(new ChatMessage("message " + added.size(), id));
+            if (id >= 0) {
+                newest.put(id, added.size());
+            }
+            added.add(id);
+            check();
+        }
+
+        private void check() {
+            int first = Math.max(0, added.size() - retention);
+            assertEquals(added.size() - first, conversation.getSize());
+            // The kept messages and as many just evicted ones
+            for (int sequence = Math.max(0, first - retention); sequence < added.size(); sequence++) {
+                long id = added.get(sequence);
+                if (id < 0) {
+                    continue;
+                }
+                int expected = newest.get(id) >= first ? newest.get(id) - first : -1;
+                assertEquals(expected, conversation.indexOf(id), "id " + id + " after " + added.size() + " messages");
+                if (expected >= 0) {
+                    assertEquals(id, conversation.getElementAt(expected).messageId);
+                }
+            }
+        }
+    }
+}
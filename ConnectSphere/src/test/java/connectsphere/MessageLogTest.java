@@ -0,0 +1,203 @@
+package connectsphere;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Reopening the log after the damage a crash or a bad disk leaves behind, and keeping few segments mapped
+class MessageLogTest {
+    private static final int SMALL_SEGMENT = 4096; // About 90 messages, so a few hundred span several segments
+    private static final int RECORD_HEADER = 8;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void reopensWhereItLeftOff() throws IOException {
+        List<byte[]> frames = fill(SMALL_SEGMENT, 250);
+        try (MessageLog log = MessageLog.open(directory, SMALL_SEGMENT)) {
+            assertEquals(250, log.nextId());
+            assertPage(log, 250, 1000, frames, 0, 250);
+            assertPage(log, 100, 30, frames, 70, 100);
+        }
+    }
+
+    @Test
+    void cutsOffATornRecordInTheActiveSegment() throws IOException {
+        List<byte[]> frames = fill(1 << 16, 100);
+        // The last record's body never fully reached the disk
+        corrupt(segment(0), positionOf(frames, 0, 99) + RECORD_HEADER + frames.get(99).length - 1);
+        try (MessageLog log = MessageLog.open(directory, 1 << 16)) {
+            assertEquals(99, log.nextId());
+            assertPage(log, 100, 1000, frames, 0, 99);
+            byte[] again = frame(99);
+            log.append(99, again);
+            frames.set(99, again);
+        }
+        try (MessageLog log = MessageLog.open(directory, 1 << 16)) {
+            assertEquals(100, log.nextId());
+            assertPage(log, 100, 1000, frames, 0, 100);
+        }
+    }
+
+    @Test
+    void clampsSealedSegmentsWithTornTails() throws IOException {
+        List<byte[]> frames = fill(SMALL_SEGMENT, 250);
+        long[] firstIds = segmentFirstIds();
+        assertTrue(firstIds.length >= 3, "expected at least three segments");
+        long second = firstIds[1];
+        long third = firstIds[2];
+        // A roll created the next segment before these tails were forced: one is lost after its
+        // second index entry, the other before it
+        zeroFrom(segment(0), positionOf(frames, 0, 70));
+        zeroFrom(segment(second), positionOf(frames, second, 10));
+        try (MessageLog log = MessageLog.open(directory, SMALL_SEGMENT)) {
+            assertEquals(250, log.nextId());
+            assertEquals(0, log.firstId());
+            // Pages never span the lost messages
+            assertPage(log, 250, 1000, frames, third, 250);
+            assertPage(log, third, 1000, frames, second, second + 10);
+            assertPage(log, second, 1000, frames, 0, 70);
+            assertPage(log, second + 5, 1000, frames, second, second + 5);
+            assertPage(log, third, 3, frames, third, third); // Entirely within the gap
+        }
+    }
+
+    @Test
+    void ignoresCorruptOrMissingIndexFiles() throws IOException {
+        List<byte[]> frames = fill(SMALL_SEGMENT, 250);
+        long[] firstIds = segmentFirstIds();
+        // Every entry of the first segment's index is off by one byte; the second has none
+        Path index = index(0);
+        ByteBuffer entries = ByteBuffer.wrap(Files.readAllBytes(index));
+        for (int i = 0; i < entries.capacity(); i += 4) {
+            entries.putInt(i, entries.getInt(i) + 1);
+        }
+        Files.write(index, entries.array());
+        Files.delete(index(firstIds[1]));
+        try (MessageLog log = MessageLog.open(directory, SMALL_SEGMENT)) {
+            assertEquals(250, log.nextId());
+            assertPage(log, 250, 1000, frames, 0, 250);
+            assertPage(log, 130, 7, frames, 123, 130);
+        }
+    }
+
+    @Test
+    void survivesAnIndexPointingPastTheSegment() throws IOException {
+        List<byte[]> frames = fill(SMALL_SEGMENT, 250);
+        ByteBuffer entries = ByteBuffer.allocate(8);
+        entries.putInt(0, 0);
+        entries.putInt(4, Integer.MAX_VALUE - 2);
+        Files.write(index(0), entries.array());
+        try (MessageLog log = MessageLog.open(directory, SMALL_SEGMENT)) {
+            assertPage(log, 250, 1000, frames, 0, 250);
+        }
+    }
+
+    @Test
+    void keepsOnlyRecentSegmentsMapped() throws IOException {
+        List<byte[]> frames = new ArrayList<>();
+        try (MessageLog log = MessageLog.open(directory, SMALL_SEGMENT)) {
+            for (int id = 0; id < 2000; id++) {
+                frames.add(frame(id));
+                log.append(id, frames.get(id));
+            }
+            log.commit();
+            assertEquals(1, log.mappedSegments(), "sealed segments are closed once committed");
+            assertPage(log, 2000, 2000, frames, 0, 2000);
+            assertTrue(log.mappedSegments() <= MessageLog.MAX_MAPPED_SEALED + 1);
+        }
+        try (MessageLog log = MessageLog.open(directory, SMALL_SEGMENT)) {
+            assertTrue(segmentFirstIds().length > MessageLog.MAX_MAPPED_SEALED + 1, "expected more segments than mappings");
+            assertEquals(1, log.mappedSegments());
+            for (long before = 2000; before > 0; before -= 50) {
+                assertPage(log, before, 50, frames, before - 50, before);
+                assertTrue(log.mappedSegments() <= MessageLog.MAX_MAPPED_SEALED + 1);
+            }
+        }
+    }
+
+    // Appends count messages to a new log and closes it; returns their frames by id
+    private List<byte[]> fill(int segmentBytes, int count) throws IOException {
+        List<byte[]> frames = new ArrayList<>();
+        try (MessageLog log = MessageLog.open(directory, segmentBytes)) {
+            for (int id = 0; id < count; id++) {
+                byte[] frame = frame(id);
+                log.append(id, frame);
+                frames.add(frame);
+            }
+        }
+        return frames;
+    }
+
+    private static byte[] frame(long id) {
+        return Frame.message(WireProtocol.KIND_PUBLIC, id, 1_700_000_000_000L + id, "alice", "message " + id).bytes(true);
+    }
+
+    // Reads the page before beforeId and checks it holds exactly the messages from to until
+    private static void assertPage(MessageLog log, long beforeId, int count, List<byte[]> frames, long from, long until) {
+        List<byte[]> page = new ArrayList<>();
+        log.readPage(beforeId, count, page);
+        assertEquals(until - from, page.size(), "messages before " + beforeId);
+        for (int i = 0; i < page.size(); i++) {
+            assertArrayEquals(frames.get((int) (from + i)), page.get(i), "message " + (from + i));
+        }
+    }
+
+    // Where message k of the segment starting at firstId begins in its file
+    private static int positionOf(List<byte[]> frames, long firstId, int k) {
+        int position = 0;
+        for (int i = 0; i < k; i++) {
+            position += RECORD_HEADER + frames.get((int) firstId + i).length;
+        }
+        return position;
+    }
+
+    private long[] segmentFirstIds() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.endsWith(".log"))
+                    .mapToLong(name -> Long.parseLong(name.substring(0, name.length() - 4)))
+                    .sorted()
+                    .toArray();
+        }
+    }
+
+    private Path segment(long firstId) {
+        return directory.resolve(String.format("%020d.log", firstId));
+    }
+
+    private Path index(long firstId) {
+        return directory.resolve(String.format("%020d.idx", firstId));
+    }
+
+    private static void corrupt(Path file, int position) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer b = ByteBuffer.allocate(1);
+            channel.read(b, position);
+            b.put(0, (byte) (b.get(0) ^ 0x5A));
+            b.rewind();
+            channel.write(b, position);
+        }
+    }
+
+    private static void zeroFrom(Path file, int position) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            ByteBuffer zeros = ByteBuffer.allocate((int) channel.size() - position);
+            while (zeros.hasRemaining()) {
+                channel.write(zeros, position + zeros.position());
+            }
+        }
+    }
+}
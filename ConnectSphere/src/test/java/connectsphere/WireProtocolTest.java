@@ -0,0 +1,213 @@
+package connectsphere;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Frames and lines survive the encoder and decoder whole, however the input is split into reads
+class WireProtocolTest {
+    private static final int[] VARINTS = {0, 1, 127, 128, 300, 16383, 16384, 2_097_151, 2_097_152, Integer.MAX_VALUE, -1};
+
+    @Test
+    void roundTripsEveryFieldType() {
+        WireProtocol.Encoder encoder = new WireProtocol.Encoder();
+        encoder.start().writeByte(0xFE).writeBoolean(true).writeBoolean(false);
+        for (int value : VARINTS) {
+            encoder.writeVarint(value);
+        }
+        encoder.writeLong(-1).writeLong(Long.MIN_VALUE).writeLong(1_700_000_000_000L)
+                .writeString("").writeString("tab\tnew\nline, café 😀")
+                .writeBytes(new byte[] {0, (byte) 0xFF, '\n'});
+        byte[] frame = encoder.toFrame(WireProtocol.MESSAGE);
+
+        Recorder recorder = new Recorder(true) {
+            @Override
+            public void onFrame(int type, WireProtocol.Payload payload) {
+                assertEquals(WireProtocol.MESSAGE, type);
+                assertEquals(0xFE, payload.readByte());
+                assertTrue(payload.readBoolean());
+                assertFalse(payload.readBoolean());
+                for (int value : VARINTS) {
+                    assertEquals(value, payload.readVarint());
+                }
+                assertEquals(-1, payload.readLong());
+                assertEquals(Long.MIN_VALUE, payload.readLong());
+                assertEquals(1_700_000_000_000L, payload.readLong());
+                assertEquals("", payload.readString());
+                assertEquals("tab\tnew\nline, café 😀", payload.readString());
+                assertArrayEquals(new byte[] {0, (byte) 0xFF, '\n'}, payload.readBytes());
+                assertThrows(IllegalArgumentException.class, payload::readByte, "read past the payload");
+                events.add("frame");
+            }
+        };
+        assertTrue(recorder.decoder.decode(frame, 0, frame.length, recorder));
+        assertEquals(List.of("frame"), recorder.events);
+    }
+
+    @Test
+    void reusedEncoderStartsEachFrameEmpty() {
+        WireProtocol.Encoder encoder = new WireProtocol.Encoder();
+        byte[] long1 = encoder.start().writeString("x".repeat(1000)).toFrame(WireProtocol.SAY);
+        byte[] short1 = encoder.start().writeString("hi").toFrame(WireProtocol.SAY);
+        assertArrayEquals(new WireProtocol.Encoder().writeString("hi").toFrame(WireProtocol.SAY), short1);
+        assertEquals(List.of(WireProtocol.SAY + ":" + "x".repeat(1000), WireProtocol.SAY + ":hi"), decodeAll(concat(long1, short1), 7));
+    }
+
+    @Test
+    void reassemblesFramesSplitAcrossReads() {
+        // Payloads of 127, 128, 16383 and 16384 bytes sit on either side of a varint length
+        // growing a byte; the last one needs three, and its characters get split too
+        List<String> expected = new ArrayList<>();
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        List<String> bodies = new ArrayList<>();
+        for (int length : new int[] {0, 1, 125, 126, 127, 16_380, 16_381, 16_382}) {
+            bodies.add("a".repeat(length));
+        }
+        bodies.add(text(40_000));
+        for (String body : bodies) {
+            byte[] frame = new WireProtocol.Encoder().writeString(body).toFrame(WireProtocol.SAY);
+            stream.writeBytes(frame);
+            expected.add(WireProtocol.SAY + ":" + body);
+        }
+        byte[] input = stream.toByteArray();
+        assertEquals(expected, decodeAll(input, 1));
+        assertEquals(expected, decodeAll(input, 2));
+        Random random = new Random(7);
+        for (int run = 0; run < 20; run++) {
+            assertEquals(expected, decodeInChunks(input, random), "run " + run);
+        }
+    }
+
+    @Test
+    void reassemblesLinesSplitAcrossReads() {
+        byte[] input = "café\r\n\r\nüber\rlast\nsecond\r\r\n".getBytes(StandardCharsets.UTF_8);
+        List<String> expected = List.of("café", "", "über", "last", "second", "");
+        assertEquals(expected, decodeLines(input, input.length));
+        assertEquals(expected, decodeLines(input, 1));
+        assertEquals(expected, decodeLines(input, 3));
+    }
+
+    @Test
+    void switchesToFramesMidBuffer() {
+        byte[] frame = new WireProtocol.Encoder().writeString("after").toFrame(WireProtocol.SAY);
+        byte[] input = concat((WireProtocol.PROTO_REQUEST + "\n").getBytes(StandardCharsets.UTF_8), frame);
+        for (int chunk : new int[] {input.length, 1}) {
+            Recorder recorder = new Recorder(false) {
+                @Override
+                public void onLine(String line) {
+                    super.onLine(line);
+                    binary = line.equals(WireProtocol.PROTO_REQUEST);
+                }
+            };
+            for (int offset = 0; offset < input.length; offset += chunk) {
+                assertTrue(recorder.decoder.decode(input, offset, Math.min(chunk, input.length - offset), recorder));
+            }
+            assertEquals(List.of("line:" + WireProtocol.PROTO_REQUEST, WireProtocol.SAY + ":after"), recorder.events);
+        }
+    }
+
+    @Test
+    void rejectsOversizedAndMalformedInput() {
+        byte[] big = new WireProtocol.Encoder().writeString(text(200)).toFrame(WireProtocol.SAY);
+        assertFalse(decoder(100).decode(big, 0, 3, new Recorder(true)), "the length alone is over the limit");
+        assertTrue(decoder(1000).decode(big, 0, big.length, new Recorder(true)));
+
+        byte[] endlessVarint = {WireProtocol.SAY, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80};
+        assertFalse(decoder(Integer.MAX_VALUE).decode(endlessVarint, 0, endlessVarint.length, new Recorder(true)));
+
+        // A string whose length runs past the end of its frame
+        byte[] truncated = new WireProtocol.Encoder().writeVarint(50).writeByte('x').toFrame(WireProtocol.SAY);
+        assertFalse(decoder(1000).decode(truncated, 0, truncated.length, new Recorder(true)));
+
+        byte[] line = (text(101) + "\n").getBytes(StandardCharsets.UTF_8);
+        assertFalse(decoder(100).decode(line, 0, line.length, new Recorder(false)));
+    }
+
+    // Collects each line or SAY-style frame (one string payload) as "line:text" or "type:text"
+    private static class Recorder implements WireProtocol.Sink {
+        final WireProtocol.Decoder decoder = new WireProtocol.Decoder(1 << 20);
+        final List<String> events = new ArrayList<>();
+        boolean binary;
+
+        Recorder(boolean binary) {
+            this.binary = binary;
+        }
+
+        @Override
+        public void onLine(String line) {
+            events.add("line:" + line);
+        }
+
+        @Override
+        public void onFrame(int type, WireProtocol.Payload payload) {
+            events.add(type + ":" + payload.readString());
+        }
+
+        @Override
+        public boolean binaryInput() {
+            return binary;
+        }
+    }
+
+    private static WireProtocol.Decoder decoder(int maxFrameLength) {
+        return new WireProtocol.Decoder(maxFrameLength);
+    }
+
+    private static List<String> decodeAll(byte[] input, int chunk) {
+        Recorder recorder = new Recorder(true);
+        for (int offset = 0; offset < input.length; offset += chunk) {
+            assertTrue(recorder.decoder.decode(input, offset, Math.min(chunk, input.length - offset), recorder));
+        }
+        return recorder.events;
+    }
+
+    private static List<String> decodeInChunks(byte[] input, Random random) {
+        Recorder recorder = new Recorder(true);
+        int offset = 0;
+        while (offset < input.length) {
+            int chunk = Math.min(1 + random.nextInt(300), input.length - offset);
+            assertTrue(recorder.decoder.decode(input, offset, chunk, recorder));
+            offset += chunk;
+        }
+        return recorder.events;
+    }
+
+    private static List<String> decodeLines(byte[] input, int chunk) {
+        Recorder recorder = new Recorder(false);
+        for (int offset = 0; offset < input.length; offset += chunk) {
+            assertTrue(recorder.decoder.decode(input, offset, Math.min(chunk, input.length - offset), recorder));
+        }
+        List<String> lines = new ArrayList<>();
+        for (String event : recorder.events) {
+            lines.add(event.substring("line:".length()));
+        }
+        return lines;
+    }
+
+    // Mixes one-, two- and four-byte characters, so reads also split characters
+    private static String text(int length) {
+        char[] pattern = "abé€😀".toCharArray();
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; builder.length() < length; i++) {
+            builder.append(pattern[i % pattern.length]);
+        }
+        builder.setLength(length);
+        if (length > 0 && Character.isHighSurrogate(builder.charAt(length - 1))) {
+            builder.setCharAt(length - 1, 'z');
+        }
+        return builder.toString();
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] both = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, both, a.length, b.length);
+        return both;
+    }
+}
@@ -0,0 +1,92 @@
+package connectsphere;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// A public message from one client fanned out to every logged-in session, through the same path a
+// socket client takes: the session's input handler, the bus, history and each outbound queue.
+// Sessions write into memory; queued frames are drained every DRAIN_EVERY messages, the way a
+// writer thread picks up a batch.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BroadcastBenchmark {
+    private static final int DRAIN_EVERY = 64;
+
+    @Param({"10", "1000", "10000"})
+    public int sessions;
+
+    private final ArrayDeque<MemorySink> pending = new ArrayDeque<>();
+    private MemorySink[] sinks;
+    private int sent;
+
+    // Stands in for a socket; remembers that it has frames waiting
+    private final class MemorySink implements ConnectSphereServer.Transport {
+        final ConnectSphereServer.ChatSession session = new ConnectSphereServer.ChatSession(this);
+        long bytes;
+
+        @Override
+        public void scheduleDrain() {
+            pending.add(this);
+        }
+
+        @Override
+        public void disconnect() {
+            throw new IllegalStateException("Benchmark session was disconnected");
+        }
+
+        void drain() {
+            List<Frame> batch;
+            while ((batch = session.drainOutbound()) != null) {
+                for (Frame frame : batch) {
+                    bytes += frame.bytes(true).length;
+                }
+            }
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void logIn() {
+        ChatLog.configure(new String[] {"--log=error"}); // Login lines would be formatted during measurement
+        ConnectSphereServer.startInProcess("benchmark");
+        sinks = new MemorySink[sessions];
+        for (int i = 0; i < sessions; i++) {
+            sinks[i] = new MemorySink();
+            sinks[i].session.open();
+            sinks[i].session.onLine(WireProtocol.PROTO_REQUEST);
+            sinks[i].session.onLine("user" + i);
+            drainPending();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void logOut() {
+        for (MemorySink sink : sinks) {
+            sink.session.close();
+            drainPending();
+        }
+    }
+
+    @Benchmark
+    public void publicMessage(Blackhole blackhole) {
+        sinks[0].session.onLine("The quick brown fox jumps over the lazy dog");
+        if (++sent % DRAIN_EVERY == 0) {
+            drainPending();
+        }
+        blackhole.consume(pending.size());
+    }
+
+    private void drainPending() {
+        MemorySink sink;
+        while ((sink = pending.poll()) != null) {
+            sink.drain();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package connectsphere;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import connectsphere.ConnectSphereClient.ChatMessage;
+
+// One message arriving in a long public chat: appended to its conversation, the list laid out
+// again and the bottom screenful of rows painted, as the client does for every message. With the
+// default renderer the list measures every row after each change; ChatCellRenderer's fixed-size
+// rows skip that. Runs headless, painting into an image.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Benchmark)
+public class ChatListBenchmark {
+    private static final int WIDTH = 650;
+    private static final int HEIGHT = 300;
+
+    @Param({"1000", "50000"})
+    public int messages;
+
+    @Param({"default", "fixed"})
+    public String renderer;
+
+    private Conversation conversation;
+    private JList<ChatMessage> list;
+    private Graphics2D graphics;
+    private long nextId;
+
+    @Setup(Level.Trial)
+    public void fill() {
+        conversation = new Conversation(messages);
+        list = new JList<>(conversation);
+        if ("fixed".equals(renderer)) {
+            ChatCellRenderer.install(list);
+        }
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < messages; i++) {
+            append(now);
+        }
+        graphics = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB).createGraphics();
+    }
+
+    @TearDown(Level.Trial)
+    public void dispose() {
+        graphics.dispose();
+    }
+
+    private void append(long now) {
+        long id = nextId++;
+        ChatMessage message = new ChatMessage("user" + id % 50 + ": a chat message of about sixty characters, number " + id, id, now);
+        if (id % 10 == 0) {
+            message.setReactionCount("👍", 2);
+        }
+        conversation.add(message);
+    }
+
+    @Benchmark
+    public Rectangle appendAndPaint() {
+        append(System.currentTimeMillis());
+        int last = conversation.getSize() - 1;
+        Rectangle bottom = list.getCellBounds(last, last); // Lays the list out again after the change
+        list.setSize(WIDTH, bottom.y + bottom.height);
+        Graphics g = graphics.create(0, -(list.getHeight() - HEIGHT), WIDTH, list.getHeight());
+        g.setClip(0, list.getHeight() - HEIGHT, WIDTH, HEIGHT);
+        list.paint(g);
+        g.dispose();
+        return bottom;
+    }
+}
@@ -0,0 +1,36 @@
+package connectsphere;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Client-side rendering of one chat list entry. JList calls toString() on every repaint, which
+// hits the cached text; a reaction invalidates it and the next call rebuilds it.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ChatMessageBenchmark {
+    private ConnectSphereClient.ChatMessage message;
+    private int total;
+
+    @Setup(Level.Trial)
+    public void create() {
+        message = new ConnectSphereClient.ChatMessage("alice: The quick brown fox jumps over the lazy dog", 42,
+                System.currentTimeMillis());
+        message.setReactionCount("👍", 1);
+    }
+
+    @Benchmark
+    public String repaint() {
+        return message.toString();
+    }
+
+    @Benchmark
+    public String afterReaction() {
+        message.setReactionCount("👍", ++total);
+        return message.toString();
+    }
+}
@@ -0,0 +1,90 @@
+package connectsphere;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Client-side decoding and dispatch of the busiest inbound traffic: a batch of 64 public and
+// private messages, typing changes and reaction totals, in each wire format, through
+// ChatClient.receive to a listener that only looks at the fields. Allocation per batch shows
+// what every event costs the client beyond the strings the listener is handed.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ClientDispatchBenchmark {
+    @Param({"text", "binary"})
+    public String wire;
+
+    private ChatClient client;
+    private byte[] batch;
+    private long seen;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ChatLog.configure(new String[] {"--log=error"});
+        boolean binary = "binary".equals(wire);
+        client = new ChatClient("reader", binary, new ChatClient.Listener() {
+            @Override
+            public void onMessage(int kind, long id, long timestamp, String sender, String body) {
+                seen += kind + body.length();
+            }
+
+            @Override
+            public void onTyping(String[] started, String[] stopped) {
+                seen += started.length + stopped.length;
+            }
+
+            @Override
+            public void onPrivateTyping(String user, boolean start) {
+                seen += user.length();
+            }
+
+            @Override
+            public void onPublicReactions(long[] messageIds, String[] emojis, int[] totals) {
+                seen += totals[0];
+            }
+        }, null);
+        if (binary) {
+            client.receive(Frame.handshake(WireProtocol.PROTO_ACK).bytes(false), 0, WireProtocol.PROTO_ACK.length() + 1);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 64; i++) {
+            Frame frame;
+            switch (i % 8) {
+                case 0:
+                case 1:
+                case 2:
+                case 3:
+                    frame = Frame.message(WireProtocol.KIND_PUBLIC, i, now, "user" + i, "a chat message of a typical length, " + i);
+                    break;
+                case 4:
+                    frame = Frame.message(WireProtocol.KIND_PRIVATE_FROM, i, now, "friend " + i, "psst, " + i);
+                    break;
+                case 5:
+                    frame = Frame.typingSet(List.of("user" + i), List.of());
+                    break;
+                case 6:
+                    frame = Frame.privateTyping("friend " + i, i % 16 == 6);
+                    break;
+                default:
+                    frame = Frame.publicReactions(new long[] {i}, new String[] {"👍"}, new int[] {i});
+                    break;
+            }
+            out.writeBytes(frame.bytes(binary));
+        }
+        batch = out.toByteArray();
+    }
+
+    @Benchmark
+    public long receiveBatch() {
+        client.receive(batch, 0, batch.length);
+        return seen;
+    }
+}
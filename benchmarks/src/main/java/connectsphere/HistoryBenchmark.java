@@ -0,0 +1,45 @@
+package connectsphere;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// The public history ring at capacity: every append drops the oldest message, which used to be a
+// List.remove(0). replay copies the window a joining client is sent.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HistoryBenchmark {
+    @Param({"50", "10000"})
+    public int capacity;
+
+    private ConnectSphereServer.MessageHistory history;
+    private Frame frame;
+
+    @Setup(Level.Trial)
+    public void fill() {
+        history = new ConnectSphereServer.MessageHistory(capacity);
+        frame = Frame.message(WireProtocol.KIND_PUBLIC, 1, System.currentTimeMillis(), "alice", "Hello, world");
+        for (int i = 0; i < capacity; i++) {
+            history.append(frame);
+        }
+    }
+
+    @Benchmark
+    public long appendAtCapacity() {
+        history.append(frame);
+        return history.nextSequence();
+    }
+
+    @Benchmark
+    public List<Frame> replay() {
+        List<Frame> out = new ArrayList<>(capacity);
+        history.appendTo(out);
+        return out;
+    }
+}
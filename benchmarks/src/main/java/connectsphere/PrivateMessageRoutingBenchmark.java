@@ -0,0 +1,44 @@
+package connectsphere;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Recipient lookup for "/pm <name> <text>" as handlePrivateMessage does it: the longest online name
+// that the text starts with, among a growing number of users. Names share prefixes ("user1",
+// "user12", "user123"), and some contain spaces, which is the case prefix matching exists for.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PrivateMessageRoutingBenchmark {
+    private static final int LINES = 1024; // Power of two
+
+    @Param({"10", "1000", "10000", "100000"})
+    public int users;
+
+    private SessionRegistry registry;
+    private final String[] lines = new String[LINES];
+    private int next;
+
+    @Setup(Level.Trial)
+    public void register() {
+        registry = new SessionRegistry();
+        for (int i = 0; i < users; i++) {
+            String name = i % 10 == 0 ? "user" + i + " smith" : "user" + i;
+            registry.register(new SessionRegistry.Member(name, "benchmark", i + 1, null), () -> { });
+        }
+        for (int i = 0; i < LINES; i++) {
+            int user = (int) ((i * 2654435761L) % users);
+            String name = user % 10 == 0 ? "User" + user + " Smith" : "user" + user;
+            lines[i] = name + " see you at the standup in ten minutes";
+        }
+    }
+
+    @Benchmark
+    public SessionRegistry.Member resolveRecipient() {
+        return registry.longestNamePrefix(lines[next++ & (LINES - 1)]);
+    }
+}
@@ -0,0 +1,45 @@
+package connectsphere;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Presence encoding: the full user list a client gets on connect, in each wire format, and the
+// join delta binary clients get instead of a new list on every change. Frames are built fresh
+// each time, as the server does for every change.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UserListBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int users;
+
+    private String[] names;
+    private long epoch;
+
+    @Setup(Level.Trial)
+    public void names() {
+        names = new String[users];
+        for (int i = 0; i < users; i++) {
+            names[i] = i % 10 == 0 ? "user" + i + " smith" : "user" + i;
+        }
+    }
+
+    @Benchmark
+    public byte[] snapshotBinary() {
+        return Frame.userList(++epoch, names).bytes(true);
+    }
+
+    @Benchmark
+    public byte[] snapshotText() {
+        return Frame.userList(++epoch, names).bytes(false);
+    }
+
+    @Benchmark
+    public byte[] joinDeltaBinary() {
+        return Frame.presence(true, ++epoch, names[(int) (epoch % users)], names).bytes(true);
+    }
+}
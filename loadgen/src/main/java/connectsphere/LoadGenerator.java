@@ -0,0 +1,561 @@
+package connectsphere;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Simulated users against a running server, for sizing hardware and checking server changes.
+// Every user logs in through ChatClient, then the whole population sends public messages,
+// private messages, typing changes and reactions at the configured total rates. Chat bodies
+// carry the sender's System.nanoTime(), and each user records how long every message took to
+// reach it, so public latencies cover the whole fan-out. Throughput and latency percentiles are
+// printed every --report-interval seconds and once more at the end.
+public final class LoadGenerator {
+    private static final String TAG = "lg "; // Bodies are "lg <nanoTime> <padding>"
+    private static final String[] EMOJIS = {"👍", "❤️", "🎉", "👏", "👎"};
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    private final String host;
+    private final int port;
+    private final boolean preferBinary;
+    private final SimulatedUser[] users;
+    private final String padding;
+    private final AtomicBoolean stopping = new AtomicBoolean();
+
+    private final ServerMetrics.Histogram loginTime = new ServerMetrics.Histogram();
+    private final ServerMetrics.Histogram publicLatency = new ServerMetrics.Histogram();
+    private final ServerMetrics.Histogram privateLatency = new ServerMetrics.Histogram();
+    private final AtomicInteger loggedIn = new AtomicInteger();
+    private final LongAdder connectFailures = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+    private final LongAdder publicSent = new LongAdder();
+    private final LongAdder publicDelivered = new LongAdder();
+    private final LongAdder privateSent = new LongAdder();
+    private final LongAdder privateDelivered = new LongAdder();
+    private final LongAdder typingSent = new LongAdder();
+    private final LongAdder reactionsSent = new LongAdder();
+
+    private LoadGenerator(String host, int port, boolean preferBinary, int userCount, String namePrefix, int messageSize) {
+        this.host = host;
+        this.port = port;
+        this.preferBinary = preferBinary;
+        this.users = new SimulatedUser[userCount];
+        for (int i = 0; i < userCount; i++) {
+            users[i] = new SimulatedUser(namePrefix + i);
+        }
+        char[] fill = new char[Math.max(0, messageSize - 24)]; // Roughly the tag and timestamp
+        Arrays.fill(fill, 'x');
+        this.padding = new String(fill);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        // Thousands of clients logging every connect and disconnect would drown the report
+        String[] withDefaults = Arrays.copyOf(args, args.length + 1);
+        withDefaults[args.length] = "--log=warn";
+        ChatLog.configure(withDefaults);
+
+        String mode = ConnectSphereServer.option(args, "mode", "threads");
+        String wire = ConnectSphereServer.option(args, "wire", "binary");
+        if (!"binary".equals(wire) && !"text".equals(wire)) {
+            System.err.println("Unknown wire format '" + wire + "', expected binary or text");
+            System.exit(1);
+        }
+        LoadGenerator generator = new LoadGenerator(
+                ConnectSphereServer.option(args, "host", "localhost"),
+                Integer.parseInt(ConnectSphereServer.option(args, "port", "5555")),
+                "binary".equals(wire),
+                Integer.parseInt(ConnectSphereServer.option(args, "users", "100")),
+                ConnectSphereServer.option(args, "name-prefix", "load"),
+                Integer.parseInt(ConnectSphereServer.option(args, "size", "64")));
+
+        Connector connector;
+        if ("nio".equals(mode)) {
+            int loops = Integer.parseInt(ConnectSphereServer.option(args, "loops", String.valueOf(Runtime.getRuntime().availableProcessors())));
+            connector = generator.nioConnector(loops);
+        } else if ("virtual".equals(mode)) {
+            connector = generator.blockingConnector(ConnectSphereServer.newVirtualThreadPerTaskExecutor());
+        } else if ("threads".equals(mode)) {
+            connector = generator.blockingConnector(task -> {
+                Thread reader = new Thread(null, task, "load-reader", 256 * 1024); // Thousands of them
+                reader.setDaemon(true);
+                reader.start();
+            });
+        } else {
+            System.err.println("Unknown mode '" + mode + "', expected threads, virtual or nio");
+            System.exit(1);
+            return;
+        }
+
+        System.out.printf("Connecting %d users to %s:%d (mode: %s, wire: %s)%n", generator.users.length, generator.host,
+                generator.port, mode, wire);
+        generator.logIn(connector, Double.parseDouble(ConnectSphereServer.option(args, "ramp", "5")),
+                Double.parseDouble(ConnectSphereServer.option(args, "login-timeout", "30")));
+        generator.run(Double.parseDouble(ConnectSphereServer.option(args, "duration", "30")),
+                Double.parseDouble(ConnectSphereServer.option(args, "rate", "50")),
+                Double.parseDouble(ConnectSphereServer.option(args, "pm-rate", "20")),
+                Double.parseDouble(ConnectSphereServer.option(args, "typing-rate", "20")),
+                Double.parseDouble(ConnectSphereServer.option(args, "reaction-rate", "10")),
+                Double.parseDouble(ConnectSphereServer.option(args, "report-interval", "5")));
+        generator.stop();
+        System.exit(0);
+    }
+
+    // Opens one user's connection; the user's client is set before any input can arrive
+    private interface Connector {
+        void connect(SimulatedUser user) throws IOException;
+    }
+
+    private Connector blockingConnector(Executor readers) {
+        return user -> user.client = ChatClient.connect(host, port, user.initialName, preferBinary, user, readers);
+    }
+
+    private Connector nioConnector(int loopCount) {
+        NioLoop[] loops = new NioLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            try {
+                loops[i] = new NioLoop(i);
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not open a selector", e);
+            }
+            loops[i].start();
+        }
+        AtomicInteger next = new AtomicInteger();
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        return user -> {
+            ChatClient client = new ChatClient(user.initialName, preferBinary, user, null);
+            user.client = client;
+            NioConnection connection = new NioConnection(loops[Math.floorMod(next.getAndIncrement(), loops.length)], client);
+            client.attach(connection);
+            connection.open(address);
+        };
+    }
+
+    // Connects everyone evenly over rampSeconds, then waits for the last names to be accepted
+    private void logIn(Connector connector, double rampSeconds, double timeoutSeconds) throws InterruptedException {
+        long start = System.nanoTime();
+        long spacing = (long) (rampSeconds * 1e9 / users.length);
+        for (int i = 0; i < users.length; i++) {
+            long due = start + i * spacing;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            SimulatedUser user = users[i];
+            user.connectStarted = System.nanoTime();
+            try {
+                connector.connect(user);
+            } catch (IOException e) {
+                connectFailures.increment();
+                if (connectFailures.sum() == 1) {
+                    System.out.println("Could not connect: " + e.getMessage());
+                }
+            }
+        }
+        long deadline = System.nanoTime() + (long) (timeoutSeconds * 1e9);
+        while (loggedIn.get() + connectFailures.sum() + disconnects.sum() < users.length && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        System.out.printf("%d of %d users logged in after %.1f s (%d could not connect); login %s%n", loggedIn.get(),
+                users.length, (System.nanoTime() - start) / 1e9, connectFailures.sum(), percentiles(loginTime.snapshot()));
+    }
+
+    // Sends traffic at the given total rates (per second) from this thread, spread over random users
+    private void run(double durationSeconds, double publicRate, double privateRate, double typingRate,
+                     double reactionRate, double reportSeconds) throws InterruptedException {
+        if (loggedIn.get() == 0) {
+            System.out.println("Nobody logged in; nothing to measure");
+            return;
+        }
+        long start = System.nanoTime();
+        long end = start + (long) (durationSeconds * 1e9);
+        long reportEvery = (long) (reportSeconds * 1e9);
+        long nextReport = start + reportEvery;
+        Totals lastReport = new Totals(start);
+        double publicDue = 0;
+        double privateDue = 0;
+        double typingDue = 0;
+        double reactionDue = 0;
+        long last = start;
+        long now;
+        while ((now = System.nanoTime()) < end) {
+            double elapsed = (now - last) / 1e9;
+            last = now;
+            publicDue += publicRate * elapsed;
+            privateDue += privateRate * elapsed;
+            typingDue += typingRate * elapsed;
+            reactionDue += reactionRate * elapsed;
+            for (; publicDue >= 1; publicDue--) {
+                sendPublic();
+            }
+            for (; privateDue >= 1; privateDue--) {
+                sendPrivate();
+            }
+            for (; typingDue >= 1; typingDue--) {
+                toggleTyping();
+            }
+            for (; reactionDue >= 1; reactionDue--) {
+                react();
+            }
+            if (reportEvery > 0 && now >= nextReport) {
+                lastReport = report(lastReport, now, start);
+                nextReport += reportEvery;
+            }
+            LockSupport.parkNanos(TICK_NANOS);
+        }
+        long sending = System.nanoTime() - start;
+        Thread.sleep(1000); // Let the last messages arrive
+        summarize(sending);
+    }
+
+    private void stop() {
+        stopping.set(true);
+        for (SimulatedUser user : users) {
+            if (user.client != null) {
+                user.client.close();
+            }
+        }
+    }
+
+    private void sendPublic() {
+        SimulatedUser sender = randomOnlineUser();
+        if (sender != null) {
+            sender.client.say(TAG + System.nanoTime() + " " + padding);
+            publicSent.increment();
+        }
+    }
+
+    private void sendPrivate() {
+        SimulatedUser sender = randomOnlineUser();
+        SimulatedUser recipient = randomOnlineUser();
+        if (sender != null && recipient != null && sender != recipient) {
+            sender.client.privateMessage(recipient.client.name(), TAG + System.nanoTime() + " " + padding);
+            privateSent.increment();
+        }
+    }
+
+    private void toggleTyping() {
+        SimulatedUser user = randomOnlineUser();
+        if (user != null) {
+            user.typing = !user.typing;
+            user.client.typing(user.typing);
+            typingSent.increment();
+        }
+    }
+
+    // Reacts to the latest public message the user has seen
+    private void react() {
+        SimulatedUser user = randomOnlineUser();
+        if (user != null && user.lastPublicId >= 0) {
+            user.client.publicReaction(user.lastPublicId, EMOJIS[ThreadLocalRandom.current().nextInt(EMOJIS.length)]);
+            reactionsSent.increment();
+        }
+    }
+
+    // A few tries, so a mostly logged-in population still gets its full rate
+    private SimulatedUser randomOnlineUser() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int attempt = 0; attempt < 8; attempt++) {
+            SimulatedUser user = users[random.nextInt(users.length)];
+            if (user.online) {
+                return user;
+            }
+        }
+        return null;
+    }
+
+    // Counter values at one point in time, for per-interval rates
+    private final class Totals {
+        final long at;
+        final long publicSent = LoadGenerator.this.publicSent.sum();
+        final long publicDelivered = LoadGenerator.this.publicDelivered.sum();
+        final long privateSent = LoadGenerator.this.privateSent.sum();
+        final long privateDelivered = LoadGenerator.this.privateDelivered.sum();
+
+        Totals(long at) {
+            this.at = at;
+        }
+    }
+
+    private Totals report(Totals previous, long now, long start) {
+        Totals current = new Totals(now);
+        double seconds = (current.at - previous.at) / 1e9;
+        System.out.printf("[%4.0fs] online %d | public %.0f/s sent, %.0f/s delivered | private %.0f/s sent, %.0f/s delivered | public latency so far %s%n",
+                (now - start) / 1e9, loggedIn.get() - disconnects.sum(),
+                (current.publicSent - previous.publicSent) / seconds, (current.publicDelivered - previous.publicDelivered) / seconds,
+                (current.privateSent - previous.privateSent) / seconds, (current.privateDelivered - previous.privateDelivered) / seconds,
+                percentiles(publicLatency.snapshot()));
+        return current;
+    }
+
+    // Rates are over the sending period; deliveries in the final second still count toward them
+    private void summarize(long sendingNanos) {
+        double seconds = sendingNanos / 1e9;
+        System.out.println();
+        System.out.printf("Users: %d logged in, %d could not connect, %d disconnected during the run%n",
+                loggedIn.get(), connectFailures.sum(), disconnects.sum());
+        System.out.printf("Public messages:  %d sent (%.1f/s), %d deliveries (%.1f/s)%n",
+                publicSent.sum(), publicSent.sum() / seconds, publicDelivered.sum(), publicDelivered.sum() / seconds);
+        System.out.printf("  delivery latency %s%n", percentiles(publicLatency.snapshot()));
+        System.out.printf("Private messages: %d sent (%.1f/s), %d delivered (%.1f/s)%n",
+                privateSent.sum(), privateSent.sum() / seconds, privateDelivered.sum(), privateDelivered.sum() / seconds);
+        System.out.printf("  delivery latency %s%n", percentiles(privateLatency.snapshot()));
+        System.out.printf("Typing changes: %d sent, reactions: %d sent%n", typingSent.sum(), reactionsSent.sum());
+    }
+
+    private static String percentiles(ServerMetrics.Snapshot snapshot) {
+        if (snapshot.count == 0) {
+            return "(no samples)";
+        }
+        return String.format("p50 %s, p99 %s, p99.9 %s, max %s (%d samples)", millis(snapshot.quantile(0.5)),
+                millis(snapshot.quantile(0.99)), millis(snapshot.quantile(0.999)), millis(snapshot.max), snapshot.count);
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.2f ms", nanos / 1e6);
+    }
+
+    // One simulated person. Its listener calls run on its connection's reader.
+    private final class SimulatedUser implements ChatClient.Listener {
+        final String initialName;
+        volatile ChatClient client;
+        volatile boolean online;
+        volatile long lastPublicId = -1;
+        long connectStarted;
+        boolean typing; // Traffic thread only
+
+        SimulatedUser(String initialName) {
+            this.initialName = initialName;
+        }
+
+        @Override
+        public String onNameTaken(String name) {
+            return name + "_";
+        }
+
+        @Override
+        public void onNameAccepted(String name) {
+            loginTime.recordSince(connectStarted);
+            online = true;
+            loggedIn.incrementAndGet();
+        }
+
+        @Override
+        public void onMessage(int kind, long id, long timestamp, String sender, String body) {
+            if (kind == WireProtocol.KIND_PUBLIC && id >= 0) {
+                lastPublicId = id;
+            }
+            if (!body.startsWith(TAG) || kind == WireProtocol.KIND_PRIVATE_TO || kind == WireProtocol.KIND_SYSTEM) {
+                return;
+            }
+            long sent = parseTimestamp(body);
+            if (sent == 0) {
+                return;
+            }
+            if (kind == WireProtocol.KIND_PUBLIC) {
+                publicLatency.recordSince(sent);
+                publicDelivered.increment();
+            } else {
+                privateLatency.recordSince(sent);
+                privateDelivered.increment();
+            }
+        }
+
+        @Override
+        public void onDisconnected(IOException cause) {
+            boolean wasOnline = online;
+            online = false;
+            if (!stopping.get() && wasOnline) {
+                disconnects.increment();
+            }
+        }
+    }
+
+    // The nanoTime after TAG, or 0 if the body was not sent by a load generator
+    private static long parseTimestamp(String body) {
+        long value = 0;
+        int i = TAG.length();
+        boolean negative = i < body.length() && body.charAt(i) == '-';
+        if (negative) {
+            i++;
+        }
+        for (; i < body.length(); i++) {
+            char c = body.charAt(i);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    // Non-blocking driver: a few selector threads serve every simulated connection
+    private static final class NioLoop extends Thread {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+
+        NioLoop(int index) throws IOException {
+            super("load-loop-" + index);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    System.err.println("Load generator event loop failed: " + e.getMessage());
+                    return;
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isConnectable()) {
+                        connection.finishConnect();
+                        continue;
+                    }
+                    if (key.isReadable()) {
+                        connection.read(readBuffer);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.flush();
+                    }
+                }
+            }
+        }
+    }
+
+    // One connection on an NioLoop. Sends are queued from any thread and written by the loop.
+    private static final class NioConnection implements ChatClient.Output {
+        private final NioLoop loop;
+        private final ChatClient client;
+        private final ConcurrentLinkedQueue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private SocketChannel channel;
+        private SelectionKey key;
+
+        NioConnection(NioLoop loop, ChatClient client) {
+            this.loop = loop;
+            this.client = client;
+        }
+
+        void open(InetSocketAddress address) throws IOException {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.connect(address);
+            loop.execute(() -> {
+                try {
+                    key = channel.register(loop.selector, SelectionKey.OP_CONNECT, this);
+                } catch (IOException e) {
+                    client.disconnected(e);
+                }
+            });
+        }
+
+        // Runs on the loop
+        void finishConnect() {
+            try {
+                channel.finishConnect();
+                key.interestOps(SelectionKey.OP_READ);
+            } catch (IOException e) {
+                client.disconnected(e);
+            }
+        }
+
+        // Runs on the loop
+        void read(ByteBuffer buffer) {
+            buffer.clear();
+            int count;
+            try {
+                count = channel.read(buffer);
+            } catch (IOException e) {
+                client.disconnected(e);
+                return;
+            }
+            if (count < 0) {
+                client.disconnected(null);
+                return;
+            }
+            buffer.flip();
+            if (!client.receive(buffer)) {
+                client.disconnected(null);
+            }
+        }
+
+        @Override
+        public void write(byte[] bytes) {
+            outbound.add(ByteBuffer.wrap(bytes));
+            if (flushScheduled.compareAndSet(false, true)) {
+                loop.execute(this::flush);
+            }
+        }
+
+        // Runs on the loop; waits for OP_WRITE rather than spinning when the socket is full
+        void flush() {
+            flushScheduled.set(false);
+            if (key == null || !key.isValid() || !channel.isConnected()) {
+                return; // Connecting; finishConnect leaves OP_READ set and the next write flushes
+            }
+            try {
+                ByteBuffer head;
+                while ((head = outbound.peek()) != null) {
+                    channel.write(head);
+                    if (head.hasRemaining()) {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    outbound.poll();
+                }
+                key.interestOps(SelectionKey.OP_READ);
+            } catch (IOException e) {
+                client.disconnected(e);
+            }
+        }
+
+        @Override
+        public void close() {
+            loop.execute(() -> {
+                if (key != null) {
+                    key.cancel();
+                }
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // Already closing
+                }
+                client.disconnected(null);
+            });
+        }
+    }
+}